@@ -0,0 +1,182 @@
+package neural2d;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * The outputs of the boundary layers of a net for each training sample, so
+ * that training need not feed the samples through the layers below them
+ * again. The boundary layers are those whose outputs cannot change while
+ * training: their weights, and the weights of every layer below them, are
+ * frozen or fixed by convolution. Once a sample has been fed forward, its
+ * boundary outputs are saved here, and in later epochs they are put back
+ * into the boundary layers and only the layers after them are fed forward.
+ * <p>
+ * The outputs are kept as floats, half the size of the neurons' doubles, so
+ * the layers after the boundary train against outputs rounded to float
+ * precision. They are kept on the heap, or, given a file, in that file,
+ * memory-mapped, for sample sets whose boundary outputs do not fit in
+ * memory.
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+class ActivationCache
+{
+    // The most bytes mapped by one buffer; a MappedByteBuffer is indexed by int.
+    private static final long MAX_MAPPED_BYTES = Integer.MAX_VALUE;
+
+    private final List<Layer> boundary;
+    private final int width;              // floats per sample
+    private final Map<Sample,Integer> slots = new IdentityHashMap<>();
+    private final BitSet saved = new BitSet();
+    private final float[][] heap;         // by slot, if not mapped
+    private final FloatBuffer[] mapped;   // slotsPerBuffer slots each, if mapped
+    private final int slotsPerBuffer;
+    private final RandomAccessFile file;
+
+    /**
+     * @param boundary the layers whose outputs to keep.
+     * @param samples the samples to keep them for.
+     * @param cacheFile where to map the outputs, or null to keep them on
+     * the heap. The file is overwritten, and truncated when the cache is
+     * closed.
+     * @throws IOException if the file cannot be mapped.
+     */
+    ActivationCache(List<Layer> boundary, List<Sample> samples, File cacheFile) throws IOException
+    {
+        this.boundary = boundary;
+        int w = 0;
+        for(Layer layer: boundary){
+            w += layer.size();
+        }
+        width = w;
+        for(Sample sample: samples){
+            if(!slots.containsKey(sample)){
+                slots.put(sample, slots.size());
+            }
+        }
+        int numSlots = slots.size();
+        if(cacheFile == null){
+            heap = new float[numSlots][];
+            mapped = null;
+            slotsPerBuffer = 0;
+            file = null;
+            return;
+        }
+        heap = null;
+        slotsPerBuffer = (int)Math.max(1, MAX_MAPPED_BYTES / (4L * Math.max(width, 1)));
+        mapped = new FloatBuffer[(numSlots + slotsPerBuffer - 1) / slotsPerBuffer];
+        file = new RandomAccessFile(cacheFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            for(int i = 0; i < mapped.length; i++){
+                long first = (long)i * slotsPerBuffer;
+                long count = Math.min(slotsPerBuffer, numSlots - first);
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE,
+                        4L * width * first, 4L * width * count);
+                mapped[i] = buf.asFloatBuffer();
+            }
+        } catch(IOException e){
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the size of the cached outputs of all the samples, in bytes.
+     */
+    long getSize()
+    {
+        return 4L * width * slots.size();
+    }
+
+    /**
+     * Put the saved boundary outputs of a sample back into the boundary
+     * layers.
+     * @param sample
+     * @return false, changing nothing, if the outputs of the sample have not
+     * been saved.
+     */
+    boolean restore(Sample sample)
+    {
+        Integer slot = slots.get(sample);
+        if(slot == null || !saved.get(slot)){
+            return false;
+        }
+        if(heap != null){
+            float[] out = heap[slot];
+            int i = 0;
+            for(Layer layer: boundary){
+                for(Neuron n: layer.getNeurons()){
+                    n.setOutput(out[i++]);
+                }
+            }
+        } else {
+            FloatBuffer buf = mapped[slot / slotsPerBuffer].duplicate();
+            buf.position((slot % slotsPerBuffer) * width);
+            for(Layer layer: boundary){
+                for(Neuron n: layer.getNeurons()){
+                    n.setOutput(buf.get());
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Save the boundary outputs of a sample, as just fed forward.
+     * @param sample
+     */
+    void save(Sample sample)
+    {
+        Integer slot = slots.get(sample);
+        if(slot == null){
+            return; // Not a training sample
+        }
+        if(heap != null){
+            float[] out = new float[width];
+            int i = 0;
+            for(Layer layer: boundary){
+                for(Neuron n: layer.getNeurons()){
+                    out[i++] = (float)n.getOutput();
+                }
+            }
+            heap[slot] = out;
+        } else {
+            FloatBuffer buf = mapped[slot / slotsPerBuffer].duplicate();
+            buf.position((slot % slotsPerBuffer) * width);
+            for(Layer layer: boundary){
+                for(Neuron n: layer.getNeurons()){
+                    buf.put((float)n.getOutput());
+                }
+            }
+        }
+        saved.set(slot);
+    }
+
+    /**
+     * Release the cached outputs. The mapped file, if any, is truncated;
+     * its pages are released when the buffers are garbage collected.
+     */
+    void close()
+    {
+        if(file != null){
+            try {
+                file.setLength(0);
+                file.close();
+            } catch(IOException e){
+                System.out.println("Cannot truncate the activation cache file: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package neural2d;
+
+import java.util.List;
+
+/**
+ * <p>
+ * The outputs of every neuron in the net for one sample, held outside of the
+ * neurons themselves so that more than one sample can be in flight through
+ * the net at the same time. Outputs are indexed by the index of the layer,
+ * then by the position of the neuron in the layer (row * columns + column).
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+public class Activations
+{
+    private final double[][] outputs;
+
+    public Activations(List<Layer> layers)
+    {
+        outputs = new double[layers.size()][];
+        for(Layer layer: layers){
+            outputs[layer.getIndex()] = new double[layer.size()];
+            if(layer.getLayerType() == LayerType.BIAS){
+                // The bias neuron's output never changes
+                capture(layer);
+            }
+        }
+    }
+
+    public double get(Neuron n)
+    {
+        Layer layer = n.getLayer();
+        return outputs[layer.getIndex()][n.getRow()*layer.getNumColumns() + n.getColumn()];
+    }
+
+    public void set(Neuron n, double val)
+    {
+        Layer layer = n.getLayer();
+        outputs[layer.getIndex()][n.getRow()*layer.getNumColumns() + n.getColumn()] = val;
+    }
+
+    // The outputs of the layer, by position, to read or write in place.
+    double[] getOutputs(Layer layer)
+    {
+        return outputs[layer.getIndex()];
+    }
+
+    /**
+     * Assign the sample inputs to the input layer.
+     * @param inputLayer
+     * @param inputs
+     */
+    public void setInputs(Layer inputLayer, Matrix inputs)
+    {
+        double[] out = outputs[inputLayer.getIndex()];
+        int cols = inputLayer.getNumColumns();
+        for(int row = 0; row < inputLayer.getNumRows(); row++){
+            for(int col = 0; col < cols; col++){
+                out[row*cols + col] = inputs.get(row, col);
+            }
+        }
+    }
+
+    /**
+     * Copy the outputs currently held by the neurons of the layer.
+     * @param layer
+     */
+    public void capture(Layer layer)
+    {
+        double[] out = outputs[layer.getIndex()];
+        List<Neuron> neurons = layer.getNeurons();
+        for(int i=0; i < out.length; i++){
+            out[i] = neurons.get(i).getOutput();
+        }
+    }
+
+    /**
+     * Copy these outputs back into the neurons of the layer, for example so
+     * that the usual backprop can run on this sample.
+     * @param layer
+     */
+    public void restore(Layer layer)
+    {
+        double[] out = outputs[layer.getIndex()];
+        List<Neuron> neurons = layer.getNeurons();
+        for(int i=0; i < out.length; i++){
+            neurons.get(i).setOutput(out[i]);
+        }
+    }
+}
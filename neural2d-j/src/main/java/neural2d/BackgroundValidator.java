@@ -0,0 +1,138 @@
+package neural2d;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ * Measures the error of the net on a held-out set of validation samples
+ * while it trains. Every validateEveryNth training samples, the training
+ * thread takes a NetSnapshot of the weights and hands it to a background
+ * thread, which scores the validation samples against it. Training carries
+ * on meanwhile; if the previous validation has not finished when the next
+ * is due, that one is skipped rather than making training wait.
+ * <p>
+ * The snapshot with the lowest validation error is kept. If patience is
+ * greater than zero and that many validations in a row fail to improve on
+ * it, training is asked to stop early.
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+class BackgroundValidator
+{
+    private final Net net;
+    private final List<Sample> samples;
+    private final int everyNth;
+    private final int patience;
+    private final ExecutorService executor;
+    private Future<?> pending;
+    private int samplesSinceLast;
+
+    // Written by the validation thread:
+    private volatile boolean stop;
+    private NetSnapshot best;
+    private double bestError = Double.MAX_VALUE;
+    private int sinceBest;
+    private int numValidations;
+
+    BackgroundValidator(Net net, List<Sample> samples, int everyNth, int patience)
+    {
+        this.net = net;
+        this.samples = samples;
+        this.everyNth = everyNth;
+        this.patience = patience;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "validation");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Called by the training thread after each training sample.
+     * @return true if training should stop because the validation error has
+     * stopped improving.
+     */
+    boolean afterSample()
+    {
+        // Once the last validation has asked training to stop, there is no
+        // point in starting another. It is checked after isDone(), so that a
+        // validation that has just finished is seen to have asked.
+        if(++samplesSinceLast >= everyNth && (pending == null || pending.isDone()) && !stop){
+            samplesSinceLast = 0;
+            final NetSnapshot snapshot = net.snapshot();
+            pending = executor.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    record(snapshot, getError(snapshot));
+                }
+            });
+        }
+        return stop;
+    }
+
+    private double getError(NetSnapshot snapshot)
+    {
+        double sum = 0.0;
+        for(Sample sample: samples){
+            sum += snapshot.getError(sample);
+        }
+        return sum / samples.size();
+    }
+
+    private synchronized void record(NetSnapshot snapshot, double error)
+    {
+        ++numValidations;
+        if(error < bestError){
+            bestError = error;
+            best = snapshot;
+            sinceBest = 0;
+        } else {
+            ++sinceBest;
+            if(patience > 0 && sinceBest >= patience){
+                stop = true;
+            }
+        }
+        System.out.println("Validation #" + numValidations + ": error = " + error
+                + ", best = " + bestError
+                + (sinceBest > 0 ? " (" + sinceBest + " validations ago)" : ""));
+    }
+
+    /**
+     * Called by the training thread when training ends. Waits for any
+     * validation in progress, then validates the final weights.
+     * @return the snapshot with the lowest validation error, or null if the
+     * final weights are the best.
+     */
+    NetSnapshot finish()
+    {
+        try {
+            if(pending != null){
+                pending.get();
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e){
+            throw new IllegalStateException("Validation failed.", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        NetSnapshot last = net.snapshot();
+        record(last, getError(last));
+        synchronized(this){
+            return best == last ? null : best;
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package neural2d;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import neural2d.config.ConfigurationException;
+import neural2d.config.LayerConfig;
+import neural2d.config.NetConfig;
+import neural2d.config.TopologyConfig;
+
+/**
+ * <p>
+ * Works out what a net will cost from its topology alone, before a Net is
+ * built: the number of neurons and connections of each layer, the memory
+ * they take, and the floating point operations of a forward and a backward
+ * pass. The connections are counted exactly, by laying out the windows of
+ * each layer with the same StencilGeometry as Net and Stencil, clipping and
+ * ellipse included, but without creating any neurons, connections or
+ * weights, so a topology that would take hours to connect or run out of
+ * memory is planned in moments.
+ * <p>
+ * The memory is an estimate: the weights, delta weights and optimizer state
+ * are counted exactly, the neurons and the per-neuron bookkeeping of the
+ * stencils at their typical size with compressed references. The operations
+ * count a multiply-add as two, and one per transfer function. calibrate()
+ * times a small net on this machine to turn them into an estimate of the
+ * time per sample.
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+public class CapacityPlanner
+{
+    // A neuron, its empty list of back connections, its slot in the layer's
+    // list of neurons, and its gradient sum:
+    private static final int NEURON_BYTES = 112;
+    private static final int WINDOW_BYTES = 12;       // per neuron, in each stencil
+    private static final int WEIGHT_BYTES = 16;       // the weight and its last delta
+    private static final int SNAPSHOT_NEURON_BYTES = 12;     // start, and activation
+    private static final int SNAPSHOT_CONNECTION_BYTES = 12; // source, and weight
+    private static final int UPDATE_FLOPS = 5;        // per weight, plus per double of state:
+    private static final int STATE_FLOPS = 3;
+    private static final double MB = 1024.0 * 1024.0;
+
+    // The net timed by calibrate(): windowed layers, and a dense output
+    // layer. It is large enough that the time goes to the connections rather
+    // than to starting the work of each layer.
+    private static final String CALIBRATION_NOM = "<net>"
+            + "<topology>"
+            + "<input><name>input</name><size>64x64</size></input>"
+            + "<layers><layer><name>lower</name><size>64x64</size><radius>4x4</radius><from>input</from></layer>"
+            + "<layer><name>upper</name><size>64x64</size><radius>4x4</radius><from>lower</from></layer></layers>"
+            + "<output><name>output</name><size>4x4</size><from>upper</from></output>"
+            + "</topology>"
+            + "<trainingParams><seed>1</seed></trainingParams>"
+            + "</net>";
+    private static final int CALIBRATION_SIZE = 64;
+    private static final long CALIBRATION_NANOS = 1000000000L;
+
+    /**
+     * The plan of one layer.
+     */
+    public static final class LayerPlan
+    {
+        private final String name;
+        private final int numNeurons;
+        private final LayerType type;
+        private long numConnections;    // back and bias
+        private int numStencils;
+        private int numDense;           // stencils whose weights are a dense matrix
+        private boolean trainable;
+        private boolean needsGradient;
+        private long heapBytes;
+        private long offHeapBytes;
+        private long forwardFlops;
+        private long backwardFlops;
+
+        LayerPlan(LayerConfig config, LayerType type)
+        {
+            this.name = config.getLayerName();
+            this.numNeurons = config.getNumRows() * config.getNumColumns();
+            this.type = type;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public int getNumNeurons()
+        {
+            return numNeurons;
+        }
+
+        /**
+         * @return the number of back connections, bias connections included,
+         * as counted by Layer.getNumBackConnections().
+         */
+        public long getNumConnections()
+        {
+            return numConnections;
+        }
+
+        /**
+         * @return true if every source of the layer is fully connected, and
+         * its weights kept as a dense matrix.
+         */
+        public boolean isDense()
+        {
+            return numStencils > 0 && numDense == numStencils;
+        }
+
+        public long getHeapBytes()
+        {
+            return heapBytes;
+        }
+
+        public long getOffHeapBytes()
+        {
+            return offHeapBytes;
+        }
+
+        public long getForwardFlops()
+        {
+            return forwardFlops;
+        }
+
+        /**
+         * @return the operations of backprop and the weight update.
+         */
+        public long getBackwardFlops()
+        {
+            return backwardFlops;
+        }
+    }
+
+    private final List<LayerPlan> layers = new ArrayList<>();
+    private final boolean offHeap;
+    private final Optimizer optimizer;
+    private final int stateSize;
+    private double forwardNanosPerFlop;   // 0.0 until calibrated
+    private double backwardNanosPerFlop;
+
+    /**
+     * Plan the net of a NOM. The weights, if any, are ignored.
+     * @param config
+     * @throws ConfigurationException if Net could not connect the topology.
+     */
+    public CapacityPlanner(NetConfig config) throws ConfigurationException
+    {
+        offHeap = config.getTrainingParameters().isOffHeapWeights();
+        optimizer = config.getTrainingParameters().getOptimizer();
+        stateSize = optimizer.getStateSize();
+        TopologyConfig topology = config.getTopologyConfig();
+        List<LayerConfig> configs = new ArrayList<>();
+
+        LayerConfig inputConfig = topology.getInputLayerConfig();
+        LayerPlan input = new LayerPlan(inputConfig, LayerType.INPUT);
+        input.heapBytes = (long)input.numNeurons * NEURON_BYTES;
+        layers.add(input);
+        configs.add(inputConfig);
+
+        for(LayerConfig hiddenConfig: topology.getHiddenLayerConfig()){
+            planLayer(new LayerPlan(hiddenConfig, LayerType.HIDDEN), hiddenConfig, configs);
+        }
+        LayerConfig outputConfig = topology.getOutputLayerConfig();
+        planLayer(new LayerPlan(outputConfig, LayerType.OUTPUT), outputConfig, configs);
+    }
+
+    // Plans a layer after the input layer, given the configurations of the
+    // layers before it, in the order Net.configure() creates them.
+    private void planLayer(LayerPlan plan, LayerConfig config, List<LayerConfig> configs)
+            throws ConfigurationException
+    {
+        if(config.isConvolutionLayer()){
+            throw new ConfigurationException("Layer '" + plan.name
+                    + "' is a convolution layer, which the net cannot connect yet.");
+        }
+        plan.trainable = !config.isFrozen();
+        plan.needsGradient = plan.trainable;
+        plan.heapBytes = (long)plan.numNeurons * NEURON_BYTES;
+        long weightGradientFlops = 0;
+        for(String sourceName: config.getFromLayerNames()){
+            int index = -1;
+            for(int i = 0; i < configs.size(); i++){
+                if(configs.get(i).getLayerName().equals(sourceName)){
+                    index = i;
+                }
+            }
+            if(index < 0){
+                throw new ConfigurationException("Layer '" + plan.name
+                        + "' is fed by '" + sourceName + "', which comes after it.");
+            }
+            LayerPlan source = layers.get(index);
+            boolean first = plan.numStencils == 0;
+            long connections = planStencil(plan, config, configs.get(index));
+            plan.numConnections += connections + (first ? plan.numNeurons : 0);
+            if(source.type == LayerType.HIDDEN && source.needsGradient){
+                plan.needsGradient = true;
+                weightGradientFlops += 2 * connections;
+            }
+        }
+
+        long weightBytes = plan.numConnections * WEIGHT_BYTES;
+        plan.heapBytes += (long)plan.numStencils * plan.numNeurons * WINDOW_BYTES
+                + plan.numConnections * 8 * stateSize + (offHeap ? 0 : weightBytes);
+        plan.offHeapBytes = offHeap ? weightBytes : 0;
+        plan.forwardFlops = 2 * plan.numConnections + plan.numNeurons;
+        if(plan.needsGradient){
+            plan.backwardFlops = 2L * plan.numNeurons + weightGradientFlops;
+        }
+        if(plan.trainable){
+            plan.backwardFlops += plan.numConnections * (UPDATE_FLOPS + STATE_FLOPS * stateSize);
+        }
+        layers.add(plan);
+        configs.add(config);
+    }
+
+    // Lays out the windows of one source layer for every neuron of the layer,
+    // as Net.layOutStencil() does, and returns the number of connections from
+    // that source.
+    private long planStencil(LayerPlan plan, LayerConfig layerTo, LayerConfig layerFrom)
+            throws ConfigurationException
+    {
+        Map<Long,Stencil.Mask> masks = new HashMap<>();
+        int fromRows = layerFrom.getNumRows();
+        int fromColumns = layerFrom.getNumColumns();
+        int sourceSize = fromRows * fromColumns;
+        long connections = 0;
+        boolean coversSource = true;
+        Stencil.Mask firstMask = null;
+        for(int row = 0; row < layerTo.getNumRows(); ++row){
+            for(int col = 0; col < layerTo.getNumColumns(); ++col){
+                int[] window = StencilGeometry.window(layerTo.getNumRows(), layerTo.getNumColumns(),
+                        layerTo.getRadiusX(), layerTo.getRadiusY(), fromRows, fromColumns, row, col);
+                int width = window[1] - window[0] + 1;
+                int height = window[3] - window[2] + 1;
+                Long key = ((long)width << 32) | height;
+                Stencil.Mask mask = masks.get(key);
+                if(mask == null){
+                    mask = new Stencil.Mask(width, height, StencilGeometry.maskOffsets(width, height,
+                            layerTo.isRectangular(), layerTo.getRadiusX(), layerTo.getRadiusY(), fromColumns));
+                    masks.put(key, mask);
+                }
+                if(StencilGeometry.base(window, fromColumns) + mask.maxOffset >= sourceSize){
+                    throw new ConfigurationException("The window of neuron "
+                            + (row * layerTo.getNumColumns() + col) + " of layer " + plan.name
+                            + " falls outside source layer " + layerFrom.getLayerName() + ".");
+                }
+                if(firstMask == null){
+                    firstMask = mask;
+                }
+                connections += mask.size();
+                coversSource &= StencilGeometry.coversSource(window, fromRows, fromColumns);
+            }
+        }
+        ++plan.numStencils;
+        if(coversSource && firstMask != null && StencilGeometry.isPermutation(firstMask.offsets, sourceSize)){
+            ++plan.numDense;
+        }
+        return connections;
+    }
+
+    /**
+     * @return the plan of each layer, input first, in order of forward
+     * propagation.
+     */
+    public List<LayerPlan> getLayers()
+    {
+        return Collections.unmodifiableList(layers);
+    }
+
+    public long getNumNeurons()
+    {
+        long n = 0;
+        for(LayerPlan layer: layers){
+            n += layer.numNeurons;
+        }
+        return n;
+    }
+
+    public long getNumConnections()
+    {
+        long n = 0;
+        for(LayerPlan layer: layers){
+            n += layer.numConnections;
+        }
+        return n;
+    }
+
+    /**
+     * @return the estimated heap used by the net while training.
+     */
+    public long getHeapBytes()
+    {
+        long n = 0;
+        for(LayerPlan layer: layers){
+            n += layer.heapBytes;
+        }
+        return n;
+    }
+
+    /**
+     * @return the memory outside the heap used for the weights, if the
+     * training parameters keep them there.
+     */
+    public long getOffHeapBytes()
+    {
+        long n = 0;
+        for(LayerPlan layer: layers){
+            n += layer.offHeapBytes;
+        }
+        return n;
+    }
+
+    /**
+     * @return the size of a NetSnapshot of the net, and of the file it is
+     * saved to, not counting the activations of each scoring thread.
+     */
+    public long getSnapshotBytes()
+    {
+        return (getNumNeurons() - layers.get(0).numNeurons) * SNAPSHOT_NEURON_BYTES
+                + getNumConnections() * SNAPSHOT_CONNECTION_BYTES;
+    }
+
+    public long getForwardFlops()
+    {
+        long n = 0;
+        for(LayerPlan layer: layers){
+            n += layer.forwardFlops;
+        }
+        return n;
+    }
+
+    public long getBackwardFlops()
+    {
+        long n = 0;
+        for(LayerPlan layer: layers){
+            n += layer.backwardFlops;
+        }
+        return n;
+    }
+
+    /**
+     * Time the forward and backward passes of a small net on this machine,
+     * with the optimizer of the planned net, to estimate its time per sample.
+     * Takes a few seconds.
+     * @throws ConfigurationException
+     */
+    public void calibrate() throws ConfigurationException
+    {
+        NetConfig config = NetConfig.parseConfig(new ByteArrayInputStream(CALIBRATION_NOM.getBytes()));
+        config.getTrainingParameters().setOptimizer(optimizer);
+        CapacityPlanner plan = new CapacityPlanner(config);
+        Net net = new Net(config);
+        try {
+            Random rand = new Random(1);
+            List<Sample> samples = new ArrayList<>();
+            for(int i = 0; i < 16; i++){
+                Matrix m = new Matrix(CALIBRATION_SIZE, CALIBRATION_SIZE);
+                for(int row = 0; row < CALIBRATION_SIZE; row++){
+                    for(int col = 0; col < CALIBRATION_SIZE; col++){
+                        m.set(row, col, rand.nextDouble());
+                    }
+                }
+                Matrix target = new Matrix(4, 4);
+                target.set(rand.nextInt(4), rand.nextInt(4), 1.0);
+                samples.add(Sample.createSample(m, target));
+            }
+            // Once to warm up, then for the measurement:
+            long[] nanos = null;
+            for(int round = 0; round < 2; round++){
+                nanos = new long[2];
+                long passes = 0;
+                while(nanos[0] + nanos[1] < CALIBRATION_NANOS / 2){
+                    for(Sample sample: samples){
+                        long t0 = System.nanoTime();
+                        net.feedForward(sample);
+                        long t1 = System.nanoTime();
+                        net.backProp(sample);
+                        nanos[0] += t1 - t0;
+                        nanos[1] += System.nanoTime() - t1;
+                        ++passes;
+                    }
+                }
+                forwardNanosPerFlop = (double)nanos[0] / passes / plan.getForwardFlops();
+                backwardNanosPerFlop = (double)nanos[1] / passes / plan.getBackwardFlops();
+            }
+        } catch(Net.SampleException e){
+            throw new IllegalStateException(e);
+        } finally {
+            net.close();
+        }
+    }
+
+    /**
+     * @return a table of the layers and the totals, for printing.
+     */
+    public String report()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-16s %10s %14s %6s %10s %10s %10s%n", "Layer", "Neurons",
+                "Connections", "Dense", "Heap MB", "Fwd MFLOP", "Bwd MFLOP"));
+        for(LayerPlan layer: layers){
+            sb.append(String.format("%-16s %10d %14d %6s %10.1f %10.2f %10.2f%n", layer.name,
+                    layer.numNeurons, layer.numConnections, layer.isDense() ? "yes" : "",
+                    (layer.heapBytes + layer.offHeapBytes) / MB,
+                    layer.forwardFlops / 1e6, layer.backwardFlops / 1e6));
+        }
+        sb.append(String.format("%-16s %10d %14d %6s %10.1f %10.2f %10.2f%n", "Total",
+                getNumNeurons(), getNumConnections(), "",
+                (getHeapBytes() + getOffHeapBytes()) / MB,
+                getForwardFlops() / 1e6, getBackwardFlops() / 1e6));
+        sb.append(String.format("Training needs about %.1f MB of heap", getHeapBytes() / MB));
+        if(offHeap){
+            sb.append(String.format(" and %.1f MB off the heap", getOffHeapBytes() / MB));
+        }
+        sb.append(String.format(".%nA snapshot for inference takes %.1f MB.%n", getSnapshotBytes() / MB));
+        if(forwardNanosPerFlop > 0.0){
+            double forward = getForwardFlops() * forwardNanosPerFlop / 1e6;
+            double backward = getBackwardFlops() * backwardNanosPerFlop / 1e6;
+            sb.append(String.format("On this machine, a training sample takes about %.2f ms"
+                    + " (%.2f forward, %.2f backward).%n",
+                    forward + backward, forward, backward));
+        }
+        return sb.toString();
+    }
+}
@@ -22,7 +22,7 @@ public class Connection implements NetElement
     @Override
     public String toString()
     {
-        return "Connection(" + fromNeuron + "--(" + weight + "/" + deltaWeight + ")-->" + toNeuron + ")";
+        return "Connection(" + getFromNeuron() + "--(" + getWeight() + "/" + getDeltaWeight() + ")-->" + getToNeuron() + ")";
     }
 
     public double getWeight()
@@ -1,10 +1,16 @@
 package neural2d;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
 import neural2d.Command.JoinableResult;
 import neural2d.config.LayerConfig;
 
@@ -18,7 +24,23 @@ public abstract class Layer implements NetElement
     private final LayerConfig params;
     private final List<Neuron> neurons; // 2d array, flattened index = y * sizeX + x
     private final int numNeurons;
-    private final ForkJoinPool pool = new ForkJoinPool();
+    private ForkJoinPool pool; // the net's, shared by all its layers
+    private int index = -1; // position of this layer in the net's list of layers
+    private final List<Layer> sources = new ArrayList<>(); // the layers this one is fed by
+    private final List<Layer> sinks = new ArrayList<>(); // the layers this one feeds
+    // How the neurons connect to each source layer, if implicitly; the first
+    // one also connects them to the bias neuron.
+    private final List<Stencil> stencils = new ArrayList<>();
+    private final List<Stencil> stencilView = Collections.unmodifiableList(stencils);
+    private double[] gradientSums; // for backprop; see getGradientSums()
+    private boolean needsGradient = true; // see needsGradient()
+    private double gradientEpsilon;  // see setUpdateEpsilons()
+    private double momentumEpsilon;
+    private final AtomicLong weightUpdates = new AtomicLong();
+    private final AtomicLong skippedWeightUpdates = new AtomicLong();
+    // The explicit back connections of this layer by source neuron, for
+    // traversals in the forward direction; built the first time one is made.
+    private volatile Map<Neuron,List<Connection>> forwardIndex;
 
     public Layer(LayerConfig params)
     {
@@ -32,6 +54,74 @@ public abstract class Layer implements NetElement
 
     public abstract LayerType getLayerType();
 
+    /**
+     *
+     * @return the position of this layer in the net's list of layers, which
+     * is also the order of forward propagation.
+     */
+    public int getIndex()
+    {
+        return index;
+    }
+
+    void setIndex(int index)
+    {
+        this.index = index;
+    }
+
+    // Must be set before the layer executes any commands.
+    void setPool(ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    // Runs a task in the pool. A task that is already running in the pool,
+    // such as a branch of the net being fed forward at the same time as
+    // others, runs it directly, and the pool's other threads join in.
+    <T> T invoke(ForkJoinTask<T> task)
+    {
+        if(ForkJoinTask.getPool() == pool){
+            return task.invoke();
+        }
+        return pool.invoke(task);
+    }
+
+    // Work on a range of the neurons of a layer, or of the rows or columns
+    // of a weight matrix.
+    interface Range
+    {
+        void run(int start, int end);
+    }
+
+    @SuppressWarnings("serial")
+    static final class RangeTask extends RecursiveAction
+    {
+        private static final long MAX_WORK = 1 << 15; // multiply-adds per task, before splitting
+        private final Range range;
+        private final int start, end;
+        private final int workPerItem;
+
+        RangeTask(Range range, int start, int end, int workPerItem)
+        {
+            this.range = range;
+            this.start = start;
+            this.end = end;
+            this.workPerItem = workPerItem;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if(end - start > 1 && (long)(end - start) * workPerItem > MAX_WORK){
+                int mid = (start + end) >>> 1;
+                invokeAll(new RangeTask(range, start, mid, workPerItem),
+                        new RangeTask(range, mid, end, workPerItem));
+            } else {
+                range.run(start, end);
+            }
+        }
+    }
+
     @Override
     public void accept(NetElementVisitor v)
     {
@@ -42,6 +132,11 @@ public abstract class Layer implements NetElement
         }
     }
 
+    LayerConfig getConfig()
+    {
+        return params;
+    }
+
     public TransferFunction getTransferFunction()
     {
         return params.getTransferFunction();
@@ -99,6 +194,113 @@ public abstract class Layer implements NetElement
         return params.isClassifier();
     }
 
+    /**
+     * @return true if training leaves the weights into this layer alone.
+     */
+    public boolean isFrozen()
+    {
+        return params.isFrozen();
+    }
+
+    /**
+     * @return true if training changes the weights into this layer: it is
+     * neither frozen nor a convolution layer.
+     */
+    public boolean isTrainable()
+    {
+        return !isFrozen() && !isConvolutionLayer();
+    }
+
+    /**
+     * For backprop training
+     * @return true if backprop must calculate the gradients of this layer:
+     * it is trainable itself, or it feeds back into a layer that needs
+     * them. Backprop stops at the layers that don't.
+     */
+    boolean needsGradient()
+    {
+        return needsGradient;
+    }
+
+    void setNeedsGradient(boolean needsGradient)
+    {
+        this.needsGradient = needsGradient;
+    }
+
+    /**
+     * For backprop training
+     * Let updateInputWeights() skip the update of a neuron whose gradient is
+     * smaller than gradientEpsilon and whose momentum, alpha times its
+     * largest delta weight, is no more than momentumEpsilon. Its weights
+     * then stay as they are, to within those epsilons, and it writes none of
+     * them. An optimizer that keeps state of its own never skips, since the
+     * state would go stale.
+     * @param gradientEpsilon 0 to update every neuron.
+     * @param momentumEpsilon
+     */
+    void setUpdateEpsilons(double gradientEpsilon, double momentumEpsilon)
+    {
+        this.gradientEpsilon = gradientEpsilon;
+        this.momentumEpsilon = momentumEpsilon;
+    }
+
+    /**
+     * @param gradient the gradient of a neuron of this layer.
+     * @param optimizer
+     * @return true if the update of a neuron with this gradient may be
+     * skipped, provided alpha times its largest delta weight is small
+     * enough; see isMomentumNegligible().
+     */
+    boolean canSkipUpdate(double gradient, Optimizer optimizer)
+    {
+        return gradientEpsilon > 0.0 && Math.abs(gradient) < gradientEpsilon
+                && optimizer.getStateSize() == 0;
+    }
+
+    boolean isMomentumNegligible(double maxDeltaWeight, double alpha)
+    {
+        return alpha * maxDeltaWeight <= momentumEpsilon;
+    }
+
+    // Count the weights that updateInputWeights() was to update, and how many
+    // of them it skipped.
+    void countWeightUpdates(long count, long skipped)
+    {
+        if(count > 0){
+            weightUpdates.addAndGet(count);
+        }
+        if(skipped > 0){
+            skippedWeightUpdates.addAndGet(skipped);
+        }
+    }
+
+    /**
+     * @return the number of weights updateInputWeights() was to update, over
+     * all the calls to it.
+     */
+    long getWeightUpdates()
+    {
+        return weightUpdates.get();
+    }
+
+    /**
+     * @return how many of getWeightUpdates() were skipped; see
+     * setUpdateEpsilons().
+     */
+    long getSkippedWeightUpdates()
+    {
+        return skippedWeightUpdates.get();
+    }
+
+    /**
+     * @return true if this layer's outputs are the softmax of its neurons'
+     * sums; see Softmax.
+     */
+    public boolean isSoftmax()
+    {
+        return params.isSoftmax();
+    }
+
     public ColorChannel getChannel()
     {
         return params.getChannel();
@@ -106,6 +308,7 @@ public abstract class Layer implements NetElement
 
     /**
      * Creates a neuron in this layer at the given x,y location and returns it.
+     * If the layer has stencils, the neuron is connected by the stencils.
      * @param row
      * @param col
      * @param tf
@@ -113,11 +316,142 @@ public abstract class Layer implements NetElement
      */
     public Neuron createNeuron(int row, int col, TransferFunction tf)
     {
-        Neuron n = new NeuronImpl(tf, this, row, col );
+        Neuron n;
+        if(stencils.isEmpty()){
+            n = new NeuronImpl(tf, this, row, col );
+        } else {
+            n = new StencilNeuron(tf, this, row, col, stencilView);
+        }
         addNeuron(n, row, col);
         return n;
     }
 
+    /**
+     * @return the stencils that connect the neurons of this layer to their
+     * sources, one per source layer, or none if they have explicit
+     * connections.
+     */
+    List<Stencil> getStencils()
+    {
+        return stencilView;
+    }
+
+    // Must be added before the neurons are created.
+    void addStencil(Stencil stencil)
+    {
+        stencils.add(stencil);
+    }
+
+    /**
+     * @return the layers that feed this one, not counting the bias layer, in
+     * the order they were connected.
+     */
+    public List<Layer> getSources()
+    {
+        return Collections.unmodifiableList(sources);
+    }
+
+    void addSource(Layer source)
+    {
+        sources.add(source);
+    }
+
+    /**
+     * @return the layers that the neurons of this layer feed. The neurons do
+     * not keep their forward connections; those are found from the back
+     * connections of the sink layers.
+     */
+    List<Layer> getSinks()
+    {
+        return sinks;
+    }
+
+    void addSink(Layer sink)
+    {
+        sinks.add(sink);
+    }
+
+    private Map<Neuron,List<Connection>> getForwardIndex()
+    {
+        Map<Neuron,List<Connection>> index = forwardIndex;
+        if(index == null){
+            synchronized(this){
+                index = forwardIndex;
+                if(index == null){
+                    index = buildForwardIndex();
+                    forwardIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    private Map<Neuron,List<Connection>> buildForwardIndex()
+    {
+        final Map<Neuron,List<Connection>> index = new IdentityHashMap<>();
+        NetElementVisitor v = new NetElementVisitor()
+        {
+            @Override
+            public boolean visit(Connection conn)
+            {
+                List<Connection> conns = index.get(conn.getFromNeuron());
+                if(conns == null){
+                    conns = new ArrayList<>();
+                    index.put(conn.getFromNeuron(), conns);
+                }
+                conns.add(conn);
+                return false;
+            }
+        };
+        for(Neuron neuron: neurons){
+            neuron.acceptBackward(v);
+        }
+        return index;
+    }
+
+    /**
+     * @param source a neuron of a layer that feeds this one.
+     * @return the number of neurons of this layer that the source feeds.
+     */
+    int getNumForwardConnections(Neuron source)
+    {
+        if(!stencils.isEmpty()){
+            int count = 0;
+            for(Stencil stencil: stencils){
+                if(feeds(stencil, source)){
+                    count += stencil.getNumForwardConnections(source);
+                }
+            }
+            return count;
+        }
+        List<Connection> conns = getForwardIndex().get(source);
+        return conns == null ? 0 : conns.size();
+    }
+
+    /**
+     * Visit the connections from the source to the neurons of this layer that
+     * it feeds, in the order of those neurons.
+     * @param source a neuron of a layer that feeds this one.
+     * @param v
+     */
+    void acceptForward(Neuron source, NetElementVisitor v)
+    {
+        if(!stencils.isEmpty()){
+            for(Stencil stencil: stencils){
+                if(feeds(stencil, source)){
+                    stencil.acceptForward(source, v);
+                }
+            }
+            return;
+        }
+        List<Connection> conns = getForwardIndex().get(source);
+        if(conns != null){
+            for(Connection conn: conns){
+                conn.accept(v);
+            }
+        }
+    }
+
     public int getNumColumns()
     {
         return params.getNumColumns();
@@ -153,6 +487,12 @@ public abstract class Layer implements NetElement
         return neurons.get(row*getNumColumns() + col);
     }
 
+    // The neuron at the given flattened index, row * columns + column.
+    Neuron getNeuron(int index)
+    {
+        return neurons.get(index);
+    }
+
     public List<Neuron> getNeurons()
     {
         return Collections.unmodifiableList(neurons);
@@ -163,10 +503,17 @@ public abstract class Layer implements NetElement
         return numNeurons;
     }
 
+    // Returns true if the source is a neuron of the stencil's source layer, or
+    // the stencil's bias neuron.
+    private static boolean feeds(Stencil stencil, Neuron source)
+    {
+        return source.getLayer() == stencil.getSourceLayer() || source == stencil.getBiasNeuron();
+    }
+
     private static class ConnectionCountVisitor extends NetElementVisitor
     {
         private static final int FORWARD = 0;
-        private static final int BACKWARD = 0;
+        private static final int BACKWARD = 1;
         private final int dir;
         int count = 0;
         public ConnectionCountVisitor(int dir)
@@ -214,7 +561,180 @@ public abstract class Layer implements NetElement
     public <T> T executeCommand(Command<Neuron,T> action)
     {
         LayerTask<T> lAction = new LayerTask<>(action);
-        return pool.invoke(lAction).getResult();
+        return invoke(lAction).getResult();
+    }
+
+    /**
+     * Feed forward all the neurons of this layer, as the FeedForwardCommand
+     * would. A layer connected by stencils sums the weighted inputs through
+     * each stencil for all its neurons at once, a dense stencil as a single
+     * matrix-vector product, then passes the sums through the transfer
+     * function. A softmax layer then normalizes the outputs together.
+     * @param activations where to read the source outputs and write the
+     * outputs, or null to use the neurons.
+     */
+    void feedForward(final Activations activations)
+    {
+        if(stencils.isEmpty()){
+            executeCommand(new Neuron.FeedForwardCommand(activations));
+        } else {
+            feedForwardStencils(activations);
+        }
+        if(isSoftmax()){
+            normalizeOutputs(activations);
+        }
+    }
+
+    // The stencil part of feedForward().
+    private void feedForwardStencils(final Activations activations)
+    {
+        final double[] sums = new double[numNeurons];
+        for(Stencil stencil: stencils){
+            stencil.addWeightedSums(activations, sums);
+        }
+        invoke(new RangeTask(new Range()
+        {
+            @Override
+            public void run(int start, int end)
+            {
+                for(int i = start; i < end; i++){
+                    ((StencilNeuron)neurons.get(i)).fire(sums[i], activations);
+                }
+            }
+        }, 0, numNeurons, 16));
+    }
+
+    /**
+     * For backprop training
+     * The sum, for each neuron of this layer, of the weights from it times
+     * the gradients of the neurons it feeds, indexed like the neurons. The
+     * layers it feeds add their contributions in backPropagate().
+     * @return
+     */
+    double[] getGradientSums()
+    {
+        return gradientSums;
+    }
+
+    // For backprop training
+    // Must be called before the layers this one feeds back propagate.
+    void clearGradientSums()
+    {
+        if(gradientSums == null){
+            gradientSums = new double[numNeurons];
+        } else {
+            Arrays.fill(gradientSums, 0.0);
+        }
+    }
+
+    /**
+     * Set the outputs of a softmax layer to the softmax of its neurons' sums,
+     * all in one pass. Each neuron's own output, before this, is its sum.
+     * @param activations where to read the sums and write the outputs, or
+     * null to use the neurons.
+     */
+    void normalizeOutputs(Activations activations)
+    {
+        if(activations != null){
+            Softmax.normalize(activations.getOutputs(this), 0, numNeurons);
+            return;
+        }
+        double[] outputs = new double[numNeurons];
+        for(int i = 0; i < numNeurons; i++){
+            outputs[i] = neurons.get(i).getSum();
+        }
+        Softmax.normalize(outputs, 0, numNeurons);
+        for(int i = 0; i < numNeurons; i++){
+            neurons.get(i).setOutput(outputs[i]);
+        }
+    }
+
+    /**
+     * For backprop training
+     * Calculate the gradients of the neurons of this output layer, as the
+     * CalculateGradientsCommand would. The gradient of a softmax layer,
+     * trained against cross-entropy, is just each class probability of the
+     * targets minus the output, since the derivative of the softmax cancels
+     * against that of the log in the cross-entropy.
+     * @param targets
+     */
+    void calcOutputGradients(Matrix targets)
+    {
+        if(!isSoftmax()){
+            executeCommand(new Neuron.CalculateGradientsCommand(targets));
+            return;
+        }
+        double[] p = Softmax.probabilities(targets);
+        for(int i = 0; i < numNeurons; i++){
+            Neuron n = neurons.get(i);
+            n.setGradient(p[i] - n.getOutput());
+        }
+    }
+
+    /**
+     * For backprop training
+     * Called once the gradients of this layer are known, before those of the
+     * source layers are calculated. Each neuron scatters its gradient back
+     * along its weights, adding weight * gradient to the gradient sum of
+     * each hidden source neuron whose layer needs gradients. A layer
+     * connected by stencils does so through the masks of each stencil, or,
+     * for a dense stencil, as one product of its transposed weight matrix and
+     * the gradients.
+     */
+    void backPropagate()
+    {
+        if(!stencils.isEmpty()){
+            for(Stencil stencil: stencils){
+                stencil.backPropagate();
+            }
+            return;
+        }
+        ScatterVisitor v = new ScatterVisitor();
+        for(Neuron neuron: neurons){
+            v.gradient = neuron.getGradient();
+            neuron.acceptBackward(v);
+        }
+    }
+
+    private static class ScatterVisitor extends NetElementVisitor
+    {
+        double gradient;
+
+        @Override
+        public boolean visit(Connection conn)
+        {
+            Neuron from = conn.getFromNeuron();
+            Layer fromLayer = from.getLayer();
+            if(fromLayer.getLayerType() == LayerType.HIDDEN && fromLayer.needsGradient){
+                fromLayer.gradientSums[from.getRow() * fromLayer.getNumColumns() + from.getColumn()]
+                        += conn.getWeight() * gradient;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * For backprop training
+     * Update the input weights of all the neurons of this layer, as the
+     * InputWeightsCommand would. A layer connected by stencils updates the
+     * weights of each stencil for all its neurons at once.
+     */
+    void updateInputWeights(double eta, double alpha, Optimizer optimizer, long step)
+    {
+        if(stencils.isEmpty()){
+            executeCommand(new Neuron.InputWeightsCommand(eta, alpha, optimizer, step));
+            if(gradientEpsilon > 0.0){
+                long count = 0;
+                for(Neuron n: neurons){
+                    count += n.getNumBackConnections();
+                }
+                countWeightUpdates(count, 0);
+            }
+            return;
+        }
+        for(Stencil stencil: stencils){
+            stencil.updateInputWeights(eta, alpha, optimizer, step);
+        }
     }
 
     static class AccumulateForwardWeights implements Command<Layer,Double>
@@ -285,8 +805,14 @@ public abstract class Layer implements NetElement
         protected JoinableResult<T> compute()
         {
             if(!action.canParallelize() || numCols*numRows < 128 /* && numSplits < numProcessors */){
+                // Only the neurons in this task's block; the other tasks
+                // have the rest of the layer.
                 LayerTaskVisitor v = new LayerTaskVisitor();
-                accept(v);
+                for(int row = startRow; row < startRow + numRows; row++){
+                    for(int col = startCol; col < startCol + numCols; col++){
+                        v.visit(getNeuron(row, col));
+                    }
+                }
                 return v.result;
             } else {
                 LayerTask<T> left, right;
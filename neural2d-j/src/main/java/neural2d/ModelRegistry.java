@@ -0,0 +1,334 @@
+package neural2d;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import neural2d.config.ConfigurationException;
+import neural2d.config.NetConfig;
+
+/**
+ * <p>
+ * Serves several trained nets side by side. Each model is loaded into a Net
+ * only long enough to take a NetSnapshot of it, so the models do not each
+ * keep their own thread pools; all scoring runs on one shared pool. Each
+ * model has a limit on how many of its requests may be scored at the same
+ * time, so that a busy model cannot take every thread in the pool. Requests
+ * over the limit wait in a queue for that model, not in the pool.
+ * <p>
+ * When several models score the same sample, the image is converted to
+ * inputs once per color channel and the result shared between them. The
+ * conversions are held only as long as the Sample itself is referenced.
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+public class ModelRegistry
+{
+    private final ExecutorService executor;
+    private final Map<String, Model> models = new ConcurrentHashMap<>();
+    private final Map<Sample, Map<ColorChannel, FutureTask<Matrix>>> decoded
+            = Collections.synchronizedMap(new WeakHashMap<Sample, Map<ColorChannel, FutureTask<Matrix>>>());
+    private final AtomicLong decodes = new AtomicLong();
+    private final AtomicLong decodesShared = new AtomicLong();
+    private final long startTime = System.nanoTime();
+    private volatile boolean shutDown;
+
+    private class Model
+    {
+        final String name;
+        final NetSnapshot snapshot;
+        final int maxConcurrent;
+        private final Queue<FutureTask<Matrix>> waiting = new ArrayDeque<>();
+        private int running;
+
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong totalLatency = new AtomicLong(); // from submit to done, ns
+        final AtomicLong totalService = new AtomicLong(); // scoring only, ns
+        final AtomicLong maxLatency = new AtomicLong();
+
+        Model(String name, NetSnapshot snapshot, int maxConcurrent)
+        {
+            this.name = name;
+            this.snapshot = snapshot;
+            this.maxConcurrent = maxConcurrent;
+        }
+
+        Future<Matrix> submit(final Sample sample)
+        {
+            final long submitted = System.nanoTime();
+            FutureTask<Matrix> task = new FutureTask<Matrix>(new Callable<Matrix>()
+            {
+                @Override
+                public Matrix call() throws Exception
+                {
+                    long start = System.nanoTime();
+                    try {
+                        Matrix outputs = snapshot.score(inputsFor(sample, snapshot.getInputChannel()));
+                        completed.incrementAndGet();
+                        return outputs;
+                    } catch (Exception e){
+                        failed.incrementAndGet();
+                        throw e;
+                    } finally {
+                        long end = System.nanoTime();
+                        totalService.addAndGet(end - start);
+                        record(end - submitted);
+                        finished();
+                    }
+                }
+            });
+            synchronized(this){
+                if(shutDown){
+                    throw new RejectedExecutionException("The registry has been shut down.");
+                }
+                if(running < maxConcurrent){
+                    ++running;
+                } else {
+                    waiting.add(task);
+                    return task;
+                }
+            }
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e){
+                finished();
+                throw e;
+            }
+            return task;
+        }
+
+        // Start the next waiting request, if any, in place of one that finished.
+        // If the pool has been shut down, the waiting requests are cancelled
+        // instead, and the slot given back.
+        private void finished()
+        {
+            while(true){
+                FutureTask<Matrix> next;
+                synchronized(this){
+                    next = waiting.poll();
+                    if(next == null){
+                        --running;
+                        return;
+                    }
+                }
+                try {
+                    executor.execute(next);
+                    return;
+                } catch (RejectedExecutionException e){
+                    next.cancel(false);
+                }
+            }
+        }
+
+        // Cancel the requests that have not started.
+        private void cancelWaiting()
+        {
+            synchronized(this){
+                for(FutureTask<Matrix> task: waiting){
+                    task.cancel(false);
+                }
+                waiting.clear();
+            }
+        }
+
+        private void record(long latency)
+        {
+            totalLatency.addAndGet(latency);
+            long max = maxLatency.get();
+            while(latency > max && !maxLatency.compareAndSet(max, latency)){
+                max = maxLatency.get();
+            }
+        }
+    }
+
+    /**
+     * @param numThreads the number of threads shared by all the models.
+     */
+    public ModelRegistry(int numThreads)
+    {
+        this(Executors.newFixedThreadPool(numThreads));
+    }
+
+    // Scoring on the given pool, which the registry shuts down with itself.
+    ModelRegistry(ExecutorService executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Load a trained net from a .nom file and register it.
+     * @param name the name by which requests will refer to the model.
+     * @param nomFile
+     * @param maxConcurrent how many requests for this model may be scored at
+     * the same time.
+     * @throws ConfigurationException if the file cannot be loaded.
+     */
+    public void load(String name, File nomFile, int maxConcurrent) throws ConfigurationException
+    {
+        Net net = new Net(NetConfig.parseConfig(nomFile));
+        NetSnapshot snapshot = net.snapshot();
+        net.close();
+        register(name, snapshot, maxConcurrent);
+    }
+
+    /**
+     * Map a snapshot saved by NetSnapshot.save() and register it. The model
+     * starts at once, whatever its size, and shares its weights with every
+     * other process that maps the same file.
+     * @param name the name by which requests will refer to the model.
+     * @param snapshotFile
+     * @param maxConcurrent how many requests for this model may be scored at
+     * the same time.
+     * @throws IOException if the file is not a saved snapshot.
+     */
+    public void map(String name, File snapshotFile, int maxConcurrent) throws IOException
+    {
+        register(name, NetSnapshot.map(snapshotFile), maxConcurrent);
+    }
+
+    public void register(String name, NetSnapshot snapshot, int maxConcurrent)
+    {
+        if(maxConcurrent < 1){
+            throw new IllegalArgumentException("Model " + name
+                    + " must allow at least one concurrent request.");
+        }
+        models.put(name, new Model(name, snapshot, maxConcurrent));
+    }
+
+    public void unregister(String name)
+    {
+        models.remove(name);
+    }
+
+    /**
+     * Score the sample with one model.
+     * @param name
+     * @param sample
+     * @return the outputs of the model's output layer, once scored.
+     */
+    public Future<Matrix> submit(String name, Sample sample)
+    {
+        Model model = models.get(name);
+        if(model == null){
+            throw new IllegalArgumentException("No model named " + name);
+        }
+        return model.submit(sample);
+    }
+
+    /**
+     * Score the sample with every registered model.
+     * @param sample
+     * @return the outputs of each model, by name.
+     */
+    public Map<String, Future<Matrix>> submitAll(Sample sample)
+    {
+        Map<String, Future<Matrix>> results = new LinkedHashMap<>();
+        for(Model model: models.values()){
+            results.put(model.name, model.submit(sample));
+        }
+        return results;
+    }
+
+    /**
+     * Score the sample with one model, waiting for the result.
+     */
+    public Matrix score(String name, Sample sample) throws InterruptedException, ExecutionException
+    {
+        return submit(name, sample).get();
+    }
+
+    // Convert the sample to inputs for the channel, or wait for another model
+    // that is already doing so.
+    private Matrix inputsFor(final Sample sample, final ColorChannel channel)
+            throws InterruptedException, ExecutionException
+    {
+        FutureTask<Matrix> task;
+        boolean mine = false;
+        synchronized(decoded){
+            Map<ColorChannel, FutureTask<Matrix>> channels = decoded.get(sample);
+            if(channels == null){
+                channels = new HashMap<>();
+                decoded.put(sample, channels);
+            }
+            task = channels.get(channel);
+            if(task == null){
+                task = new FutureTask<Matrix>(new Callable<Matrix>()
+                {
+                    @Override
+                    public Matrix call()
+                    {
+                        return sample.decode(channel);
+                    }
+                });
+                channels.put(channel, task);
+                mine = true;
+            }
+        }
+        if(mine){
+            decodes.incrementAndGet();
+            task.run();
+        } else {
+            decodesShared.incrementAndGet();
+        }
+        return task.get();
+    }
+
+    /**
+     * Summarize the latency and throughput of each model since the registry
+     * was created. Latency includes the time a request waited for its turn.
+     */
+    public String report()
+    {
+        double elapsed = Math.max(1, System.nanoTime() - startTime) / 1.0e9;
+        StringBuilder buff = new StringBuilder();
+        for(Model model: models.values()){
+            long done = model.completed.get() + model.failed.get();
+            buff.append("Model ").append(model.name).append(": ")
+                .append(model.completed.get()).append(" scored, ")
+                .append(model.failed.get()).append(" failed, ")
+                .append(String.format("%.1f", model.completed.get() / elapsed)).append(" samples/s");
+            if(done > 0){
+                buff.append(", latency avg ")
+                    .append(String.format("%.3f", model.totalLatency.get() / 1.0e6 / done))
+                    .append("ms max ")
+                    .append(String.format("%.3f", model.maxLatency.get() / 1.0e6))
+                    .append("ms, scoring avg ")
+                    .append(String.format("%.3f", model.totalService.get() / 1.0e6 / done))
+                    .append("ms");
+            }
+            buff.append("\n");
+        }
+        buff.append("Inputs converted ").append(decodes.get()).append(" times, shared ")
+            .append(decodesShared.get()).append(" times\n");
+        return buff.toString();
+    }
+
+    /**
+     * Stop accepting requests. The requests already being scored finish;
+     * those still waiting for their model's turn are cancelled.
+     */
+    public void shutdown()
+    {
+        shutDown = true;
+        for(Model model: models.values()){
+            model.cancelWaiting();
+        }
+        executor.shutdown();
+    }
+}
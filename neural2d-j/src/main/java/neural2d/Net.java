@@ -1,18 +1,25 @@
 package neural2d;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.RecursiveTask;
 import neural2d.Command.JoinableResult;
 import neural2d.config.ConfigurationException;
 import neural2d.config.LayerConfig;
 import neural2d.config.NetConfig;
+import neural2d.config.SampleReader;
 import neural2d.config.TopologyConfig;
 import neural2d.config.TrainingParameters;
 import neural2d.config.WeightsConfig;
@@ -21,7 +28,7 @@ import neural2d.config.WeightsConfig;
  * Copyright (c) 2015 Michael C. Whidden
  * @author Michael C. Whidden
  */
-public class Net implements NetElement
+public class Net implements NetElement, Closeable
 {
     long lastReportTime = 0L;
 
@@ -36,6 +43,7 @@ public class Net implements NetElement
     double eta;
     TrainingParameters trainingParams;
     SampleSet sampleSet;
+    SampleSet validationSet;     // Held-out samples, if any, for early stopping
 
     private BiasNeuron biasNeuron;  // Fake neuron with constant output 1.0
     private List<Layer> layers;
@@ -44,12 +52,44 @@ public class Net implements NetElement
     private double lastRecentAverageError;    // Used for dynamically adjusting eta
     private int totalNumberConnections; // Including 1 bias connection per neuron
     private int totalNumberNeurons;
-    private final Random rand = new Random();
-    private final ForkJoinPool pool = new ForkJoinPool();
-    Map<Neuron,Set<Neuron>> sourceNeurons = new HashMap<>();
+    private SplitMixRandom weightRandom; // Source of the initial weights
+    private final ForkJoinPool pool;  // Shared by all the layers
+    private final OffHeapArena arena; // Where the stencils keep their weights, or null for the heap
+    private boolean closed;
+    private List<List<Layer>> levels; // Layers after the input, by level; see scheduleLevels()
+    private List<Layer> trainable;    // Layers whose weights backProp() updates; see planBackProp()
+
+    // Incremental (delta) inference. When enabled, feedForward() propagates only
+    // the input values that changed since the previous sample. The cached sums
+    // are only valid while the weights are unchanged, so backProp() invalidates
+    // them, and a full pass is forced every INCREMENTAL_RESYNC_PASSES passes to
+    // keep floating point drift in the cached sums from accumulating.
+    private static final int INCREMENTAL_RESYNC_PASSES = 1000;
+    // If more than this fraction of the inputs changed, a full pass is cheaper:
+    private static final double INCREMENTAL_MAX_CHANGED = 0.25;
+    private long numUpdates;   // Number of backprop passes, for the optimizer
+    private int epochs;        // Number of complete passes over the training samples
+    private BackgroundValidator validator; // Non-null while training with validation samples
+    private TrainingGovernor governor;     // Non-null while training
+    private SamplePrefetcher prefetcher;   // Non-null while training, if prefetching
+    private ActivationCache activationCache; // Non-null while training, if caching
+    private List<List<Layer>> cachedLevels;  // The levels fed forward from the cache
+    private SelectiveBackprop selector;      // Non-null while training, if selective
+    private String stopReason;             // Why the last train() stopped short, or null
+    private boolean incremental;
+    private boolean incrementalValid;
+    int incrementalPasses;                 // Passes since the last full one
 
     public Net(NetConfig config) throws ConfigurationException
     {
+        this(config, Runtime.getRuntime().availableProcessors());
+    }
+
+    // With a given number of threads in the pool. The net, its initial
+    // weights included, is the same whatever the number.
+    Net(NetConfig config, int parallelism) throws ConfigurationException
+    {
+        pool = new ForkJoinPool(parallelism);
         reportEveryNth = 1;
         inputSampleNumber = 0;         // Increments each time feedForward() is called
         error = 1.0;
@@ -60,7 +100,18 @@ public class Net implements NetElement
         totalNumberConnections = 0;
         totalNumberNeurons = 0;
         sampleSet = new SampleSet();
+        validationSet = new SampleSet();
         trainingParams = config.getTrainingParameters();
+        arena = trainingParams.isOffHeapWeights() ? new OffHeapArena() : null;
+
+        // The same seed always gives the same initial weights. Report the seed,
+        // so that a run without one can be repeated, unless the weights are
+        // loaded from the NOM instead:
+        long seed = trainingParams.hasSeed() ? trainingParams.getSeed() : new Random().nextLong();
+        if (!trainingParams.hasSeed() && !config.isTrained()) {
+            System.out.println("Initial weight seed: " + seed);
+        }
+        weightRandom = new SplitMixRandom(seed);
 
         // Initialize the dummy bias neuron to provide a weighted bias input for all other neurons.
         // This is a single special neuron that has no inputs of its own, and feeds a constant
@@ -71,13 +122,152 @@ public class Net implements NetElement
         biasConfig.setLayerName("$$bias");
         biasConfig.setTransferFunction(TransferFunction.IDENTITY);
         biasLayer = new Layer.BiasLayer(biasConfig);
-        layers.add(biasLayer);
+        addLayer(biasLayer);
         biasNeuron = new BiasNeuron(biasLayer);
         biasLayer.addNeuron(biasNeuron, 0, 0);
 
         // Set up the layers, create neurons, and connect them:
 
         configure(config);  // Throws an exception if any error
+        if (arena != null) {
+            System.out.println("Keeping " + arena.getSize() / (1024 * 1024) + " MB of weights off the heap.");
+        }
+    }
+
+    // A copy of the original net, trained with the given parameters; see copy().
+    private Net(Net original, TrainingParameters trainingParams)
+    {
+        pool = new ForkJoinPool(original.pool.getParallelism());
+        reportEveryNth = original.reportEveryNth;
+        inputSampleNumber = 0;
+        error = original.error;
+        recentAverageError = original.recentAverageError;
+        lastRecentAverageError = original.lastRecentAverageError;
+        layers = new ArrayList<>();
+        totalNumberConnections = original.totalNumberConnections;
+        totalNumberNeurons = original.totalNumberNeurons;
+        sampleSet = new SampleSet(original.sampleSet);
+        validationSet = new SampleSet(original.validationSet);
+        this.trainingParams = trainingParams;
+        arena = original.arena == null ? null : original.arena.retain();
+        weightRandom = original.weightRandom;
+        // A different optimizer starts afresh: its state is discarded by the
+        // neurons and stencils, and its step count starts again with it.
+        numUpdates = trainingParams.getOptimizer() == original.trainingParams.getOptimizer()
+                ? original.numUpdates : 0;
+        epochs = original.epochs;
+        incremental = original.incremental;
+        eta = trainingParams == original.trainingParams ? original.eta : trainingParams.getEta();
+
+        biasLayer = new Layer.BiasLayer(original.biasLayer.getConfig());
+        addLayer(biasLayer);
+        biasNeuron = new BiasNeuron(biasLayer);
+        biasLayer.addNeuron(biasNeuron, 0, 0);
+
+        for (Layer layer : original.layers.subList(1, original.layers.size())) {
+            copyLayer(layer);
+        }
+        scheduleLevels();
+        planBackProp();
+    }
+
+    // Creates the layer matching one of another net, connected the same way
+    // to the matching layers already copied, as createNeurons() would.
+    private void copyLayer(Layer original)
+    {
+        Layer layer;
+        switch (original.getLayerType()) {
+            case INPUT:
+                layer = new Layer.InputLayer(original.getConfig());
+                break;
+            case OUTPUT:
+                layer = new Layer.OutputLayer(original.getConfig());
+                break;
+            default:
+                layer = new Layer.HiddenLayer(original.getConfig());
+                break;
+        }
+        addLayer(layer);
+        for (Layer source : original.getSources()) {
+            layers.get(source.getIndex()).addSink(layer);
+            layer.addSource(layers.get(source.getIndex()));
+        }
+        for (Stencil stencil : original.getStencils()) {
+            layer.addStencil(new Stencil(stencil, layer,
+                    layers.get(stencil.getSourceLayer().getIndex()),
+                    stencil.hasBias() ? biasNeuron : null));
+            if (stencil.hasBias()) {
+                biasLayer.addSink(layer);
+            }
+        }
+        for (int row = 0; row < layer.getNumRows(); ++row) {
+            for (int col = 0; col < layer.getNumColumns(); ++col) {
+                layer.createNeuron(row, col, layer.getTransferFunction());
+            }
+        }
+        if (layer.getStencils().isEmpty()) {
+            // Explicit connections, as in convolution layers, are copied.
+            for (int i = 0; i < layer.size(); ++i) {
+                original.getNeuron(i).acceptBackward(new CopyConnectionsVisitor(layer.getNeuron(i)));
+            }
+        }
+    }
+
+    // Adds a copy of each connection visited to the back connections of the
+    // matching neuron of the copied net.
+    private class CopyConnectionsVisitor extends NetElementVisitor
+    {
+        private final Neuron neuron;
+
+        CopyConnectionsVisitor(Neuron neuron)
+        {
+            this.neuron = neuron;
+        }
+
+        @Override
+        public boolean visit(Connection conn)
+        {
+            Neuron from = conn.getFromNeuron();
+            Layer fromLayer = layers.get(from.getLayer().getIndex());
+            Connection copy = new Connection(
+                    fromLayer.getNeuron(from.getRow() * fromLayer.getNumColumns() + from.getColumn()),
+                    neuron);
+            copy.setWeight(conn.getWeight());
+            copy.setDeltaWeight(conn.getDeltaWeight());
+            if (fromLayer == biasLayer) {
+                neuron.setBiasConnection(copy);
+            } else {
+                neuron.addBackConnection(copy);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A copy of this net, with the same topology, weights, momentum and
+     * optimizer state, and the same training and validation samples, to be
+     * trained on its own. The copy shares the layout of the connections with
+     * this net, and shares the weights of each layer until either net first
+     * changes them, so copying is fast and uses little memory even for large
+     * nets. Copies may be trained concurrently with each other and with this
+     * net. Must not be called while this net is training.
+     * @return the copy.
+     */
+    public Net copy()
+    {
+        return copy(trainingParams);
+    }
+
+    /**
+     * Like copy(), but the copy is trained with the given parameters, for
+     * example to fine-tune it at a different rate. If they choose another
+     * optimizer, the copy does not keep the optimizer state.
+     * @param trainingParams
+     * @return the copy.
+     */
+    public Net copy(TrainingParameters trainingParams)
+    {
+        return new Net(this, trainingParams);
     }
 
     // Creates layer metadata from a config file
@@ -100,7 +290,7 @@ public class Net implements NetElement
 
         // Create input layer, and add to layers list.
         inputLayer = new Layer.InputLayer(inputConfig);
-        layers.add(inputLayer);
+        addLayer(inputLayer);
 
         // Create neurons and connect them:
 
@@ -108,32 +298,32 @@ public class Net implements NetElement
         newLayer = inputLayer;
 
         System.out.println("Creating input layer" + layerConfig.getLayerName() + ".");
-        createNeurons(newLayer, null); // Input layer has no back connections
+        createNeurons(newLayer, new ArrayList<Layer>()); // Input layer has no back connections
         numNeurons = layerConfig.getNumRows() * layerConfig.getNumColumns();
 
-        // Create other layers.
-        int idx = 1;
-        Layer fromLayer;
+        // Create other layers, in order of forward propagation, so that the
+        // layers each one is fed by already exist.
         for(LayerConfig hiddenConfig: topology.getHiddenLayerConfig()){
             System.out.println("Creating layer" + hiddenConfig.getLayerName() + ".");
             // Create layer and add to list.
             newLayer = new Layer.HiddenLayer(hiddenConfig);
-            layers.add(newLayer);
+            addLayer(newLayer);
             // Create the neurons of this layer and connect
-            // them to the previous layer.
-            fromLayer = layers.get(idx++);
-            createNeurons(newLayer, fromLayer);
+            // them to the layers it is fed by.
+            createNeurons(newLayer, findSources(hiddenConfig));
             numNeurons += layerConfig.getNumRows() * hiddenConfig.getNumColumns();
         }
 
         layerConfig = outputConfig;
         System.out.println("Creating output layer" + layerConfig.getLayerName() + ".");
         newLayer = new Layer.OutputLayer(layerConfig);
-        layers.add(newLayer);
+        addLayer(newLayer);
         // Create the neurons of this layer and connect
-        // them to the previous layer.
-        createNeurons(newLayer, layers.get(idx));
+        // them to the layers it is fed by.
+        createNeurons(newLayer, findSources(layerConfig));
         numNeurons += layerConfig.getNumRows() * layerConfig.getNumColumns();
+        scheduleLevels();
+        planBackProp();
 
         // It's possible that some internal neurons don't feed any other neurons.
         // That's not a fatal error, but it's probably due to an unintentional mistake
@@ -163,58 +353,262 @@ public class Net implements NetElement
              + " connections per neuron on average.");
         if(config.isTrained()){
             System.out.println("Network is trained. Loading weights.");
-            accept(new LoadWeightConfigVisitor(config.getWeightsConfig()));
+            if (config.getBinaryWeights() != null) {
+                config.getBinaryWeights().apply(this);
+            } else {
+                accept(new LoadWeightConfigVisitor(config.getWeightsConfig()));
+            }
         }
-        // Optionally enable the next line to display the resulting net topology:
-        debugShowNet(true);
+        // Display a summary of the resulting net topology. With details, every
+        // connection is listed, which is only practical for small nets:
+        debugShowNet(false);
         this.eta = trainingParams.getEta();
     }
 
+    private void addLayer(Layer layer)
+    {
+        layer.setIndex(layers.size());
+        layer.setPool(pool);
+        layers.add(layer);
+    }
+
+    // Returns the layers named as the 'from' layers of the configuration,
+    // which have all been created already.
+    private List<Layer> findSources(LayerConfig layerConfig) throws ConfigurationException
+    {
+        List<Layer> sources = new ArrayList<>();
+        for (String name : layerConfig.getFromLayerNames()) {
+            Layer source = null;
+            for (Layer layer : layers) {
+                if (layer.getName().equals(name)) {
+                    source = layer;
+                }
+            }
+            if (source == null) {
+                throw new ConfigurationException("Layer '" + layerConfig.getLayerName()
+                        + "' is fed by '" + name + "', which comes after it.");
+            }
+            sources.add(source);
+        }
+        return sources;
+    }
+
+    // Groups the layers after the input layer into levels. The level of a
+    // layer is one more than the highest level among the layers it is fed by,
+    // the input layer being level 0. So the layers of one level never feed
+    // each other, and once the levels before it are done, they can all be
+    // fed forward at the same time. A net without branches has one layer per
+    // level.
+    private void scheduleLevels()
+    {
+        int[] level = new int[layers.size()];
+        levels = new ArrayList<>();
+        for (int idx = 2; idx < layers.size(); ++idx) {
+            Layer layer = layers.get(idx);
+            int l = 0;
+            for (Layer source : layer.getSources()) {
+                l = Math.max(l, level[source.getIndex()]);
+            }
+            level[idx] = l + 1;
+            if (levels.size() == l) {
+                levels.add(new ArrayList<Layer>());
+            }
+            levels.get(l).add(layer);
+        }
+        for (List<Layer> branches : levels) {
+            if (branches.size() > 1) {
+                StringBuilder names = new StringBuilder();
+                for (Layer layer : branches) {
+                    names.append(names.length() == 0 ? "" : ", ").append(layer.getName());
+                }
+                System.out.println("Layers " + names + " are independent and run concurrently.");
+            }
+        }
+    }
+
+    // Works out which layers backProp() calculates the gradients of: the
+    // trainable layers, which are neither frozen nor convolution layers, and
+    // the layers that feed back into those. The layers are in order of
+    // forward propagation, so the sources of each layer are decided before
+    // it. With the first layers frozen, backprop stops at the earliest layer
+    // that is not.
+    private void planBackProp()
+    {
+        trainable = new ArrayList<>();
+        StringBuilder frozen = new StringBuilder();
+        StringBuilder skipped = new StringBuilder();
+        for (int idx = 2; idx < layers.size(); ++idx) {
+            Layer layer = layers.get(idx);
+            boolean needsGradient = layer.isTrainable();
+            for (Layer source : layer.getSources()) {
+                needsGradient |= source.getLayerType() == LayerType.HIDDEN && source.needsGradient();
+            }
+            layer.setNeedsGradient(needsGradient);
+            if (layer.isTrainable()) {
+                trainable.add(layer);
+            }
+            if (layer.isFrozen()) {
+                frozen.append(frozen.length() == 0 ? "" : ", ").append(layer.getName());
+            }
+            if (!needsGradient) {
+                skipped.append(skipped.length() == 0 ? "" : ", ").append(layer.getName());
+            }
+        }
+        if (frozen.length() > 0) {
+            System.out.println("Layers " + frozen + " are frozen; backprop skips layers "
+                    + (skipped.length() == 0 ? "(none)" : skipped) + ".");
+        }
+    }
+
+    // An operation on one layer, for forEachConcurrently().
+    private interface LayerOperation
+    {
+        void run(Layer layer);
+    }
+
+    private static final LayerOperation FEED_FORWARD = new LayerOperation()
+    {
+        @Override
+        public void run(Layer layer)
+        {
+            layer.feedForward(null);
+        }
+    };
+
+    // Runs the operation on each of the layers, which must not depend on each
+    // other, at the same time on the shared pool. Each layer divides its own
+    // work among the pool's threads as well.
+    private void forEachConcurrently(List<Layer> branches, final LayerOperation op)
+    {
+        if (branches.size() == 1) {
+            op.run(branches.get(0));
+            return;
+        }
+        final List<RecursiveAction> tasks = new ArrayList<>();
+        for (final Layer layer : branches) {
+            tasks.add(new RecursiveAction()
+            {
+                @Override
+                protected void compute()
+                {
+                    op.run(layer);
+                }
+            });
+        }
+        pool.invoke(new RecursiveAction()
+        {
+            @Override
+            protected void compute()
+            {
+                invokeAll(tasks);
+            }
+        });
+    }
+
     // Create neurons and connect them. For the input layer, there are no incoming
     // connections and radius doesn't apply. Calling this function with layerFrom == null
-    private void createNeurons(Layer layer, Layer layerFrom)
+    //
+    // The neurons are created serially, so that they are numbered in order.
+    // Their back connections are then made in parallel, a block of rows per
+    // task; each task only touches the back connections of its own neurons.
+    // Every neuron draws its initial weights from its own fork of the seeded
+    // generator, so the weights do not depend on how the work was divided.
+    // Only the back connections are stored; the source layers just record
+    // that they feed this layer.
+    //
+    // Layers without a convolution matrix are connected implicitly, by a
+    // Stencil per source layer, which stores no Connection objects; see
+    // connectStencil(). The first stencil also holds the bias weights.
+    private void createNeurons(Layer layer, List<Layer> sources)
     {
-        // Reserve enough space in layer.neurons to prevent reallocation (so that
-        // we can form stable references to neurons):
+        for (Layer layerFrom : sources) {
+            layerFrom.addSink(layer);
+            layer.addSource(layerFrom);
+            if (!layer.isConvolutionLayer()) {
+                boolean first = layer.getStencils().isEmpty();
+                layer.addStencil(new Stencil(layer, layerFrom, first ? biasNeuron : null, arena));
+                if (first) {
+                    biasLayer.addSink(layer);
+                }
+            }
+        }
 
         for (int row = 0; row < layer.getNumRows(); ++row) {
             for (int col = 0; col < layer.getNumColumns(); ++col) {
-                // When we create a neuron, we have to give it a pointer to the
-                // start of the array of Connection objects:
-                Neuron neuron = layer.createNeuron(row, col, layer.getTransferFunction());
+                layer.createNeuron(row, col, layer.getTransferFunction());
                 ++totalNumberNeurons;
+            }
+        }
 
-                // If layerFrom is layerTo, it means we're making input neurons
-                // that have no input connections to the neurons. Else, we must make connections
-                // to the source neurons and, for classic neurons, to a bias input:
+        // If there are no sources, it means we're making input neurons
+        // that have no input connections to the neurons. Else, we must make connections
+        // to the source neurons and, for classic neurons, to a bias input:
 
-                if (layer.getLayerType() != LayerType.INPUT) {
-                    connectNeuron(layer, layerFrom, neuron,
-                                  row, col);
-                    if (!layer.isConvolutionLayer()) {
-                        connectBias(neuron);
-                    }
-                }
-            }
+        if (layer.getLayerType() == LayerType.INPUT) {
+            return;
         }
+
+        for (Stencil stencil : layer.getStencils()) {
+            layOutStencil(stencil);
+        }
+
+        pool.invoke(new ConnectTask(layer, sources, weightRandom.fork(layer.getIndex()),
+                0, layer.getNumRows()));
+
+        totalNumberConnections += layer.getNumBackConnections();
     }
 
-    // Assuming an ellipse centered at 0,0 and aligned with the global axes, returns
-    // a positive value if x,y is outside the ellipse; 0.0 if on the ellipse;
-    // negative if inside the ellipse.
-    //
-    private double elliptDist(double x, double y, double radiusX, double radiusY)
+    // Connects the neurons in a block of rows of a layer to their sources.
+    @SuppressWarnings("serial")
+    private class ConnectTask extends RecursiveAction
     {
-        assert(radiusX >= 0.0 && radiusY >= 0.0);
-        return radiusY*radiusY*x*x + radiusX*radiusX*y*y - radiusX*radiusX*radiusY*radiusY;
+        private static final int MAX_NEURONS = 256; // per task, before splitting
+        private final Layer layer;
+        private final List<Layer> sources;
+        private final SplitMixRandom layerRandom;
+        private final int rowStart, rowEnd;
+
+        ConnectTask(Layer layer, List<Layer> sources, SplitMixRandom layerRandom,
+                int rowStart, int rowEnd)
+        {
+            this.layer = layer;
+            this.sources = sources;
+            this.layerRandom = layerRandom;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+        }
+
+        @Override
+        protected void compute()
+        {
+            int cols = layer.getNumColumns();
+            if (rowEnd - rowStart > 1 && (rowEnd - rowStart) * cols > MAX_NEURONS) {
+                int mid = (rowStart + rowEnd) >>> 1;
+                invokeAll(new ConnectTask(layer, sources, layerRandom, rowStart, mid),
+                        new ConnectTask(layer, sources, layerRandom, mid, rowEnd));
+                return;
+            }
+            for (int row = rowStart; row < rowEnd; ++row) {
+                for (int col = 0; col < cols; ++col) {
+                    Neuron neuron = layer.getNeuron(row, col);
+                    SplitMixRandom random = layerRandom.fork(row * cols + col);
+                    if (!layer.getStencils().isEmpty()) {
+                        connectStencil(layer, row * cols + col, random);
+                    } else {
+                        for (Layer layerFrom : sources) {
+                            connectNeuron(layer, layerFrom, neuron, row, col, random);
+                        }
+                        if (!layer.isConvolutionLayer()) {
+                            connectBias(neuron, random);
+                        }
+                    }
+                }
+            }
+        }
     }
 
-    // This creates the initial set of connections for a layer of neurons. (If the same layer
-    // appears again in the topology config file, those additional connections must be added
-    // to existing connections by calling addToLayer() instead of this function.
-    //
-    // TODO: implement the 'addToLayer'-type feature to allow multiple layers to
-    // feed to a single forward layer.
+    // This creates the connections from one source layer for a neuron. A layer fed by
+    // several source layers is connected to each of them in turn.
     //
     // Neurons can be "regular" neurons, or convolution nodes. If a convolution matrix is
     // defined for the layer, the neurons in that layer will be connected to source neurons
@@ -231,61 +625,21 @@ public class Net implements NetElement
     // nine neurons from the source layer in a 3x3 block to this destination neuron.
     //
     // Each Neuron object holds a container of Connection objects for all the source
-    // inputs to the neuron. Each neuron also holds a container of pointers to Connection
-    // objects in the forward direction. Those points point to Container objects in
-    // and owned by neurons in other layers. I.e., the master copies of all connection are
-    // in the containers of back connections; forward connection pointers refer to
-    // back connection records in other neurons.
+    // inputs to the neuron. Only these back connections are stored. The forward
+    // direction is found through the layers: createNeurons() records each layer
+    // as a sink of the layers that feed it, and a neuron's forward connections are
+    // the back connections of the neurons in its sink layers that come from it.
+    // Each sink layer indexes its back connections by source neuron the first
+    // time they are traversed forward; see Layer.acceptForward().
     //
     private void connectNeuron(Layer layerTo, Layer layerFrom, Neuron neuron,
-            int nx, int ny)
+            int nx, int ny, SplitMixRandom random)
     {
-        int sizeX = layerTo.getNumColumns();
-        int sizeY = layerTo.getNumRows();
-        assert(sizeX > 0 && sizeY > 0);
-
-        // Calculate the normalized [0..1] coordinates of our neuron:
-        double normalizedX = (nx / sizeX) + (1.0 / (2 * sizeX));
-        double normalizedY = (ny / sizeY) + (1.0 / (2 * sizeY));
-
-        // Calculate the coords of the nearest neuron in the "from" layer.
-        // The calculated coords are relative to the "from" layer:
-        int lfromX = (int)(normalizedX * layerFrom.getNumColumns()); // should we round off instead of round down?
-        int lfromY = (int)(normalizedY * layerFrom.getNumRows());
-
-    //    cout + "our neuron at " + nx + "," + ny + " covers neuron at "
-    //         + lfromX + "," + lfromY + endl;
-
-        // Calculate the rectangular window into the "from" layer:
-
-        int xmin;
-        int xmax;
-        int ymin;
-        int ymax;
-
-        if (layerTo.isConvolutionLayer()) {
-            //ymin = lfromY - params.convolveMatrix.get(0).size() / 2;
-            //ymax = ymin + params.convolveMatrix.get(0).size() - 1;
-            //xmin = lfromX - params.convolveMatrix.size() / 2;
-            //xmax = xmin + params.convolveMatrix.size() - 1;
-            throw new UnsupportedOperationException("TODO");
-        } else {
-            xmin = lfromX - layerTo.getRadiusX();
-            xmax = lfromX + layerTo.getRadiusX();
-            ymin = lfromY - layerTo.getRadiusY();
-            ymax = lfromY + layerTo.getRadiusY();
-        }
-
-        // Clip to the layer boundaries:
-
-        if (xmin < 0) xmin = 0;
-        if (xmin >= (int)layerFrom.getNumColumns()) xmin = layerFrom.getNumColumns() - 1;
-        if (ymin < 0) ymin = 0;
-        if (ymin >= (int)layerFrom.getNumRows()) ymin = layerFrom.getNumRows() - 1;
-        if (xmax < 0) xmax = 0;
-        if (xmax >= (int)layerFrom.getNumColumns()) xmax = layerFrom.getNumColumns() - 1;
-        if (ymax < 0) ymax = 0;
-        if (ymax >= (int)layerFrom.getNumRows()) ymax = layerFrom.getNumRows() - 1;
+        int[] window = window(layerTo, layerFrom, nx, ny);
+        int xmin = window[0];
+        int xmax = window[1];
+        int ymin = window[2];
+        int ymax = window[3];
 
         // Now (xmin,xmax,ymin,ymax) defines a rectangular subset of neurons in a previous layer.
         // We'll make a connection from each of those neurons in the previous layer to our
@@ -294,18 +648,22 @@ public class Net implements NetElement
         // We will also check for and avoid duplicate connections. Duplicates are mostly harmless,
         // but unnecessary. Duplicate connections can be formed when the same layer name appears
         // more than once in the topology config file with the same "from" layer if the projected
-        // rectangular or elliptical areas on the source layer overlap.
+        // rectangular or elliptical areas on the source layer overlap. Only a neuron that
+        // already has connections can get a duplicate, and then only from source neurons
+        // inside this window, so those are marked in a bitmap the size of the window, which
+        // is discarded on return.
 
         double xcenter = (xmin + xmax) / 2.0;
         double ycenter = (ymin + ymax) / 2.0;
         int maxNumSourceNeurons = ((xmax - xmin) + 1) * ((ymax - ymin) + 1);
 
-        if(!sourceNeurons.containsKey(neuron)){
-            sourceNeurons.put(neuron, new HashSet<Neuron>());
+        BitSet existing = null;
+        if (neuron.hasBackConnections()) {
+            existing = existingSources(neuron, layerFrom, xmin, xmax, ymin, ymax);
         }
         for (int y = ymin; y <= ymax; ++y) {
             for (int x = xmin; x <= xmax; ++x) {
-                if (!layerTo.isConvolutionLayer() && !layerTo.isRectangular() && elliptDist(xcenter - x, ycenter - y,
+                if (!layerTo.isConvolutionLayer() && !layerTo.isRectangular() && StencilGeometry.elliptDist(xcenter - x, ycenter - y,
                                                       layerTo.getRadiusX(), layerTo.getRadiusY()) >= 1.0) {
                     continue; // Skip this location, it's outside the ellipse
                 }
@@ -314,60 +672,139 @@ public class Net implements NetElement
                     // Skip this connection because the convolve matrix weight is zero:
                     continue;
                 }
+                if (existing != null && existing.get((y - ymin) * (xmax - xmin + 1) + (x - xmin))) {
+                    continue; // Skip this connection, proceed to the next
+                }
                 Neuron fromNeuron = layerFrom.getNeuron(x, y);
 
-                if (sourceNeurons.get(neuron).contains(fromNeuron)) {
-                    System.out.println("dup");
-                    break; // Skip this connection, proceed to the next
-                } else {
-                    // Add a new Connection record to the main container of connections:
-                    Connection conn = new Connection(fromNeuron, neuron);
-                    fromNeuron.addForwardConnection(conn);
-                    neuron.addBackConnection(conn);
-                    //connections.add(conn);
-                    ++totalNumberConnections;
-
-                    // Initialize the weight of the connection:
-                    if (layerTo.isConvolutionLayer()) {
-                        conn.setWeight(layerTo.getConvolveMatrix().get(x - xmin, y - ymin));
-                    } else {
-                        //connections.back().weight = (randomDouble() - 0.5) / maxNumSourceNeurons;
-                        conn.setWeight(((randomDouble() * 2.0) - 1.0) / Math.sqrt(maxNumSourceNeurons));
-                    }
+                // Add a new Connection record to the main container of connections.
+                // There is no forward connection to record: the source layer already
+                // has this layer as a sink; see createNeurons().
+                Connection conn = new Connection(fromNeuron, neuron);
+                neuron.addBackConnection(conn);
 
-                    // Remember the source neuron for detecting duplicate connections:
-                    sourceNeurons.get(neuron).add(fromNeuron);
+                // Initialize the weight of the connection:
+                if (layerTo.isConvolutionLayer()) {
+                    conn.setWeight(layerTo.getConvolveMatrix().get(x - xmin, y - ymin));
+                } else {
+                    //connections.back().weight = (randomDouble() - 0.5) / maxNumSourceNeurons;
+                    conn.setWeight(((random.nextDouble() * 2.0) - 1.0) / Math.sqrt(maxNumSourceNeurons));
                 }
             }
         }
     }
 
-    // Returns a random double in the range [0.0..1.0]
-    //
-    private double randomDouble()
+    // Lays out the windows of a stencil's source layer for every neuron of its
+    // layer. The window is found the same way as in connectNeuron(), and the
+    // source positions come from the stencil's mask for the size of the
+    // window, which lists them in the order connectNeuron() would connect
+    // them. A layer whose every window covers the whole source layer is fully
+    // connected, and is stored as a dense weight matrix.
+    private void layOutStencil(Stencil stencil)
     {
-        return (rand.nextInt(1073741824)/1073741823.0);
+        Layer layerTo = stencil.getLayer();
+        Layer layerFrom = stencil.getSourceLayer();
+        Stencil.Mask[] windows = new Stencil.Mask[layerTo.size()];
+        int[] bases = new int[windows.length];
+        boolean coversSource = true;
+        for (int row = 0; row < layerTo.getNumRows(); ++row) {
+            for (int col = 0; col < layerTo.getNumColumns(); ++col) {
+                int[] window = window(layerTo, layerFrom, row, col);
+                int i = row * layerTo.getNumColumns() + col;
+                windows[i] = stencil.getMask(window[1] - window[0] + 1, window[3] - window[2] + 1);
+                bases[i] = StencilGeometry.base(window, layerFrom.getNumColumns());
+                coversSource &= StencilGeometry.coversSource(window, layerFrom.getNumRows(),
+                        layerFrom.getNumColumns());
+            }
+        }
+        stencil.layOut(windows, bases, coversSource);
+        if (stencil.isDense()) {
+            System.out.println("Layer " + layerTo.getName() + " is fully connected to "
+                    + layerFrom.getName() + "; using dense weights.");
+        }
     }
 
-    // Add a weighted bias input, modeled as a back-connection to a fake neuron:
+    // Like connectNeuron() and connectBias(), for the neuron at the position
+    // in a layer connected by stencils. Only the weights are stored. For each
+    // source layer, they are drawn in the order of the window's mask, then
+    // the bias weight if the stencil holds it, so they are the same as
+    // connectNeuron() and connectBias() would draw.
+    private void connectStencil(Layer layerTo, int position, SplitMixRandom random)
+    {
+        for (Stencil stencil : layerTo.getStencils()) {
+            Stencil.Mask mask = stencil.getWindowMask(position);
+            int maxNumSourceNeurons = mask.width * mask.height;
+
+            double[] weights = new double[mask.size() + (stencil.hasBias() ? 1 : 0)];
+            for (int k = 0; k < mask.size(); ++k) {
+                weights[k] = ((random.nextDouble() * 2.0) - 1.0) / Math.sqrt(maxNumSourceNeurons);
+            }
+            if (stencil.hasBias()) {
+                weights[mask.size()] = random.nextDouble() - 0.5; // Review this !!!
+            }
+            stencil.setWeights(position, weights);
+        }
+    }
+
+    // Returns the window {xmin, xmax, ymin, ymax} of source neurons in layerFrom
+    // that the neuron at nx, ny in layerTo connects to, clipped to layerFrom;
+    // see StencilGeometry.window().
+    private int[] window(Layer layerTo, Layer layerFrom, int nx, int ny)
+    {
+        if (layerTo.isConvolutionLayer()) {
+            //ymin = lfromY - params.convolveMatrix.get(0).size() / 2;
+            //ymax = ymin + params.convolveMatrix.get(0).size() - 1;
+            //xmin = lfromX - params.convolveMatrix.size() / 2;
+            //xmax = xmin + params.convolveMatrix.size() - 1;
+            throw new UnsupportedOperationException("TODO");
+        }
+        return StencilGeometry.window(layerTo.getNumRows(), layerTo.getNumColumns(),
+                layerTo.getRadiusX(), layerTo.getRadiusY(),
+                layerFrom.getNumRows(), layerFrom.getNumColumns(), nx, ny);
+    }
+
+    // Marks the source neurons in layerFrom, within the window, that the
+    // neuron is already connected to. Bit (y - ymin) * width + (x - xmin) is
+    // set for the source neuron that connectNeuron() finds at (x, y).
+    private BitSet existingSources(Neuron neuron, final Layer layerFrom,
+            final int xmin, final int xmax, final int ymin, final int ymax)
+    {
+        final BitSet existing = new BitSet((xmax - xmin + 1) * (ymax - ymin + 1));
+        neuron.acceptBackward(new NetElementVisitor()
+        {
+            @Override
+            public boolean visit(Connection conn)
+            {
+                Neuron from = conn.getFromNeuron();
+                // connectNeuron() looks up source (x, y) as row x, column y:
+                int x = from.getRow();
+                int y = from.getColumn();
+                if (from.getLayer() == layerFrom
+                        && x >= xmin && x <= xmax && y >= ymin && y <= ymax) {
+                    existing.set((y - ymin) * (xmax - xmin + 1) + (x - xmin));
+                }
+                return false;
+            }
+        });
+        return existing;
+    }
+
+    // Add a weighted bias input, modeled as a back-connection to a fake neuron.
+    // As in connectNeuron(), only the back connection is stored; the forward
+    // direction is found from it through the sinks of the bias layer.
     //
-    private void connectBias(Neuron neuron)
+    private void connectBias(Neuron neuron, SplitMixRandom random)
     {
         // Create a new Connection record and get its index:
         Connection c = new Connection(biasNeuron, neuron);
         // connections.add(c);
         // int connectionIdx = connections.size() - 1;
 
-        c.setWeight(randomDouble() - 0.5); // Review this !!!
+        c.setWeight(random.nextDouble() - 0.5); // Review this !!!
         c.setDeltaWeight(0.0);
 
         // Record the back connection with the destination neuron:
         neuron.setBiasConnection(c);
-
-        ++totalNumberConnections;
-
-        // Record the forward connection with the fake bias neuron:
-        biasNeuron.addForwardConnection(c);
     }
 
     // Calculate a new eta parameter based on the current and last average net error.
@@ -407,21 +844,62 @@ public class Net implements NetElement
     // neural net to produce new values at the output layer.
     void feedForward(Sample sample) throws SampleException
     {
+        if (!feedForwardCached(sample)) {
+            feedForwardInputs(sample, sample.getData(layers.get(1).getChannel()));
+        }
+    }
+
+    // Like feedForward(Sample), with the sample's inputs already converted,
+    // for example by a SamplePrefetcher.
+    void feedForward(Sample sample, Matrix inputs) throws SampleException
+    {
+        if (!feedForwardCached(sample)) {
+            feedForwardInputs(sample, inputs);
+        }
+    }
+
+    // If the activation cache holds the outputs of the boundary layers for
+    // the sample, put them back and feed forward only the layers after them.
+    // Returns false, changing nothing, if it does not.
+    private boolean feedForwardCached(Sample sample) throws SampleException
+    {
+        if (activationCache == null || !activationCache.restore(sample)) {
+            return false;
+        }
         ++inputSampleNumber;
+        for (List<Layer> level : cachedLevels) {
+            forEachConcurrently(level, FEED_FORWARD);
+        }
+        // The layers before the boundary still hold the previous sample:
+        incrementalValid = false;
+        calculateOverallNetError(sample);
+        return true;
+    }
 
-        // Move the input data from sample to the input neurons. We'll also
-        // check that the number of components of the input sample equals
-        // the number of input neurons:
+    private void feedForwardInputs(Sample sample, Matrix inputs) throws SampleException
+    {
+        ++inputSampleNumber;
 
-        Layer inputLayer = layers.get(1);
-        Command<Neuron,Double> command = new Neuron.AssignInputsCommand(sample.getData(inputLayer.getChannel()));
-        inputLayer.executeCommand(command);
+        if (!incremental || !incrementalValid || !feedForwardIncremental(inputs)) {
+            // Move the input data from sample to the input neurons. We'll also
+            // check that the number of components of the input sample equals
+            // the number of input neurons:
 
-        // Start the forward propagation at the first hidden layer:
+            Layer inputLayer = layers.get(1);
+            Command<Neuron,Double> command = new Neuron.AssignInputsCommand(inputs);
+            inputLayer.executeCommand(command);
 
-        for (int layerIdx = 2; layerIdx < layers.size(); ++layerIdx) {
-            Layer layer = layers.get(layerIdx);
-            layer.executeCommand(new Neuron.FeedForwardCommand());
+            // Start the forward propagation at the first hidden layer. The
+            // layers of each level are independent of each other:
+
+            for (List<Layer> level : levels) {
+                forEachConcurrently(level, FEED_FORWARD);
+            }
+            incrementalValid = true;
+            incrementalPasses = 0;
+        }
+        if (activationCache != null) {
+            activationCache.save(sample);
         }
 
         // If target values are known, update the output neurons' errors and
@@ -430,6 +908,103 @@ public class Net implements NetElement
         calculateOverallNetError(sample);
     }
 
+    /**
+     * When true, feedForward() diffs each sample against the inputs of the
+     * previous one and propagates only the changes. This pays off when
+     * consecutive samples differ in a small fraction of their inputs, such
+     * as successive frames from a camera. The results are the same as a full
+     * pass, to within floating point rounding.
+     * @param incremental
+     */
+    public void setIncremental(boolean incremental)
+    {
+        this.incremental = incremental;
+        this.incrementalValid = false;
+    }
+
+    private static class DeltaVisitor extends NetElementVisitor
+    {
+        final Map<Layer,Set<Neuron>> dirty = new HashMap<>();
+        double delta;
+
+        @Override
+        public boolean visit(Connection conn)
+        {
+            Neuron toNeuron = conn.getToNeuron();
+            toNeuron.addToSum(conn.getWeight() * delta);
+            Set<Neuron> s = dirty.get(toNeuron.getLayer());
+            if (s == null) {
+                s = new LinkedHashSet<>();
+                dirty.put(toNeuron.getLayer(), s);
+            }
+            s.add(toNeuron);
+            return false;
+        }
+
+        void propagate(Neuron n, double delta)
+        {
+            this.delta = delta;
+            n.accept(this);
+        }
+    }
+
+    // Propagate only the inputs that differ from the previous sample. Each changed
+    // output is scattered along its forward connections as weight * (new - old),
+    // adjusting the cached sums of the neurons it feeds. Layer by layer, only the
+    // neurons whose sums were touched recompute their outputs, and only those
+    // whose outputs actually changed propagate further. Returns false, without
+    // changing anything, if too many inputs changed or a resync is due, in
+    // which case the caller should do a full pass.
+    private boolean feedForwardIncremental(Matrix inputs)
+    {
+        Layer inputLayer = layers.get(1);
+
+        if (++incrementalPasses >= INCREMENTAL_RESYNC_PASSES) {
+            return false;
+        }
+
+        Map<Neuron,Double> changed = new LinkedHashMap<>();
+        for (Neuron n : inputLayer.getNeurons()) {
+            double val = inputs.get(n.getRow(), n.getColumn());
+            if (val != n.getOutput()) {
+                changed.put(n, val);
+            }
+        }
+        if (changed.size() > INCREMENTAL_MAX_CHANGED * inputLayer.size()) {
+            return false;
+        }
+
+        DeltaVisitor v = new DeltaVisitor();
+        for (Map.Entry<Neuron,Double> e : changed.entrySet()) {
+            Neuron n = e.getKey();
+            double old = n.getOutput();
+            n.setOutput(e.getValue());
+            v.propagate(n, e.getValue() - old);
+        }
+
+        for (int layerIdx = 2; layerIdx < layers.size(); ++layerIdx) {
+            Set<Neuron> dirty = v.dirty.remove(layers.get(layerIdx));
+            if (dirty == null) {
+                continue; // Nothing feeding this layer changed
+            }
+            for (Neuron n : dirty) {
+                double old = n.getOutput();
+                n.refreshOutput();
+                if (n.getOutput() != old) {
+                    v.propagate(n, n.getOutput() - old);
+                }
+            }
+        }
+        // A softmax output depends on the sums of the whole layer, so it is
+        // normalized again from the cached sums. Nothing reads the output
+        // layer, so its changes need not propagate.
+        Layer outputLayer = layers.get(layers.size() - 1);
+        if (outputLayer.isSoftmax()) {
+            outputLayer.normalizeOutputs(null);
+        }
+        return true;
+    }
+
     // Backprop and update all weights
     // Here is where the weights are updated. This is called after every training
     // sample. The outputs of the neural net are compared to the target output
@@ -437,37 +1012,68 @@ public class Net implements NetElement
     // connections for all the neurons.
     void backProp(Sample sample)
     {
+        // The weights are about to change, so the sums cached for incremental
+        // inference are no longer valid:
+        incrementalValid = false;
+
         // Calculate output layer gradients:
 
         Layer outputLayer = layers.get(layers.size()-1);
-        outputLayer.executeCommand(new Neuron.CalculateGradientsCommand(sample.getTargetVals()));
+        if (outputLayer.needsGradient()) {
+            outputLayer.calcOutputGradients(sample.getTargetVals());
+        }
 
         // Calculate hidden layer gradients. Skip output, input, and bias layers.
+        // Each layer scatters its gradients back along its weights into the
+        // gradient sums of the hidden layers it is fed by. The layers are
+        // listed in order of forward propagation, so going backwards, every
+        // layer a hidden layer feeds has scattered into it before its own
+        // gradients are calculated. The scatters stay in this order, since
+        // two branches fed by one layer would both add into its sums. Layers
+        // that neither update their weights nor feed back into a layer that
+        // does are skipped; see planBackProp().
+        for (int layerNum = layers.size() - 2; layerNum > 1; --layerNum) {
+            if (layers.get(layerNum).needsGradient()) {
+                layers.get(layerNum).clearGradientSums();
+            }
+        }
+        if (outputLayer.needsGradient()) {
+            outputLayer.backPropagate();
+        }
         for (int layerNum = layers.size() - 2; layerNum > 1; --layerNum) {
             Layer hiddenLayer = layers.get(layerNum); // Make a convenient name
+            if (!hiddenLayer.needsGradient()) {
+                continue;
+            }
             for(int row=0; row < hiddenLayer.getNumRows(); row++){
                 for(int col=0; col < hiddenLayer.getNumColumns(); col++){
                     hiddenLayer.getNeuron(row,col).calcHiddenGradients();
                 }
             }
+            hiddenLayer.backPropagate();
         }
 
-        // For all layers from outputs to first hidden layer, in reverse order,
-        // update connection weights for regular neurons. Skip the udpate in
-        // convolution layers.
-
-        for (int layerNum = layers.size() - 1; layerNum > 1; --layerNum) {
-            Layer layer = layers.get(layerNum);
+        // Update connection weights for regular neurons in all layers. Skip the
+        // update in convolution and frozen layers. Each layer has its own
+        // weights, so the layers are all updated at the same time.
 
-            if (!layer.isConvolutionLayer()) {
-                layer.executeCommand(new Neuron.InputWeightsCommand(eta,
-                        trainingParams.getAlpha()));
+        final Optimizer optimizer = trainingParams.getOptimizer();
+        final long step = ++numUpdates;
+        final double alpha = trainingParams.getAlpha();
+        final double rate = eta;
+        forEachConcurrently(trainable, new LayerOperation()
+        {
+            @Override
+            public void run(Layer layer)
+            {
+                layer.updateInputWeights(rate, alpha, optimizer, step);
             }
-        }
+        });
 
-        // Adjust eta if dynamic eta adjustment is enabled:
+        // Adjust eta if dynamic eta adjustment is enabled. The adaptive
+        // optimizers scale the rate for each connection themselves:
 
-        if (trainingParams.isDynamicEta()) {
+        if (trainingParams.isDynamicEta() && !optimizer.isAdaptive()) {
             eta = adjustedEta();
         }
     }
@@ -486,7 +1092,8 @@ public class Net implements NetElement
 
     // for forward propagation
     // Given the set of target values for the output neurons, calculate
-    // overall net error (RMS of the output neuron errors). This updates the
+    // overall net error (RMS of the output neuron errors, or the
+    // cross-entropy of a softmax output layer). This updates the
     // .error and .lastRecentAverageError members. If the container of target
     // values is empty, we'll return immediately, leaving the net error == 0.
     //
@@ -503,7 +1110,7 @@ public class Net implements NetElement
         }
 
         Layer outputLayer = layers.get(layers.size()-1);
-        error = getRMS(outputLayer, sample);
+        error = getError(outputLayer, sample);
 
         // Regularization calculations -- if this experiment works, calculate the sum of weights
         // on the fly during backprop to see if that is better performance.
@@ -528,6 +1135,20 @@ public class Net implements NetElement
                 / (smoothingFactor + 1.0);
     }
 
+    // The error of the outputs of the output layer, which for a softmax layer
+    // is the cross-entropy it is trained against.
+    private double getError(Layer layer, Sample sample)
+    {
+        if (!layer.isSoftmax()) {
+            return getRMS(layer, sample);
+        }
+        double[] outputs = new double[layer.size()];
+        for (int i = 0; i < outputs.length; ++i) {
+            outputs[i] = layer.getNeuron(i).getOutput();
+        }
+        return Softmax.crossEntropy(sample.getTargetVals(), outputs, 0);
+    }
+
     private double getRMS(Layer layer, Sample sample)
     {
         Neuron.AccumulateSquareErrorCommand action = new Neuron.AccumulateSquareErrorCommand(sample);
@@ -537,23 +1158,313 @@ public class Net implements NetElement
     public void train() throws SampleException
     {
         reportEveryNth = trainingParams.getReportEveryNth();
-        if (trainingParams.shuffleInputSamples()) {
+        boolean streamed = sampleSet.isStreamed();
+        if (streamed && (trainingParams.shuffleInputSamples() || trainingParams.getPrefetchSamples() > 0
+                || trainingParams.getPipelineStages() > 0 || trainingParams.isCacheActivations())) {
+            System.out.println("The samples are streamed, so they are not shuffled, prefetched,"
+                    + " pipelined or cached.");
+        }
+        if (trainingParams.shuffleInputSamples() && !streamed) {
             sampleSet.shuffle();
         }
+        if (!validationSet.getSamples().isEmpty()) {
+            validator = new BackgroundValidator(this, validationSet.getSamples(),
+                    trainingParams.getValidateEveryNth(), trainingParams.getPatience());
+        }
+        governor = new TrainingGovernor(trainingParams, this);
+        if (trainingParams.getSelectiveBackprop() > 0.0) {
+            selector = new SelectiveBackprop(trainingParams);
+        }
+        long weightUpdates = 0;
+        long skippedWeightUpdates = 0;
+        for (Layer layer : trainable) {
+            layer.setUpdateEpsilons(trainingParams.getUpdateGradientEpsilon(),
+                    trainingParams.getUpdateMomentumEpsilon());
+            weightUpdates -= layer.getWeightUpdates();
+            skippedWeightUpdates -= layer.getSkippedWeightUpdates();
+        }
+        stopReason = null;
+        if (trainingParams.getPrefetchSamples() > 0 && !streamed) {
+            prefetcher = new SamplePrefetcher(sampleSet.getSamples(), layers.get(1).getChannel(),
+                    trainingParams.getPrefetchSamples(), trainingParams.getPrefetchThreads(),
+                    trainingParams.shuffleInputSamples());
+        }
+        try {
+            if (streamed) {
+                trainStreamed();
+            } else if (trainingParams.getPipelineStages() > 0) {
+                trainPipelined();
+            } else {
+                activationCache = createActivationCache();
+                trainSerial();
+            }
+        } finally {
+            if (prefetcher != null) {
+                prefetcher.close();
+                prefetcher = null;
+            }
+            if (activationCache != null) {
+                activationCache.close();
+                activationCache = null;
+            }
+            if (selector != null) {
+                System.out.println(selector.report());
+                selector = null;
+            }
+            if (trainingParams.getUpdateGradientEpsilon() > 0.0) {
+                for (Layer layer : trainable) {
+                    weightUpdates += layer.getWeightUpdates();
+                    skippedWeightUpdates += layer.getSkippedWeightUpdates();
+                }
+                System.out.println("Skipped " + skippedWeightUpdates + " of " + weightUpdates
+                        + " weight updates below the update epsilons.");
+            }
+            // Keep the best weights found. With validation samples, best means
+            // lowest validation error; otherwise, if the governor stopped
+            // training, lowest running average error at the end of an epoch.
+            // Diverged weights are never kept: if no validation was done
+            // before the error diverged, the governor's weights are restored.
+            NetSnapshot best = null;
+            if (validator != null) {
+                best = validator.finish();
+                if (best != null) {
+                    System.out.println("Restoring the weights with the lowest validation error.");
+                    restoreWeights(best);
+                }
+            }
+            if (best == null && stopReason != null && (validator == null || governor.hasDiverged())) {
+                best = governor.getBest(recentAverageError);
+                if (best != null) {
+                    System.out.println(governor.hasDiverged()
+                            ? "Restoring the last weights before the error diverged."
+                            : "Restoring the weights with the lowest average error.");
+                    restoreWeights(best);
+                }
+            }
+            validator = null;
+            governor = null;
+        }
+    }
+
+    // Returns a cache for the outputs of the boundary layers, if caching is
+    // enabled and the first layers are fixed. A layer is fixed if it does not
+    // train and all the layers it is fed by are fixed, the input layer being
+    // fixed; its outputs then depend only on the sample. The boundary layers
+    // are the fixed layers that feed a layer that is not, and the levels fed
+    // forward from the cache are those of the layers that are not fixed.
+    private ActivationCache createActivationCache() throws SampleException
+    {
+        if (!trainingParams.isCacheActivations()) {
+            return null;
+        }
+        boolean[] fixed = new boolean[layers.size()];
+        fixed[0] = fixed[1] = true;
+        boolean anyFixed = false;
+        for (int idx = 2; idx < layers.size(); ++idx) {
+            Layer layer = layers.get(idx);
+            fixed[idx] = !layer.isTrainable();
+            for (Layer source : layer.getSources()) {
+                fixed[idx] &= fixed[source.getIndex()];
+            }
+            anyFixed |= fixed[idx];
+        }
+        if (!anyFixed || fixed[layers.size() - 1]) {
+            System.out.println("Not caching activations: there are no frozen layers before the trainable ones.");
+            return null;
+        }
+
+        Set<Layer> boundary = new LinkedHashSet<>();
+        cachedLevels = new ArrayList<>();
+        for (List<Layer> level : levels) {
+            List<Layer> cached = new ArrayList<>();
+            for (Layer layer : level) {
+                if (!fixed[layer.getIndex()]) {
+                    cached.add(layer);
+                    for (Layer source : layer.getSources()) {
+                        if (fixed[source.getIndex()]) {
+                            boundary.add(source);
+                        }
+                    }
+                }
+            }
+            if (!cached.isEmpty()) {
+                cachedLevels.add(cached);
+            }
+        }
+
+        String fileName = trainingParams.getCacheFile();
+        ActivationCache cache;
+        try {
+            cache = new ActivationCache(new ArrayList<Layer>(boundary), sampleSet.getSamples(),
+                    fileName == null ? null : new File(fileName));
+        } catch (IOException e) {
+            throw new SampleException("Cannot map the activation cache file " + fileName + ": " + e.getMessage());
+        }
+        StringBuilder names = new StringBuilder();
+        for (Layer layer : boundary) {
+            names.append(names.length() == 0 ? "" : ", ").append(layer.getName());
+        }
+        System.out.println("Caching the outputs of layers " + names + ", "
+                + cache.getSize() / 1024 + " KB" + (fileName == null ? "" : " in " + fileName) + ".");
+        return cache;
+    }
+
+    // Returns true if training should stop short of the error threshold: the
+    // governor's limits were reached, or the error on the validation samples
+    // has stopped improving.
+    private boolean shouldStop()
+    {
+        String reason = governor.afterSample(error, recentAverageError);
+        if (reason == null && validator != null && validator.afterSample()) {
+            reason = "the validation error did not improve in "
+                    + trainingParams.getPatience() + " validations";
+        }
+        return stop(reason);
+    }
+
+    // Like shouldStop(), at the end of each epoch.
+    private boolean shouldStopAfterEpoch()
+    {
+        return stop(governor.afterEpoch(this, epochs, recentAverageError));
+    }
+
+    private boolean stop(String reason)
+    {
+        if (reason == null) {
+            return false;
+        }
+        stopReason = reason;
+        System.out.println("Stopping training: " + reason + ".");
+        return true;
+    }
+
+    /**
+     * @return why the last call to train() stopped before reaching the error
+     * threshold, or null if it did not.
+     */
+    public String getStopReason()
+    {
+        return stopReason;
+    }
+
+    private void trainSerial() throws SampleException
+    {
         do{
             for (int sampleIdx = 0; sampleIdx < sampleSet.getSamples().size(); ++sampleIdx) {
-                Sample sample = sampleSet.getSamples().get(sampleIdx);
-                feedForward(sample);
-                backProp(sample);
+                Sample sample;
+                if (prefetcher != null) {
+                    SamplePrefetcher.Prepared prepared = prefetcher.next();
+                    sample = prepared.sample;
+                    feedForward(sample, prepared.inputs);
+                } else {
+                    sample = sampleSet.getSamples().get(sampleIdx);
+                    feedForward(sample);
+                }
+                if (selector == null || selector.select(error, epochs)) {
+                    backProp(sample);
+                }
                 reportResults(sample);
 
-                if (recentAverageError < trainingParams.getErrorThreshold()) {
+                if (recentAverageError < trainingParams.getErrorThreshold()
+                        || shouldStop()) {
                     return;
                 }
             }
+            ++epochs;
+            if (shouldStopAfterEpoch()) {
+                return;
+            }
+        } while(trainingParams.repeatInputSamples());
+    }
+
+    // Like trainSerial(), for streamed samples. The sample file is read again
+    // for each epoch, and only the sample being trained on is in memory.
+    private void trainStreamed() throws SampleException
+    {
+        do{
+            try (SampleReader reader = sampleSet.openStream()) {
+                Sample sample;
+                while ((sample = reader.read()) != null) {
+                    checkInputSize(sample, reader.getCount() - 1);
+                    feedForward(sample);
+                    if (selector == null || selector.select(error, epochs)) {
+                        backProp(sample);
+                    }
+                    reportResults(sample);
+
+                    if (recentAverageError < trainingParams.getErrorThreshold()
+                            || shouldStop()) {
+                        return;
+                    }
+                }
+            } catch (ConfigurationException e) {
+                throw new SampleException(e.getMessage() + causeMessage(e));
+            }
+            ++epochs;
+            if (shouldStopAfterEpoch()) {
+                return;
+            }
         } while(trainingParams.repeatInputSamples());
     }
 
+    // Pipelined training. The forward passes for a window of pipelineWindow
+    // samples run through the pipeline together, all against the weights as they
+    // were at the start of the window. Then, in sample order, each sample's
+    // outputs are restored into the neurons and the usual backprop runs, updating
+    // the weights immediately. So the weight-staleness policy is: a sample's
+    // forward pass sees the weights as of the start of its window, which lags
+    // the weights its backprop updates by at most pipelineWindow - 1 updates,
+    // and a window never sees a partially applied update. With a window of 1
+    // this is exactly the serial training loop.
+    private void trainPipelined() throws SampleException
+    {
+        int window = trainingParams.getPipelineWindow();
+        Pipeline pipeline = new Pipeline(layers, trainingParams.getPipelineStages(), window);
+        try {
+            do {
+                List<Sample> samples = sampleSet.getSamples();
+                for (int start = 0; start < samples.size(); start += window) {
+                    int end = Math.min(start + window, samples.size());
+                    List<Pipeline.Packet> done;
+                    if (prefetcher != null) {
+                        List<Sample> windowSamples = new ArrayList<>(end - start);
+                        List<Matrix> windowInputs = new ArrayList<>(end - start);
+                        for (int i = start; i < end; i++) {
+                            SamplePrefetcher.Prepared prepared = prefetcher.next();
+                            windowSamples.add(prepared.sample);
+                            windowInputs.add(prepared.inputs);
+                        }
+                        done = pipeline.forward(windowSamples, windowInputs);
+                    } else {
+                        done = pipeline.forward(samples.subList(start, end));
+                    }
+                    for (Pipeline.Packet p : done) {
+                        ++inputSampleNumber;
+                        p.restore(layers);
+                        incrementalValid = false;
+                        calculateOverallNetError(p.sample);
+                        if (selector == null || selector.select(error, epochs)) {
+                            backProp(p.sample);
+                        }
+                        reportResults(p.sample);
+
+                        if (recentAverageError < trainingParams.getErrorThreshold()
+                                || shouldStop()) {
+                            return;
+                        }
+                    }
+                }
+                ++epochs;
+                if (shouldStopAfterEpoch()) {
+                    return;
+                }
+            } while(trainingParams.repeatInputSamples());
+        } finally {
+            pipeline.close();
+            System.out.println(pipeline.report());
+        }
+    }
+
     public void run() throws SampleException
     {
         run(false);
@@ -568,28 +1479,18 @@ public class Net implements NetElement
     {
         reportEveryNth = 1;
 
-        Layer lastLayer = layers.get(layers.size()-1);
+        if (sampleSet.isStreamed()) {
+            return runStreamed(validate);
+        }
+        if (trainingParams.getPipelineStages() > 0) {
+            return runPipelined(validate);
+        }
         for (int sampleIdx = 0; sampleIdx < sampleSet.getSamples().size(); ++sampleIdx) {
             Sample sample = sampleSet.getSamples().get(sampleIdx);
-            if (sample.getData().getNumRows() * sample.getData().getNumColumns() != getInputSize()) {
-                throw new Net.SampleException("Sample "
-                        + (sampleIdx + 1) + " size does not match the size of "
-                        + "the input layer (" + getInputSize() + ")");
-            }
+            checkInputSize(sample, sampleIdx);
             feedForward(sample);
-            if(validate){
-                Matrix targets = sample.getTargetVals();
-                for (Neuron n : lastLayer.getNeurons()) { // For all neurons in output layer
-                    double target = targets.get(n.getRow(), n.getColumn());
-                    double rms = getRMS(lastLayer, sample);
-                    if(rms > trainingParams.getErrorThreshold()){
-                        System.out.println("Validation failed for neuron at row "
-                                + n.getRow() + " column " + n.getColumn() + " in output layer. "
-                        + "Expected " + target + " with RMS error " + rms
-                        + " but got " + n.getOutput());
-                        return false;
-                    }
-                }
+            if(validate && !validateResults(sample)){
+                return false;
             }
 
             reportResults(sample);
@@ -597,6 +1498,101 @@ public class Net implements NetElement
         return true;
     }
 
+    // Like run(), for streamed samples, reading them one at a time.
+    private boolean runStreamed(boolean validate) throws SampleException
+    {
+        try (SampleReader reader = sampleSet.openStream()) {
+            Sample sample;
+            while ((sample = reader.read()) != null) {
+                checkInputSize(sample, reader.getCount() - 1);
+                feedForward(sample);
+                if(validate && !validateResults(sample)){
+                    return false;
+                }
+
+                reportResults(sample);
+            }
+            return true;
+        } catch (ConfigurationException e) {
+            throw new SampleException(e.getMessage() + causeMessage(e));
+        }
+    }
+
+    // The messages of the causes of a sample file error, which say where in
+    // the file it is.
+    private static String causeMessage(Throwable e)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            sb.append(": ").append(cause.getMessage());
+        }
+        return sb.toString();
+    }
+
+    // Like run(), but the samples stream through the pipeline. The results are
+    // taken out of the pipeline in sample order and restored into the neurons
+    // for validation and reporting.
+    private boolean runPipelined(boolean validate) throws SampleException
+    {
+        List<Sample> samples = sampleSet.getSamples();
+        Pipeline pipeline = new Pipeline(layers, trainingParams.getPipelineStages(),
+                trainingParams.getPipelineWindow());
+        try {
+            int next = 0;
+            for (int sampleIdx = 0; sampleIdx < samples.size(); ++sampleIdx) {
+                while (next < samples.size() && !pipeline.isFull()) {
+                    checkInputSize(samples.get(next), next);
+                    pipeline.submit(samples.get(next++));
+                }
+                Pipeline.Packet p = pipeline.take();
+                ++inputSampleNumber;
+                p.restore(layers);
+                incrementalValid = false;
+                calculateOverallNetError(p.sample);
+                if(validate && !validateResults(p.sample)){
+                    return false;
+                }
+
+                reportResults(p.sample);
+            }
+            return true;
+        } finally {
+            pipeline.close();
+            System.out.println(pipeline.report());
+        }
+    }
+
+    private void checkInputSize(Sample sample, int sampleIdx) throws SampleException
+    {
+        Matrix data = sample.getData(layers.get(1).getChannel());
+        if (data.getNumRows() * data.getNumColumns() != getInputSize()) {
+            throw new Net.SampleException("Sample "
+                    + (sampleIdx + 1) + " size does not match the size of "
+                    + "the input layer (" + getInputSize() + ")");
+        }
+    }
+
+    // Returns false, after reporting the failure, if the outputs currently in
+    // the output layer are not close enough to the sample's targets.
+    private boolean validateResults(Sample sample)
+    {
+        Layer lastLayer = layers.get(layers.size()-1);
+        Matrix targets = sample.getTargetVals();
+        for (Neuron n : lastLayer.getNeurons()) { // For all neurons in output layer
+            double target = targets.get(n.getRow(), n.getColumn());
+            double rms = getError(lastLayer, sample);
+            if(rms > trainingParams.getErrorThreshold()){
+                System.out.println("Validation failed for neuron at row "
+                        + n.getRow() + " column " + n.getColumn() + " in output layer. "
+                + "Expected " + target + " with " + (lastLayer.isSoftmax() ? "cross-entropy" : "RMS")
+                + " error " + rms
+                + " but got " + n.getOutput());
+                return false;
+            }
+        }
+        return true;
+    }
+
     // for displaying the results when processing input samples
     // Assumes the net's output neuron errors and overall net error have already been
     // computed and saved in the case where the target output values are known.
@@ -658,11 +1654,66 @@ public class Net implements NetElement
         lastReportTime = System.currentTimeMillis();
     }
 
+    /**
+     * @return the number of complete passes made over the training samples.
+     */
+    public int getEpochs()
+    {
+        return epochs;
+    }
+
+    /**
+     * Replace the weights of the net with those of a snapshot taken of it.
+     * The optimizer starts again, as it would on a new net.
+     * @param snapshot
+     */
+    void restoreWeights(NetSnapshot snapshot)
+    {
+        snapshot.restoreWeights(layers);
+        // The optimizer state was cleared with the weights, so the step count
+        // that Adam's bias correction depends on starts again too.
+        numUpdates = 0;
+        incrementalValid = false;
+    }
+
+    /**
+     * @return false if any weight of the net is NaN or infinite, as after
+     * training has diverged.
+     */
+    public boolean hasFiniteWeights()
+    {
+        final boolean[] finite = {true};
+        accept(new NetElementVisitor()
+        {
+            @Override
+            public boolean visit(Connection conn)
+            {
+                double w = conn.getWeight();
+                if (Double.isNaN(w) || Double.isInfinite(w)) {
+                    finite[0] = false;
+                }
+                return false;
+            }
+        });
+        return finite[0];
+    }
+
     public int getInputSize()
     {
         return layers.get(1).size();
     }
 
+    /**
+     * Freeze the current topology and weights into an immutable model that
+     * many threads can score samples against concurrently. Must not be called
+     * while the net is training.
+     * @return
+     */
+    public NetSnapshot snapshot()
+    {
+        return new NetSnapshot(layers);
+    }
+
     private static class DebugVisitor extends NetElementVisitor
     {
         int neuronFwdConns, neuronBackConns;
@@ -777,6 +1828,39 @@ public class Net implements NetElement
         return pool.invoke(nAction).getResult();
     }
 
+    /**
+     * Release the threads used by the net and its layers. The net may not be
+     * trained or run after this, though snapshots taken of it remain usable.
+     */
+    void shutdown()
+    {
+        pool.shutdown();
+    }
+
+    /**
+     * Release the threads used by the net, and the memory of its weights, if
+     * they are kept off the heap. Off-heap weights still shared with a copy
+     * of the net are freed once the copy is closed too. The net may not be
+     * used after this, though snapshots taken of it remain usable.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        shutdown();
+        for (Layer layer : layers) {
+            for (Stencil stencil : layer.getStencils()) {
+                stencil.release();
+            }
+        }
+        if (arena != null) {
+            arena.release();
+        }
+    }
+
     private static class LoadWeightConfigVisitor extends NetElementVisitor
     {
         private final WeightsConfig cfg;
@@ -0,0 +1,506 @@
+package neural2d;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * <p>
+ * An immutable copy of the topology and weights of a Net, for inference only.
+ * The connections of each layer are compiled into flat arrays: for each neuron,
+ * the positions of its source neurons in a single activation vector, and the
+ * matching weights. A snapshot holds no per-sample state, so any number of
+ * threads may score samples against it at the same time; each call works in
+ * its own scratch activation vector. Later changes to the Net, such as further
+ * training, do not affect the snapshot.
+ * <p>
+ * A snapshot can be saved to a file in a binary layout that map() uses in
+ * place: the arrays of each layer are memory-mapped read-only, not read into
+ * the heap. Loading takes next to no time, whatever the size of the model,
+ * and any number of processes scoring against the same file share one copy
+ * of it in the operating system's page cache. The layout is little-endian:
+ * <pre>
+ *   long magic, int version,
+ *   int activationSize, inputOffset, inputRows, inputColumns,
+ *       inputChannel (-1 for none), outputOffset, outputRows, outputColumns,
+ *       numLayers
+ *   for each layer:
+ *       int offset, size, numConnections, transferFunction, softmax, 0,
+ *       long position of start, of source, of weight
+ *   the arrays start (int), source (int) and weight (double) of each layer,
+ *       each at a multiple of 8 bytes
+ * </pre>
+ * No one array may be 2 GB or more.
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+public final class NetSnapshot
+{
+    private final CompiledLayer[] layers; // the hidden and output layers, in order
+    private final int activationSize;     // the number of neurons in the net
+    private final int inputOffset, inputRows, inputColumns;
+    private final ColorChannel inputChannel;
+    private final int outputOffset, outputRows, outputColumns;
+
+    private final ThreadLocal<double[]> scratch = new ThreadLocal<double[]>()
+    {
+        @Override
+        protected double[] initialValue()
+        {
+            return newScratch();
+        }
+    };
+
+    private static final long MAGIC = 0x50414e5344324e4eL; // "NN2DSNAP", little-endian
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+    private static final int LAYER_HEADER_SIZE = 48;
+    // The transfer functions a saved layer may have, by their number in the file:
+    private static final TransferFunction[] TRANSFER_FUNCTIONS = {
+        TransferFunction.TANH, TransferFunction.LOGISTIC, TransferFunction.IDENTITY,
+        TransferFunction.RAMP, TransferFunction.GAUSSIAN
+    };
+
+    // The arrays are buffers, so that they can be arrays on the heap or
+    // mapped from a file.
+    private static final class CompiledLayer
+    {
+        final int offset;    // position of this layer's outputs in the activation vector
+        final int size;
+        final IntBuffer start;   // connections of neuron i are start[i] .. start[i+1]-1
+        final IntBuffer source;  // position of the source neuron in the activation vector
+        final DoubleBuffer weight;
+        final TransferFunction tf;
+        final boolean softmax;  // if the outputs are normalized together; see Softmax
+
+        CompiledLayer(int offset, int size, IntBuffer start, IntBuffer source, DoubleBuffer weight,
+                TransferFunction tf, boolean softmax)
+        {
+            this.offset = offset;
+            this.size = size;
+            this.start = start;
+            this.source = source;
+            this.weight = weight;
+            this.tf = tf;
+            this.softmax = softmax;
+        }
+    }
+
+    // Collects the back connections of the neurons of one layer, in order.
+    private static class CompileVisitor extends NetElementVisitor
+    {
+        final int[] layerOffsets;
+        int[] source;
+        double[] weight;
+        int count;
+
+        CompileVisitor(int[] layerOffsets, int numConnections)
+        {
+            this.layerOffsets = layerOffsets;
+            this.source = new int[numConnections];
+            this.weight = new double[numConnections];
+        }
+
+        @Override
+        public boolean visit(Connection conn)
+        {
+            Neuron from = conn.getFromNeuron();
+            Layer fromLayer = from.getLayer();
+            source[count] = layerOffsets[fromLayer.getIndex()]
+                    + from.getRow() * fromLayer.getNumColumns() + from.getColumn();
+            weight[count] = conn.getWeight();
+            count++;
+            return false;
+        }
+    }
+
+    // Copies the weights back into the back connections of the neurons of one
+    // layer, in the order they were collected.
+    private static class RestoreVisitor extends NetElementVisitor
+    {
+        final DoubleBuffer weight;
+        int count;
+
+        RestoreVisitor(DoubleBuffer weight)
+        {
+            this.weight = weight;
+        }
+
+        @Override
+        public boolean visit(Neuron neuron)
+        {
+            // The optimizer state no longer matches the weights
+            neuron.clearOptimizerState();
+            return true;
+        }
+
+        @Override
+        public boolean visit(Connection conn)
+        {
+            conn.setWeight(weight.get(count++));
+            conn.setDeltaWeight(0.0);
+            return false;
+        }
+    }
+
+    /**
+     * Use Net.snapshot() to create a snapshot.
+     * @param netLayers all the layers of the net, in order of forward propagation,
+     * starting with the bias layer and then the input layer.
+     */
+    NetSnapshot(List<Layer> netLayers)
+    {
+        int[] layerOffsets = new int[netLayers.size()];
+        int size = 0;
+        for(Layer layer: netLayers){
+            layerOffsets[layer.getIndex()] = size;
+            size += layer.size();
+        }
+        activationSize = size;
+
+        Layer inputLayer = netLayers.get(1);
+        inputOffset = layerOffsets[inputLayer.getIndex()];
+        inputRows = inputLayer.getNumRows();
+        inputColumns = inputLayer.getNumColumns();
+        inputChannel = inputLayer.getChannel();
+
+        Layer outputLayer = netLayers.get(netLayers.size()-1);
+        outputOffset = layerOffsets[outputLayer.getIndex()];
+        outputRows = outputLayer.getNumRows();
+        outputColumns = outputLayer.getNumColumns();
+
+        layers = new CompiledLayer[netLayers.size() - 2];
+        for(int i = 2; i < netLayers.size(); i++){
+            Layer layer = netLayers.get(i);
+            List<Neuron> neurons = layer.getNeurons();
+            int[] start = new int[neurons.size() + 1];
+            CompileVisitor v = new CompileVisitor(layerOffsets, layer.getNumBackConnections());
+            for(int n = 0; n < neurons.size(); n++){
+                start[n] = v.count;
+                neurons.get(n).acceptBackward(v);
+            }
+            start[neurons.size()] = v.count;
+            layers[i - 2] = new CompiledLayer(layerOffsets[i], neurons.size(),
+                    IntBuffer.wrap(start), IntBuffer.wrap(v.source), DoubleBuffer.wrap(v.weight),
+                    layer.getTransferFunction(), layer.isSoftmax());
+        }
+    }
+
+    // A snapshot read by map().
+    private NetSnapshot(CompiledLayer[] layers, int activationSize,
+            int inputOffset, int inputRows, int inputColumns, ColorChannel inputChannel,
+            int outputOffset, int outputRows, int outputColumns)
+    {
+        this.layers = layers;
+        this.activationSize = activationSize;
+        this.inputOffset = inputOffset;
+        this.inputRows = inputRows;
+        this.inputColumns = inputColumns;
+        this.inputChannel = inputChannel;
+        this.outputOffset = outputOffset;
+        this.outputRows = outputRows;
+        this.outputColumns = outputColumns;
+    }
+
+    /**
+     * Save the snapshot in the layout map() reads; see the class comment.
+     * @param file overwritten if it exists.
+     * @throws IOException
+     */
+    public void save(File file) throws IOException
+    {
+        long position = HEADER_SIZE + (long)LAYER_HEADER_SIZE * layers.length;
+        long[][] positions = new long[layers.length][3];
+        for(int i = 0; i < layers.length; i++){
+            CompiledLayer layer = layers[i];
+            positions[i][0] = position;
+            position = align(position + 4L * layer.start.capacity());
+            positions[i][1] = position;
+            position = align(position + 4L * layer.source.capacity());
+            positions[i][2] = position;
+            position = align(position + 8L * layer.weight.capacity());
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + LAYER_HEADER_SIZE * layers.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(MAGIC).putInt(VERSION);
+        header.putInt(activationSize).putInt(inputOffset).putInt(inputRows).putInt(inputColumns)
+                .putInt(inputChannel == null ? -1 : inputChannel.ordinal()).putInt(outputOffset).putInt(outputRows)
+                .putInt(outputColumns).putInt(layers.length);
+        for(int i = 0; i < layers.length; i++){
+            CompiledLayer layer = layers[i];
+            header.putInt(layer.offset).putInt(layer.size).putInt(layer.weight.capacity())
+                    .putInt(transferFunctionNumber(layer.tf)).putInt(layer.softmax ? 1 : 0).putInt(0)
+                    .putLong(positions[i][0]).putLong(positions[i][1]).putLong(positions[i][2]);
+        }
+        header.flip();
+
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+            raf.setLength(position);
+            FileChannel channel = raf.getChannel();
+            while(header.hasRemaining()){
+                channel.write(header, header.position());
+            }
+            for(int i = 0; i < layers.length; i++){
+                CompiledLayer layer = layers[i];
+                MappedByteBuffer buf = map(channel, FileChannel.MapMode.READ_WRITE,
+                        positions[i][0], 4L * layer.start.capacity());
+                buf.asIntBuffer().put((IntBuffer)layer.start.duplicate().clear());
+                buf.force();
+                buf = map(channel, FileChannel.MapMode.READ_WRITE,
+                        positions[i][1], 4L * layer.source.capacity());
+                buf.asIntBuffer().put((IntBuffer)layer.source.duplicate().clear());
+                buf.force();
+                buf = map(channel, FileChannel.MapMode.READ_WRITE,
+                        positions[i][2], 8L * layer.weight.capacity());
+                buf.asDoubleBuffer().put((DoubleBuffer)layer.weight.duplicate().clear());
+                buf.force();
+            }
+        }
+    }
+
+    /**
+     * Map a snapshot saved by save(). The weights are not read until they
+     * are used, and then from the page cache, shared with any other process
+     * that has mapped the same file. The file must not change while the
+     * snapshot is in use.
+     * @param file
+     * @return
+     * @throws IOException if the file is not a saved snapshot.
+     */
+    public static NetSnapshot map(File file) throws IOException
+    {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")){
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = read(channel, 0, HEADER_SIZE);
+            if(header.getLong() != MAGIC){
+                throw new IOException(file + " is not a saved net snapshot.");
+            }
+            int version = header.getInt();
+            if(version != VERSION){
+                throw new IOException(file + " is a version " + version
+                        + " snapshot; only version " + VERSION + " can be read.");
+            }
+            int activationSize = header.getInt();
+            int inputOffset = header.getInt();
+            int inputRows = header.getInt();
+            int inputColumns = header.getInt();
+            int channelNumber = header.getInt();
+            ColorChannel inputChannel = channelNumber < 0 ? null : ColorChannel.values()[channelNumber];
+            int outputOffset = header.getInt();
+            int outputRows = header.getInt();
+            int outputColumns = header.getInt();
+            int numLayers = header.getInt();
+
+            ByteBuffer layerHeaders = read(channel, HEADER_SIZE, (long)LAYER_HEADER_SIZE * numLayers);
+            CompiledLayer[] layers = new CompiledLayer[numLayers];
+            for(int i = 0; i < numLayers; i++){
+                int offset = layerHeaders.getInt();
+                int size = layerHeaders.getInt();
+                int numConnections = layerHeaders.getInt();
+                TransferFunction tf = TRANSFER_FUNCTIONS[layerHeaders.getInt()];
+                boolean softmax = layerHeaders.getInt() != 0;
+                layerHeaders.getInt();
+                long startPosition = layerHeaders.getLong();
+                long sourcePosition = layerHeaders.getLong();
+                long weightPosition = layerHeaders.getLong();
+                layers[i] = new CompiledLayer(offset, size,
+                        map(channel, FileChannel.MapMode.READ_ONLY, startPosition, 4L * (size + 1)).asIntBuffer(),
+                        map(channel, FileChannel.MapMode.READ_ONLY, sourcePosition, 4L * numConnections).asIntBuffer(),
+                        map(channel, FileChannel.MapMode.READ_ONLY, weightPosition, 8L * numConnections).asDoubleBuffer(),
+                        tf, softmax);
+            }
+            return new NetSnapshot(layers, activationSize, inputOffset, inputRows, inputColumns,
+                    inputChannel, outputOffset, outputRows, outputColumns);
+        } catch(IndexOutOfBoundsException e){
+            throw new IOException(file + " is not a valid net snapshot.", e);
+        }
+    }
+
+    private static long align(long position)
+    {
+        return (position + 7) & ~7L;
+    }
+
+    private static int transferFunctionNumber(TransferFunction tf)
+    {
+        for(int i = 0; i < TRANSFER_FUNCTIONS.length; i++){
+            if(TRANSFER_FUNCTIONS[i] == tf){
+                return i;
+            }
+        }
+        throw new IllegalStateException("The transfer function of a layer cannot be saved.");
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, long length) throws IOException
+    {
+        if(position + length > channel.size()){
+            throw new IOException("The snapshot file ends early.");
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int)length).order(ByteOrder.LITTLE_ENDIAN);
+        while(buf.hasRemaining()){
+            if(channel.read(buf, position + buf.position()) < 0){
+                throw new IOException("The snapshot file ends early.");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, FileChannel.MapMode mode,
+            long position, long length) throws IOException
+    {
+        if(length > Integer.MAX_VALUE){
+            throw new IOException("A layer has too many connections to map: " + length + " bytes.");
+        }
+        if(mode == FileChannel.MapMode.READ_ONLY && position + length > channel.size()){
+            throw new IOException("The snapshot file ends early.");
+        }
+        MappedByteBuffer buf = channel.map(mode, position, length);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        return buf;
+    }
+
+    /**
+     * @return a new scratch activation vector, for use with
+     * score(Matrix, double[]).
+     */
+    public double[] newScratch()
+    {
+        double[] a = new double[activationSize];
+        a[0] = 1.0; // The bias neuron is always first, with a constant output
+        return a;
+    }
+
+    public Matrix score(Sample sample)
+    {
+        return score(sample.decode(inputChannel));
+    }
+
+    /**
+     * Feed the inputs forward, using a scratch activation vector owned by the
+     * calling thread.
+     * @param inputs
+     * @return the outputs of the output layer.
+     */
+    public Matrix score(Matrix inputs)
+    {
+        return score(inputs, scratch.get());
+    }
+
+    /**
+     * Feed the inputs forward using the given scratch activation vector, which
+     * must not be in use by any other thread. This suits callers that manage
+     * their own buffers, for example with many short-lived threads where a
+     * buffer per thread would be wasteful.
+     * @param inputs
+     * @param activations from newScratch()
+     * @return the outputs of the output layer.
+     */
+    public Matrix score(Matrix inputs, double[] activations)
+    {
+        if(inputs.getNumRows() != inputRows || inputs.getNumColumns() != inputColumns){
+            throw new IllegalArgumentException("Input is " + inputs.getNumRows() + "x"
+                    + inputs.getNumColumns() + " but the input layer is "
+                    + inputRows + "x" + inputColumns);
+        }
+        for(int row = 0; row < inputRows; row++){
+            for(int col = 0; col < inputColumns; col++){
+                activations[inputOffset + row * inputColumns + col] = inputs.get(row, col);
+            }
+        }
+
+        for(CompiledLayer layer: layers){
+            IntBuffer start = layer.start;
+            IntBuffer source = layer.source;
+            DoubleBuffer weight = layer.weight;
+            for(int n = 0; n < layer.size; n++){
+                double sum = 0.0;
+                int end = start.get(n + 1);
+                for(int c = start.get(n); c < end; c++){
+                    sum += weight.get(c) * activations[source.get(c)];
+                }
+                activations[layer.offset + n] = layer.tf.transfer(sum);
+            }
+            if(layer.softmax){
+                Softmax.normalize(activations, layer.offset, layer.offset + layer.size);
+            }
+        }
+
+        Matrix outputs = new Matrix(outputRows, outputColumns);
+        for(int row = 0; row < outputRows; row++){
+            for(int col = 0; col < outputColumns; col++){
+                outputs.set(row, col, activations[outputOffset + row * outputColumns + col]);
+            }
+        }
+        return outputs;
+    }
+
+    /**
+     * Score the sample and measure the error of the outputs the same way the
+     * Net does while training, not including any regularization term: RMS,
+     * or cross-entropy for a softmax output layer.
+     * @param sample a sample with target values.
+     * @return
+     */
+    public double getError(Sample sample)
+    {
+        Matrix outputs = score(sample);
+        if(layers[layers.length - 1].softmax){
+            double[] p = new double[outputRows * outputColumns];
+            for(int i = 0; i < p.length; i++){
+                p[i] = outputs.get(i / outputColumns, i % outputColumns);
+            }
+            return Softmax.crossEntropy(sample.getTargetVals(), p, 0);
+        }
+        double sum = 0.0;
+        for(int row = 0; row < outputRows; row++){
+            for(int col = 0; col < outputColumns; col++){
+                double delta = sample.getTargetVal(row, col) - outputs.get(row, col);
+                sum += delta * delta;
+            }
+        }
+        return sum / (2.0 * outputRows * outputColumns);
+    }
+
+    /**
+     * Copy the weights of this snapshot back into the net it was taken from.
+     * The last delta weights, used for momentum, are reset to zero, as is any
+     * other optimizer state.
+     * @param netLayers the layers of the net, which must not have changed
+     * topology since the snapshot was taken.
+     */
+    void restoreWeights(List<Layer> netLayers)
+    {
+        for(int i = 2; i < netLayers.size(); i++){
+            List<Neuron> neurons = netLayers.get(i).getNeurons();
+            RestoreVisitor v = new RestoreVisitor(layers[i - 2].weight);
+            for(Neuron n: neurons){
+                n.acceptBackward(v);
+            }
+        }
+    }
+
+    public int getNumInputRows()
+    {
+        return inputRows;
+    }
+
+    public int getNumInputColumns()
+    {
+        return inputColumns;
+    }
+
+    public ColorChannel getInputChannel()
+    {
+        return inputChannel;
+    }
+}
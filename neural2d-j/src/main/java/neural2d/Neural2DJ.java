@@ -3,6 +3,7 @@ package neural2d;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import neural2d.config.ConfigurationException;
 import neural2d.config.NetConfig;
@@ -19,8 +20,15 @@ public class Neural2DJ
     private Mode mode = null;
     private File nom = null, outputFile = null;
     private InputStream inputs = null;
+    private File inputFile = null;      // null if the inputs are standard in
     private File outputNOM = null;
+    private File validationFile = null;
+    private File snapshotFile = null;
+    private boolean calibrate = false;
+    private boolean expectValidationFile = false;
     private boolean force = false;
+    private boolean incremental = false;
+    private boolean stream = false;
     private Net myNet;
     private NetConfig config;
 
@@ -56,15 +64,36 @@ public class Neural2DJ
     public static String usage()
     {
         return "Usage: Neural2DJ train <NOM> <input file> <trained NOM> [--force|-f]\n"
+                + "                  [--validation <validation input file>]\n"
                 + "             Train the network described by the NOM using the .\n"
                 + "             given input file. The trained network is written to\n"
                 + "             the trained NOM file.\n"
                 + "           --force/-f if the trained NOM file exists, overwrite it.\n"
-                + "        Neural2DJ validate <NOM> <inputs>\n"
+                + "           --validation measure the error on these held-out samples\n"
+                + "             while training, stop early if it stops improving, and\n"
+                + "             keep the weights that did best on them.\n"
+                + "        Neural2DJ validate <NOM> <inputs> [--incremental]\n"
                 + "             Validates that a trained network produces the target\n"
                 + "             outputs using the given input file.\n"
-                + "        Neural2DJ run <NOM> <inputs>\n"
-                + "             Run a trained network on some inputs.\n";
+                + "        Neural2DJ run <NOM> <inputs> [--incremental]\n"
+                + "             Run a trained network on some inputs.\n"
+                + "           --incremental only propagate the inputs that changed\n"
+                + "             since the previous sample.\n"
+                + "        --stream with train, validate or run, read the samples from\n"
+                + "             the input file as they are used, and again for each\n"
+                + "             epoch, instead of loading them all first, for input\n"
+                + "             files too large for memory.\n"
+                + "        Neural2DJ compile <NOM> <snapshot file>\n"
+                + "             Save a trained network as a snapshot that inference\n"
+                + "             servers map read-only instead of loading it.\n"
+                + "        Neural2DJ plan <NOM> [--calibrate]\n"
+                + "             Count the neurons and connections of each layer, and\n"
+                + "             estimate the memory and operations the network needs,\n"
+                + "             without building it.\n"
+                + "           --calibrate time a small network on this machine to\n"
+                + "             estimate the time per training sample.\n"
+                + "        A NOM file ending in .bnom is read and written in a compact\n"
+                + "        binary format, which is much faster for large networks.\n";
 
     }
 
@@ -86,29 +115,61 @@ public class Neural2DJ
                 if (!nom.canRead()) {
                     throw new IllegalArgumentException("NOM file is not readable: " + arg);
                 }
+            } else if (mode == Mode.COMPILE) {
+                if (snapshotFile != null) {
+                    throw new IllegalArgumentException("Unexpected argument: " + arg);
+                }
+                snapshotFile = new File(arg);
+            } else if (mode == Mode.PLAN) {
+                if (!arg.equals("--calibrate")) {
+                    throw new IllegalArgumentException("Unexpected argument: " + arg);
+                }
+                calibrate = true;
             } else if (inputs == null) {
-                File inputFile = new File(arg);
                 if (arg.equals("-")) {
                     // read inputs from standard in
                     inputs = System.in;
-                } else if (!inputFile.exists()
-                        || !inputFile.isFile()) {
-                    throw new IllegalArgumentException("No such file " + arg);
-                } else if (!inputFile.canRead()) {
-                    throw new IllegalArgumentException("Input file is not readable: " + arg);
                 } else {
+                    inputFile = new File(arg);
+                    if (!inputFile.exists()
+                            || !inputFile.isFile()) {
+                        throw new IllegalArgumentException("No such file " + arg);
+                    } else if (!inputFile.canRead()) {
+                        throw new IllegalArgumentException("Input file is not readable: " + arg);
+                    }
                     try {
                         inputs = new FileInputStream(inputFile);
                     } catch (FileNotFoundException ex) {
                         throw new IllegalArgumentException("No such file " + arg);
                     }
                 }
+            } else if (arg.equals("--incremental")) {
+                if (mode == Mode.TRAIN) {
+                    // Training changes the weights after every sample.
+                    throw new IllegalArgumentException("Unexpected argument: " + arg);
+                }
+                incremental = true;
+            } else if (arg.equals("--stream")) {
+                stream = true;
+            } else if (expectValidationFile) {
+                validationFile = new File(arg);
+                if (!validationFile.exists()
+                        || !validationFile.isFile()) {
+                    throw new IllegalArgumentException("No such file " + arg);
+                }
+                if (!validationFile.canRead()) {
+                    throw new IllegalArgumentException("Validation file is not readable: " + arg);
+                }
+                expectValidationFile = false;
             } else if (mode == Mode.TRAIN) {
                 switch (arg) {
                     case "--force":
                     case "-f":
                         force = true;
                         break;
+                    case "--validation":
+                        expectValidationFile = true;
+                        break;
                     default:
                         if (force) {
                             throw new IllegalArgumentException("Unexpected argument: " + arg);
@@ -133,18 +194,65 @@ public class Neural2DJ
             }
         }
 
+        if (expectValidationFile) {
+            throw new IllegalArgumentException("Missing validation input file.");
+        }
+
+        if (stream && inputFile == null) {
+            throw new IllegalArgumentException("--stream needs an input file, not standard input.");
+        }
+
+        if (mode == Mode.COMPILE && snapshotFile == null) {
+            throw new IllegalArgumentException("Missing snapshot file.");
+        }
+
         config = NetConfig.parseConfig(nom);
+        if (mode == Mode.PLAN) {
+            return;
+        }
 
         myNet = new Net(config);   // Create net, neurons, and connections
-        myNet.sampleSet.loadSamples(SampleConfig.parseConfig(inputs,
-                mode != Mode.RUN));
+        if (mode == Mode.COMPILE) {
+            return;
+        }
+        myNet.setIncremental(incremental);
+        if (stream) {
+            try {
+                inputs.close();
+            } catch (IOException e) {
+                // Nothing was read from it
+            }
+            myNet.sampleSet.streamSamples(inputFile, mode != Mode.RUN);
+        } else {
+            myNet.sampleSet.loadSamples(SampleConfig.parseConfig(inputs,
+                    mode != Mode.RUN));
+        }
+        if (validationFile != null) {
+            myNet.validationSet.loadSamples(SampleConfig.parseConfig(validationFile, true));
+        }
     }
 
-    public void run() throws Net.SampleException, ConfigurationException
+    public void run() throws Net.SampleException, ConfigurationException, IOException
     {
-        if (mode == Mode.TRAIN) {
+        if (mode == Mode.PLAN) {
+            CapacityPlanner planner = new CapacityPlanner(config);
+            if (calibrate) {
+                planner.calibrate();
+            }
+            System.out.print(planner.report());
+        } else if (mode == Mode.COMPILE) {
+            myNet.snapshot().save(snapshotFile);
+            myNet.close();
+            System.out.println("Saved snapshot " + snapshotFile + " ("
+                    + (snapshotFile.length() + 1023) / 1024 + " KB).");
+        } else if (mode == Mode.TRAIN) {
             myNet.train();
-            System.out.println("Solved!   -- Saving weights...");
+            if (myNet.getStopReason() == null) {
+                System.out.println("Solved!   -- Saving weights...");
+            } else {
+                System.out.println("Not solved: " + myNet.getStopReason()
+                        + ".   -- Saving the best weights found...");
+            }
             config.writeTrainedNOM(myNet, outputFile);
         } else if(mode == Mode.VALIDATE){
             if(myNet.validate()){
@@ -161,6 +269,6 @@ public class Neural2DJ
     private enum Mode
     {
 
-        TRAIN, VALIDATE, RUN
+        TRAIN, VALIDATE, RUN, COMPILE, PLAN
     };
 }
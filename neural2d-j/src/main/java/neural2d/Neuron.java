@@ -28,8 +28,27 @@ public interface Neuron extends NetElement
     // sum through the transfer function.
     void feedForward();
 
+    // Like feedForward(), but the source outputs are read from, and this neuron's
+    // output is written to, the given activations instead of the neurons. This
+    // leaves the neurons untouched, so it may run for several samples at once.
+    void feedForward(Activations activations);
+
     double getGradient();
 
+    // For incremental (delta) inference
+    // The weighted sum of the inputs computed by the last feedForward(), before
+    // it was passed through the transfer function.
+    double getSum();
+
+    // For incremental (delta) inference
+    // Adjust the cached weighted input sum without recomputing the output. Call
+    // refreshOutput() once all the adjustments for a pass have been made.
+    void addToSum(double delta);
+
+    // For incremental (delta) inference
+    // Recompute the output from the cached weighted input sum.
+    void refreshOutput();
+
     int getColumn();
 
     /**
@@ -55,14 +74,18 @@ public interface Neuron extends NetElement
     void setOutput(double f);
 
     // For backprop training
-    void updateInputWeights(double eta, double alpha);
+    void updateInputWeights(double eta, double alpha, Optimizer optimizer, long step);
 
-    void addBackConnection(Connection c);
+    void clearOptimizerState();
 
-    void addForwardConnection(Connection c);
+    void addBackConnection(Connection c);
 
     void setBiasConnection(Connection c);
 
+    // Like accept(), but traverses the connections from the source neurons to
+    // this one, including the bias connection, instead of the forward ones.
+    void acceptBackward(NetElementVisitor v);
+
     public static class AccumulateSquareWeightsCommand implements Command<Neuron,Double>
     {
         private static class SquareWeightsVisitor extends NetElementVisitor
@@ -97,10 +120,26 @@ public interface Neuron extends NetElement
 
     public static class FeedForwardCommand implements Command<Neuron,Double>
     {
+        private final Activations activations;
+
+        public FeedForwardCommand()
+        {
+            this(null);
+        }
+
+        public FeedForwardCommand(Activations activations)
+        {
+            this.activations = activations;
+        }
+
         @Override
         public Command.DoubleResult execute(Neuron n)
         {
-            n.feedForward();
+            if(activations == null){
+                n.feedForward();
+            } else {
+                n.feedForward(activations);
+            }
             return new Command.DoubleResult(0.0);
         }
 
@@ -115,17 +154,26 @@ public interface Neuron extends NetElement
     {
         private final double eta;
         private final double alpha;
+        private final Optimizer optimizer;
+        private final long step;
 
         public InputWeightsCommand(double eta, double alpha)
+        {
+            this(eta, alpha, Optimizer.SGD, 0);
+        }
+
+        public InputWeightsCommand(double eta, double alpha, Optimizer optimizer, long step)
         {
             this.eta = eta;
             this.alpha = alpha;
+            this.optimizer = optimizer;
+            this.step = step;
         }
 
         @Override
         public Command.DoubleResult execute(Neuron n)
         {
-            n.updateInputWeights(eta, alpha);
+            n.updateInputWeights(eta, alpha, optimizer, step);
             return new Command.DoubleResult(0.0);
         }
 
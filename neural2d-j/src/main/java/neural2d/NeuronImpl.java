@@ -1,9 +1,7 @@
 package neural2d;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -13,16 +11,14 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class NeuronImpl implements Neuron
 {
     protected double output, gradient;
-    // All the input and output connections for this neuron.
-    List<Connection> connections;   // the container of Connection records
-    Set<Neuron> sourceNeurons;
+    protected double sum; // weighted input sum from the last feedForward()
     protected TransferFunction transferFunction;
     protected Layer layer;
     int row,col; // position of this Neuron in its layer.
     List<Connection> backConnections;
-
-    List<Connection> forwardConnections;
     Connection biasConnection;
+    private double[] optimizerState;
+    private Optimizer stateOptimizer; // the optimizer whose state optimizerState is
     private static final AtomicInteger idSource = new AtomicInteger(1);
     protected final int id;
 
@@ -33,15 +29,12 @@ public class NeuronImpl implements Neuron
     {
         this.output = 1.0;
         this.gradient = 0.0;
-        this.connections = new ArrayList<>();
         this.transferFunction = tf;
-        this.sourceNeurons = new HashSet<>();
         this.layer = layer;
         this.row = row;
         this.col = col;
         this.id = idSource.getAndIncrement();
         this.backConnections = new ArrayList<>();
-        this.forwardConnections = new ArrayList<>();
     }
 
     @Override
@@ -94,7 +87,8 @@ public class NeuronImpl implements Neuron
      * forward ones.
      * @param v
      */
-    protected void acceptBackward(NetElementVisitor v)
+    @Override
+    public void acceptBackward(NetElementVisitor v)
     {
         if(v.visit(this)){
             for(Connection conn: backConnections){
@@ -104,43 +98,32 @@ public class NeuronImpl implements Neuron
     }
 
     /**
-     * Like acceptBackward(), but traverses the fwdConnections instead of the
-     * backward ones.
+     * Like acceptBackward(), but traverses the forward connections instead of
+     * the backward ones. These are not stored in the neuron; each layer that
+     * this neuron's layer feeds finds its connections from this neuron.
      * @param v
      */
     protected void acceptForward(NetElementVisitor v)
     {
         if(v.visit(this)){
-            for(Connection conn: forwardConnections){
-                conn.accept(v);
+            for(Layer sink: layer.getSinks()){
+                sink.acceptForward(this, v);
             }
         }
     }
 
-    private static class SumDOWVisitor extends NetElementVisitor
-    {
-        double sum =0.0;
-
-        @Override
-        public boolean visit(Connection conn)
-        {
-            sum += conn.getWeight() * conn.getToNeuron().getGradient();
-            return false;
-        }
-    }
-
     // Used in hidden layer backprop training
+    // The layers this neuron feeds have already scattered their weighted
+    // gradients into the gradient sums of this neuron's layer.
     protected double sumDOW_nextLayer()
     {
-        SumDOWVisitor v = new SumDOWVisitor();
-        accept(v);
-        return v.sum;
+        return layer.getGradientSums()[row * layer.getNumColumns() + col];
     }
 
     @Override
     public boolean hasForwardConnections()
     {
-        return !forwardConnections.isEmpty();
+        return getNumForwardConnections() > 0;
     }
 
     @Override
@@ -153,7 +136,11 @@ public class NeuronImpl implements Neuron
     @Override
     public int getNumForwardConnections()
     {
-        return forwardConnections.size();
+        int count = 0;
+        for(Layer sink: layer.getSinks()){
+            count += sink.getNumForwardConnections(this);
+        }
+        return count;
     }
 
     @Override
@@ -197,11 +184,21 @@ public class NeuronImpl implements Neuron
     private static class FeedForwardVisitor extends NetElementVisitor
     {
         double sum =0.0;
+        final Activations activations;
+
+        FeedForwardVisitor(Activations activations)
+        {
+            this.activations = activations;
+        }
 
         @Override
         public boolean visit(Connection conn)
         {
-            sum += conn.getWeight() * conn.getFromNeuron().getOutput();
+            if(activations == null){
+                sum += conn.getWeight() * conn.getFromNeuron().getOutput();
+            } else {
+                sum += conn.getWeight() * activations.get(conn.getFromNeuron());
+            }
             return false;
         }
     }
@@ -211,22 +208,57 @@ public class NeuronImpl implements Neuron
     // sum through the transfer function.
     @Override
     public void feedForward(){
-        FeedForwardVisitor v = new FeedForwardVisitor();
+        FeedForwardVisitor v = new FeedForwardVisitor(null);
         acceptBackward(v);
+        sum = v.sum;
 
         // Shape the output by passing it through the transfer function:
-        setOutput(transferFunction.transfer(v.sum));
+        setOutput(transferFunction.transfer(sum));
+    }
+
+    @Override
+    public void feedForward(Activations activations)
+    {
+        FeedForwardVisitor v = new FeedForwardVisitor(activations);
+        acceptBackward(v);
+        activations.set(this, transferFunction.transfer(v.sum));
+    }
+
+    @Override
+    public double getSum()
+    {
+        return sum;
+    }
+
+    @Override
+    public void addToSum(double delta)
+    {
+        sum += delta;
+    }
+
+    @Override
+    public void refreshOutput()
+    {
+        setOutput(transferFunction.transfer(sum));
     }
 
     private static class UpdateWeightsVisitor extends NetElementVisitor
     {
         double eta, alpha, gradient;
+        final Optimizer optimizer;
+        final double[] state;
+        final long step;
+        int offset;
 
-        public UpdateWeightsVisitor(double eta, double alpha, double gradient)
+        public UpdateWeightsVisitor(double eta, double alpha, double gradient,
+                Optimizer optimizer, double[] state, long step)
         {
             this.eta = eta;
             this.alpha = alpha;
             this.gradient = gradient;
+            this.optimizer = optimizer;
+            this.state = state;
+            this.step = step;
         }
 
 
@@ -234,16 +266,11 @@ public class NeuronImpl implements Neuron
         public boolean visit(Connection conn)
         {
             Neuron fromNeuron = conn.getFromNeuron();
-            double oldDeltaWeight = conn.getDeltaWeight();
 
-            double newDeltaWeight =
-                    // Individual input, magnified by the gradient and train rate:
-                    eta
-                    * fromNeuron.getOutput()
-                    * gradient
-                    // Add momentum = a fraction of the previous delta weight;
-                    + alpha
-                    * oldDeltaWeight;
+            double newDeltaWeight = optimizer.deltaWeight(
+                    fromNeuron.getOutput() * gradient, conn.getDeltaWeight(),
+                    state, offset, eta, alpha, step);
+            offset += optimizer.getStateSize();
 
             conn.setDeltaWeight(newDeltaWeight);
             conn.setWeight(conn.getWeight() + newDeltaWeight);
@@ -254,13 +281,49 @@ public class NeuronImpl implements Neuron
 
     // For backprop training
     @Override
-    public void updateInputWeights(double eta, double alpha){
+    public void updateInputWeights(double eta, double alpha, Optimizer optimizer, long step){
+        if(layer.canSkipUpdate(gradient, optimizer)
+                && layer.isMomentumNegligible(getMaxDeltaWeight(), alpha)){
+            layer.countWeightUpdates(0, backConnections.size());
+            return;
+        }
         // The weights to be updated are the weights from the neurons in the
         // preceding layer (the source layer) to this neuron:
-        UpdateWeightsVisitor v = new UpdateWeightsVisitor(eta, alpha, gradient);
+        UpdateWeightsVisitor v = new UpdateWeightsVisitor(eta, alpha, gradient,
+                optimizer, getOptimizerState(backConnections.size(), optimizer), step);
         acceptBackward(v);
     }
 
+    // The largest magnitude of the delta weights of the back connections.
+    private double getMaxDeltaWeight()
+    {
+        double max = 0.0;
+        for(Connection conn: backConnections){
+            max = Math.max(max, Math.abs(conn.getDeltaWeight()));
+        }
+        return max;
+    }
+
+    // The optimizer state for each back connection, in the order the back
+    // connections are visited. It is discarded if the optimizer changes, even
+    // to one that keeps as much state.
+    protected double[] getOptimizerState(int numConnections, Optimizer optimizer)
+    {
+        int stateSize = numConnections * optimizer.getStateSize();
+        if(optimizerState == null || optimizerState.length != stateSize
+                || stateOptimizer != optimizer){
+            optimizerState = new double[stateSize];
+            stateOptimizer = optimizer;
+        }
+        return optimizerState;
+    }
+
+    @Override
+    public void clearOptimizerState()
+    {
+        optimizerState = null;
+    }
+
     @Override
     public double getOutput()
     {
@@ -292,12 +355,6 @@ public class NeuronImpl implements Neuron
         this.biasConnection = c;
     }
 
-    @Override
-    public void addForwardConnection(Connection c)
-    {
-        forwardConnections.add(c);
-    }
-
 
     @Override
     public int getColumn()
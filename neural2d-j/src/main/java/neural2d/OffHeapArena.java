@@ -0,0 +1,120 @@
+package neural2d;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Memory outside the Java heap for the weights and delta weights of the
+ * stencils of a net, for nets whose weights do not fit in a reasonable heap.
+ * The weights are held in direct buffers, which the garbage collector
+ * neither scans nor moves, and which are not limited by the maximum heap
+ * size, only by -XX:MaxDirectMemorySize.
+ * <p>
+ * A net and its copies share the weights until they change them, so they
+ * share one arena. Each net releases it when it is closed, and once all of
+ * them have, the buffers are freed at once rather than whenever the garbage
+ * collector gets around to them. No buffer is freed before then, including
+ * the ones a stencil stopped using when it took its own copy of the
+ * weights. Nothing may read the weights of a closed net.
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+final class OffHeapArena
+{
+    private static final int BYTES_PER_DOUBLE = 8;
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+        } catch(ReflectiveOperationException | RuntimeException e){
+            invokeCleaner = null; // Before Java 9
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private int refs = 1;
+    private long size;   // bytes
+
+    /**
+     * @param n
+     * @return n doubles of off-heap memory, all 0.0.
+     */
+    synchronized DoubleBuffer allocate(int n)
+    {
+        if(refs == 0){
+            throw new IllegalStateException("The off-heap weights were freed.");
+        }
+        if((long)n * BYTES_PER_DOUBLE > Integer.MAX_VALUE){
+            throw new IllegalArgumentException(n + " weights are too many for one off-heap buffer.");
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(n * BYTES_PER_DOUBLE).order(ByteOrder.nativeOrder());
+        buffers.add(buf);
+        size += buf.capacity();
+        return buf.asDoubleBuffer();
+    }
+
+    /**
+     * @return the number of bytes allocated.
+     */
+    synchronized long getSize()
+    {
+        return size;
+    }
+
+    // Called for each copy of the net sharing the arena.
+    synchronized OffHeapArena retain()
+    {
+        ++refs;
+        return this;
+    }
+
+    // Called when a net sharing the arena is closed. The last one frees it.
+    synchronized void release()
+    {
+        if(refs > 0 && --refs == 0){
+            for(ByteBuffer buf: buffers){
+                free(buf);
+            }
+            buffers.clear();
+            size = 0;
+        }
+    }
+
+    // Free a direct buffer now, rather than when it is garbage collected. The
+    // way to do so is internal to the JVM: Unsafe.invokeCleaner() from Java
+    // 9, and the buffer's Cleaner before then. If neither is available, the
+    // buffer is left to the garbage collector.
+    private static void free(ByteBuffer buf)
+    {
+        try {
+            if(INVOKE_CLEANER != null){
+                INVOKE_CLEANER.invoke(UNSAFE, buf);
+            } else {
+                Method cleaner = buf.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object c = cleaner.invoke(buf);
+                if(c != null){
+                    c.getClass().getMethod("clean").invoke(c);
+                }
+            }
+        } catch(ReflectiveOperationException | RuntimeException e){
+            // Freed when it is garbage collected
+        }
+    }
+}
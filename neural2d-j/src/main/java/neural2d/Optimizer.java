@@ -0,0 +1,183 @@
+package neural2d;
+
+/**
+ * <p>
+ * The rule used to turn a neuron's gradient into a change in the weight of
+ * each of its input connections. Optimizers that need to remember something
+ * about each connection between updates (a running average, for example)
+ * keep it in an array of getStateSize() doubles per connection, owned by
+ * the neuron, so that a Connection carries no more than its weight and last
+ * delta weight.
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+public interface Optimizer {
+    // Decay rates and the small constant that keeps the adaptive optimizers
+    // from dividing by zero. These are the values usually recommended.
+    public static final double RMSPROP_DECAY = 0.9;
+    public static final double ADAM_BETA1 = 0.9;
+    public static final double ADAM_BETA2 = 0.999;
+    public static final double EPSILON = 1e-8;
+
+    /**
+     * @return the number of doubles of state kept for each connection.
+     */
+    public int getStateSize();
+
+    /**
+     * @return true if the optimizer scales the learning rate of each
+     * connection itself, in which case dynamic eta adjustment is not used.
+     */
+    public boolean isAdaptive();
+
+    /**
+     * @param g the input to the connection times the gradient of the neuron;
+     * adding a positive multiple of this to the weight reduces the error.
+     * @param oldDeltaWeight the change made to the weight by the last update.
+     * @param state the optimizer state of the neuron's connections.
+     * @param offset the position of this connection's state in the array.
+     * @param eta the learning rate.
+     * @param alpha the momentum factor.
+     * @param step the number of updates made so far, including this one.
+     * @return the change to make to the weight.
+     */
+    public double deltaWeight(double g, double oldDeltaWeight, double[] state,
+            int offset, double eta, double alpha, long step);
+
+    // Plain gradient descent, with momentum if alpha > 0.
+    public static final Optimizer SGD = new Optimizer()
+            {
+                @Override
+                public int getStateSize()
+                {
+                    return 0;
+                }
+
+                @Override
+                public boolean isAdaptive()
+                {
+                    return false;
+                }
+
+                @Override
+                public double deltaWeight(double g, double oldDeltaWeight, double[] state,
+                        int offset, double eta, double alpha, long step)
+                {
+                    return
+                        // Individual input, magnified by the gradient and train rate:
+                        eta * g
+                        // Add momentum = a fraction of the previous delta weight;
+                        + alpha * oldDeltaWeight;
+                }
+
+                @Override
+                public String toString()
+                {
+                    return "sgd";
+                }
+            };
+
+    // Nesterov accelerated gradient, with alpha as the momentum factor. The
+    // state is the velocity. The weight is moved as if the gradient had been
+    // taken at the point the momentum was about to carry it to.
+    public static final Optimizer NESTEROV = new Optimizer()
+            {
+                @Override
+                public int getStateSize()
+                {
+                    return 1;
+                }
+
+                @Override
+                public boolean isAdaptive()
+                {
+                    return false;
+                }
+
+                @Override
+                public double deltaWeight(double g, double oldDeltaWeight, double[] state,
+                        int offset, double eta, double alpha, long step)
+                {
+                    double oldVelocity = state[offset];
+                    double velocity = alpha * oldVelocity + eta * g;
+                    state[offset] = velocity;
+                    return (1.0 + alpha) * velocity - alpha * oldVelocity;
+                }
+
+                @Override
+                public String toString()
+                {
+                    return "nesterov";
+                }
+            };
+
+    // Divides the learning rate of each connection by a running average of
+    // the magnitude of its recent gradients. The state is the average of g^2.
+    public static final Optimizer RMSPROP = new Optimizer()
+            {
+                @Override
+                public int getStateSize()
+                {
+                    return 1;
+                }
+
+                @Override
+                public boolean isAdaptive()
+                {
+                    return true;
+                }
+
+                @Override
+                public double deltaWeight(double g, double oldDeltaWeight, double[] state,
+                        int offset, double eta, double alpha, long step)
+                {
+                    double meanSquare = RMSPROP_DECAY * state[offset]
+                            + (1.0 - RMSPROP_DECAY) * g * g;
+                    state[offset] = meanSquare;
+                    return eta * g / (Math.sqrt(meanSquare) + EPSILON);
+                }
+
+                @Override
+                public String toString()
+                {
+                    return "rmsprop";
+                }
+            };
+
+    // Like RMSProp, but also smooths the gradient itself, and corrects both
+    // averages for starting at zero. The state is the two running averages.
+    public static final Optimizer ADAM = new Optimizer()
+            {
+                @Override
+                public int getStateSize()
+                {
+                    return 2;
+                }
+
+                @Override
+                public boolean isAdaptive()
+                {
+                    return true;
+                }
+
+                @Override
+                public double deltaWeight(double g, double oldDeltaWeight, double[] state,
+                        int offset, double eta, double alpha, long step)
+                {
+                    double mean = ADAM_BETA1 * state[offset] + (1.0 - ADAM_BETA1) * g;
+                    double meanSquare = ADAM_BETA2 * state[offset + 1] + (1.0 - ADAM_BETA2) * g * g;
+                    state[offset] = mean;
+                    state[offset + 1] = meanSquare;
+                    double meanHat = mean / (1.0 - Math.pow(ADAM_BETA1, step));
+                    double meanSquareHat = meanSquare / (1.0 - Math.pow(ADAM_BETA2, step));
+                    return eta * meanHat / (Math.sqrt(meanSquareHat) + EPSILON);
+                }
+
+                @Override
+                public String toString()
+                {
+                    return "adam";
+                }
+            };
+}
@@ -0,0 +1,309 @@
+package neural2d;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Runs the forward pass for several samples at once by dividing the hidden and
+ * output layers into stages of roughly equal cost, each run by its own thread.
+ * The stages are joined by bounded hand-off queues, so that sample i+1 can be
+ * in the first stage while sample i is in the second. Each sample in flight
+ * carries its own Activations, so the stages never write to the neurons; they
+ * only read the weights. The stages take the layers in order of forward
+ * propagation, so each layer comes after the layers it is fed by. Within a
+ * stage, each layer still executes its commands in parallel on the net's pool.
+ * <p>
+ * Because the stages read the weights while samples are in flight, the weights
+ * must not be changed until the samples that were submitted have all been
+ * taken back out. See Net.train() for the staleness policy this implies.
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+class Pipeline
+{
+    private final List<Layer> layers;
+    private final Layer inputLayer;
+    private final List<Stage> stages = new ArrayList<>();
+    private final BlockingQueue<Packet> input, output;
+    private final int capacity; // samples that may be in flight without blocking
+    private int inFlight;
+    private int numSamples;
+    private long startTime;
+    private boolean closed;
+
+    static class Packet
+    {
+        final Sample sample;
+        final Activations activations;
+        Throwable error;
+
+        Packet(Sample sample, Activations activations)
+        {
+            this.sample = sample;
+            this.activations = activations;
+        }
+
+        /**
+         * Copy this sample's outputs back into all the neurons of the net.
+         */
+        void restore(List<Layer> layers)
+        {
+            for(Layer layer: layers){
+                if(layer.getLayerType() != LayerType.BIAS){
+                    activations.restore(layer);
+                }
+            }
+        }
+    }
+
+    private static final Packet END = new Packet(null, null);
+
+    private static class Stage extends Thread
+    {
+        private final List<Layer> layers;
+        private final BlockingQueue<Packet> in, out;
+        long busyTime;
+        volatile boolean closing;  // pass packets on without working on them
+
+        Stage(int num, List<Layer> layers, BlockingQueue<Packet> in, BlockingQueue<Packet> out)
+        {
+            super("pipeline-stage-" + num);
+            setDaemon(true);
+            this.layers = layers;
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                while(true){
+                    Packet p = in.take();
+                    if(p != END && p.error == null && !closing){
+                        long start = System.nanoTime();
+                        try {
+                            for(Layer layer: layers){
+                                layer.feedForward(p.activations);
+                            }
+                        } catch (Throwable e){
+                            // Passed on, so that take() throws it rather than
+                            // waiting forever for a stage that died.
+                            p.error = e;
+                        }
+                        busyTime += System.nanoTime() - start;
+                    }
+                    out.put(p);
+                    if(p == END){
+                        return;
+                    }
+                }
+            } catch (InterruptedException e){
+                // Shutting down
+            }
+        }
+
+        String describe()
+        {
+            return "layers " + layers.get(0).getName() + " to "
+                    + layers.get(layers.size()-1).getName();
+        }
+    }
+
+    /**
+     * @param layers all the layers of the net, in order of forward propagation.
+     * @param numStages the number of stages, which will be reduced if there
+     * are fewer layers than stages.
+     * @param queueSize the capacity of each hand-off queue.
+     */
+    Pipeline(List<Layer> layers, int numStages, int queueSize)
+    {
+        this.layers = layers;
+        this.inputLayer = layers.get(1);
+
+        // Divide the layers after the input layer into stages, balancing the
+        // number of connections (the cost of the forward pass) in each stage.
+        List<Layer> computed = layers.subList(2, layers.size());
+        numStages = Math.max(1, Math.min(numStages, computed.size()));
+        long total = 0;
+        for(Layer layer: computed){
+            total += layer.getNumBackConnections();
+        }
+
+        input = new ArrayBlockingQueue<>(queueSize);
+        BlockingQueue<Packet> in = input;
+        int first = 0;
+        long cost = 0;
+        for(int s = 0; s < numStages; s++){
+            int last = first;
+            cost += computed.get(last).getNumBackConnections();
+            // Take more layers while this stage is under its share of the cost,
+            // leaving at least one layer for each of the remaining stages.
+            while(last + 1 < computed.size() - (numStages - s - 1)
+                    && (s == numStages - 1 || cost < total * (s + 1) / numStages)){
+                cost += computed.get(++last).getNumBackConnections();
+            }
+            BlockingQueue<Packet> out = new ArrayBlockingQueue<>(queueSize);
+            stages.add(new Stage(s, computed.subList(first, last + 1), in, out));
+            in = out;
+            first = last + 1;
+        }
+        output = in;
+
+        // Each queue holds queueSize packets and each stage holds one more while
+        // it works, so this many can be submitted before anything is taken out.
+        capacity = (numStages + 1) * queueSize + numStages;
+
+        for(Stage stage: stages){
+            stage.start();
+        }
+    }
+
+    int getNumStages()
+    {
+        return stages.size();
+    }
+
+    boolean isFull()
+    {
+        return inFlight >= capacity;
+    }
+
+    void submit(Sample sample)
+    {
+        submit(sample, sample.getData(inputLayer.getChannel()));
+    }
+
+    void submit(Sample sample, Matrix inputs)
+    {
+        if(startTime == 0){
+            startTime = System.nanoTime();
+        }
+        Activations a = new Activations(layers);
+        a.setInputs(inputLayer, inputs);
+        try {
+            input.put(new Packet(sample, a));
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while submitting a sample to the pipeline.", e);
+        }
+        ++inFlight;
+    }
+
+    /**
+     * Take the next sample out of the pipeline, in the order they were
+     * submitted, waiting for it to finish the last stage if necessary.
+     */
+    Packet take()
+    {
+        Packet p;
+        try {
+            p = output.take();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting on the pipeline.", e);
+        }
+        --inFlight;
+        ++numSamples;
+        if(p.error instanceof RuntimeException){
+            throw (RuntimeException)p.error;
+        } else if(p.error instanceof Error){
+            throw (Error)p.error;
+        } else if(p.error != null){
+            throw new IllegalStateException("A pipeline stage failed.", p.error);
+        }
+        return p;
+    }
+
+    /**
+     * Run the forward pass for all the samples, keeping the pipeline as full
+     * as possible, and return them in order once they have all finished.
+     */
+    List<Packet> forward(List<Sample> samples)
+    {
+        return forward(samples, null);
+    }
+
+    /**
+     * Like forward(List), with the inputs of the samples already converted.
+     * @param samples
+     * @param inputs the inputs of each sample, or null to convert them here.
+     */
+    List<Packet> forward(List<Sample> samples, List<Matrix> inputs)
+    {
+        List<Packet> done = new ArrayList<>(samples.size());
+        int next = 0;
+        while(done.size() < samples.size()){
+            while(next < samples.size() && !isFull()){
+                if(inputs == null){
+                    submit(samples.get(next));
+                } else {
+                    submit(samples.get(next), inputs.get(next));
+                }
+                next++;
+            }
+            done.add(take());
+        }
+        return done;
+    }
+
+    /**
+     * Stop the stages. The caller may stop taking samples out early, when a
+     * sample fails validation or a stage fails, leaving samples in flight; a
+     * stage may then be blocked handing one on to a full queue, so the
+     * samples left are drained and discarded until the end marker comes out
+     * behind them. The stages pass them on without working on them.
+     */
+    void close()
+    {
+        if(closed){
+            return;
+        }
+        closed = true;
+        for(Stage stage: stages){
+            stage.closing = true;
+        }
+        try {
+            while(!input.offer(END, 1, TimeUnit.MILLISECONDS)){
+                output.poll();
+            }
+            while(output.take() != END){
+                // Discard the samples left in flight
+            }
+            inFlight = 0;
+            for(Stage stage: stages){
+                stage.join();
+            }
+        } catch (InterruptedException e){
+            for(Stage stage: stages){
+                stage.interrupt();
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Summarize the throughput of the pipeline, and how busy each stage was.
+     * The busiest stage limits the throughput; a stage that is busy much less
+     * of the time than the others is a sign that fewer stages would do as well.
+     */
+    String report()
+    {
+        long elapsed = Math.max(1, System.nanoTime() - startTime);
+        StringBuilder buff = new StringBuilder();
+        buff.append("Pipeline of ").append(stages.size()).append(" stages: ")
+            .append(numSamples).append(" samples in ").append(elapsed / 1000000).append("ms, ")
+            .append(String.format("%.1f", numSamples * 1.0e9 / elapsed)).append(" samples/s\n");
+        for(int i = 0; i < stages.size(); i++){
+            Stage stage = stages.get(i);
+            buff.append("  stage ").append(i).append(" (").append(stage.describe()).append("): busy ")
+                .append(String.format("%.1f", 100.0 * stage.busyTime / elapsed)).append("%\n");
+        }
+        return buff.toString();
+    }
+}
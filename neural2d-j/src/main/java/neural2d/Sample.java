@@ -103,9 +103,20 @@ public class Sample
         return data;
     }
 
-    private void filterImage(ColorChannel colorChannel)
+    /**
+     * Convert the image pixels of the given channel to inputs. Unlike
+     * getData(ColorChannel), the result is not cached in the sample, so this
+     * may be called from several threads at once.
+     *
+     * @param colorChannel
+     * @return the inputs, in the range 0.0..1.0
+     */
+    public Matrix decode(ColorChannel colorChannel)
     {
-        data = new Matrix(imageData.getNumRows(),
+        if(imageData == null){
+            return data;
+        }
+        Matrix m = new Matrix(imageData.getNumRows(),
                     imageData.getNumColumns());
 
         // BMP pixels are arranged in memory in the order (B, G, R). We'll convert
@@ -126,22 +137,28 @@ public class Sample
                 }
 
                 // Convert it to the range 0.0..1.0: this value will be the input to an input neuron:
-                data.set(row, col, val / 256.0);
+                m.set(row, col, val / 256.0);
             }
         }
+        return m;
     }
 
     public Matrix getData(ColorChannel colorChannel)
     {
         if(data == null && imageData != null){
-            filterImage(colorChannel);
+            data = decode(colorChannel);
         }
         return data;
     }
 
+    // Forget the inputs converted from the image, if any, so that they are
+    // converted again on next use. Samples given as inputs have nothing to
+    // convert, so they keep their data.
     public void clearCache()
     {
-        data.clear();
+        if(imageData != null){
+            data = null;
+        }
     }
 
     /**
@@ -0,0 +1,154 @@
+package neural2d;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ * Converts training samples to inputs ahead of the training thread. A pool
+ * of producer threads keeps up to depth samples converted, in the order
+ * they will be trained, so that the training thread only waits if it
+ * outruns all of them. The order of the next epoch is shuffled in the
+ * background while the current one trains, and prefetching carries on
+ * across the end of an epoch into the start of the next.
+ * <p>
+ * The converted inputs are not cached in the samples, so no more than
+ * depth of them are held at a time, however many samples there are.
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+class SamplePrefetcher
+{
+    private final List<Sample> samples;
+    private final ColorChannel channel;
+    private final int depth;
+    private final boolean shuffle;
+    private final ExecutorService executor;
+    private final Queue<Future<Prepared>> ahead = new ArrayDeque<>();
+    private final Random rand = new Random();
+    private List<Sample> order;              // the epoch being prefetched
+    private Future<List<Sample>> nextOrder;  // the epoch after that
+    private int position;                    // the next sample in order to prefetch
+
+    static class Prepared
+    {
+        final Sample sample;
+        final Matrix inputs;
+
+        Prepared(Sample sample, Matrix inputs)
+        {
+            this.sample = sample;
+            this.inputs = inputs;
+        }
+    }
+
+    /**
+     * @param samples the training samples; the first epoch is taken in
+     * their current order.
+     * @param channel the color channel of the input layer.
+     * @param depth how many samples to keep converted ahead.
+     * @param numThreads the number of producer threads.
+     * @param shuffle whether to shuffle the order of each later epoch.
+     */
+    SamplePrefetcher(List<Sample> samples, ColorChannel channel, int depth,
+            int numThreads, boolean shuffle)
+    {
+        this.samples = samples;
+        this.channel = channel;
+        this.depth = depth;
+        this.shuffle = shuffle;
+        executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory()
+        {
+            private int num;
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "prefetch-" + num++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        order = new ArrayList<>(samples);
+        nextOrder = planEpoch();
+        fill();
+    }
+
+    private Future<List<Sample>> planEpoch()
+    {
+        return executor.submit(new Callable<List<Sample>>()
+        {
+            @Override
+            public List<Sample> call()
+            {
+                List<Sample> next = new ArrayList<>(samples);
+                if(shuffle){
+                    Collections.shuffle(next, rand);
+                }
+                return next;
+            }
+        });
+    }
+
+    private void fill()
+    {
+        if(samples.isEmpty()){
+            return;
+        }
+        while(ahead.size() < depth){
+            if(position == order.size()){
+                order = get(nextOrder);
+                nextOrder = planEpoch();
+                position = 0;
+            }
+            final Sample sample = order.get(position++);
+            ahead.add(executor.submit(new Callable<Prepared>()
+            {
+                @Override
+                public Prepared call()
+                {
+                    return new Prepared(sample, sample.decode(channel));
+                }
+            }));
+        }
+    }
+
+    /**
+     * @return the next sample to train, with its inputs, waiting for it to be
+     * converted if necessary.
+     */
+    Prepared next()
+    {
+        Prepared p = get(ahead.poll());
+        fill();
+        return p;
+    }
+
+    private static <T> T get(Future<T> f)
+    {
+        try {
+            return f.get();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a sample.", e);
+        } catch (ExecutionException e){
+            throw new IllegalStateException("Could not prepare a sample.", e.getCause());
+        }
+    }
+
+    void close()
+    {
+        executor.shutdownNow();
+    }
+}
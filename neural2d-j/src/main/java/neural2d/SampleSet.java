@@ -1,9 +1,12 @@
 package neural2d;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import neural2d.config.ConfigurationException;
 import neural2d.config.SampleConfig;
+import neural2d.config.SampleReader;
 
 /**
  * <p>
@@ -13,6 +16,8 @@ import neural2d.config.SampleConfig;
 public class SampleSet {
 
     private List<Sample> samples = new ArrayList<>();
+    private File streamFile;    // Non-null if the samples are streamed from it
+    private boolean streamNeedsTargets;
 
     /**
      * Get the value of samples
@@ -31,6 +36,45 @@ public class SampleSet {
         System.out.println(samples.size() + " training samples initialized");
     }
 
+    /**
+     * Stream the samples from a file instead of loading them: each pass over
+     * them reads the file again with a SampleReader, one sample at a time,
+     * so only the sample being used is in memory. The samples cannot be
+     * shuffled, prefetched, cached or pipelined, as those need them all.
+     * @param file
+     * @param needsTargets if every sample must have target values.
+     * @throws ConfigurationException if the file cannot be opened.
+     */
+    public void streamSamples(File file, boolean needsTargets) throws ConfigurationException
+    {
+        SampleReader.open(file, needsTargets).close();
+        streamFile = file;
+        streamNeedsTargets = needsTargets;
+
+        System.out.println("Streaming samples from " + file);
+    }
+
+    /**
+     * @return true if the samples are streamed from a file, in which case
+     * getSamples() is empty and openStream() reads them.
+     */
+    public boolean isStreamed()
+    {
+        return streamFile != null;
+    }
+
+    /**
+     * @return a reader of the streamed samples, from the first.
+     * @throws ConfigurationException if the file cannot be opened.
+     */
+    public SampleReader openStream() throws ConfigurationException
+    {
+        if(streamFile == null){
+            throw new IllegalStateException("The samples are not streamed.");
+        }
+        return SampleReader.open(streamFile, streamNeedsTargets);
+    }
+
     // Randomize the order of the samples container.
     //
     public void shuffle()
@@ -52,4 +96,12 @@ public class SampleSet {
         samples = new ArrayList<>();
     }
 
+    // A set of the same samples, which may be shuffled independently.
+    SampleSet(SampleSet other)
+    {
+        samples = new ArrayList<>(other.samples);
+        streamFile = other.streamFile;
+        streamNeedsTargets = other.streamNeedsTargets;
+    }
+
 }
@@ -0,0 +1,87 @@
+package neural2d;
+
+import java.util.Random;
+import neural2d.config.TrainingParameters;
+
+/**
+ * <p>
+ * Decides which training samples are worth a backward pass. Late in
+ * training, most samples already produce small errors, and backprop on them
+ * changes the weights little for the same cost as on the samples the net
+ * still gets wrong. So after the warm-up epochs, each sample is backpropagated
+ * with a probability that grows with where its error ranks among the errors
+ * of the recent samples: a sample whose error is higher than a fraction f of
+ * them is backpropagated with probability f to the power beta. The larger
+ * beta, the more the small errors are skipped.
+ * <p>
+ * The probability never falls below the floor, so no sample is starved: one
+ * that the net handles well is still trained on about once in every 1/floor
+ * epochs, and if its error grows again, so does its probability.
+ * <p>
+ * The forward pass, and with it the error, is needed to make the choice, so
+ * only the backward pass and the weight update are saved.
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+class SelectiveBackprop
+{
+    // The number of recent errors the error of each sample is ranked among.
+    private static final int HISTORY = 1024;
+
+    private final double beta;
+    private final double floor;
+    private final int warmupEpochs;
+    private final Random rand;
+    private final double[] history = new double[HISTORY];
+    private int numErrors;        // the number of errors seen, up to HISTORY
+    private int next;             // where to put the next error in history
+    private long numSamples;
+    private long numSelected;
+
+    SelectiveBackprop(TrainingParameters params)
+    {
+        beta = params.getSelectiveBackprop();
+        floor = params.getSelectiveBackpropFloor();
+        warmupEpochs = params.getSelectiveBackpropWarmup();
+        rand = params.hasSeed() ? new Random(params.getSeed()) : new Random();
+    }
+
+    /**
+     * Called after each training sample is fed forward.
+     * @param error the error of the sample.
+     * @param epochs the number of epochs completed.
+     * @return true if the sample should be backpropagated.
+     */
+    boolean select(double error, int epochs)
+    {
+        int below = 0;
+        for(int i = 0; i < numErrors; i++){
+            if(history[i] < error){
+                ++below;
+            }
+        }
+        double rank = numErrors == 0 ? 1.0 : (double)below / numErrors;
+        history[next] = error;
+        next = (next + 1) % HISTORY;
+        numErrors = Math.min(numErrors + 1, HISTORY);
+
+        ++numSamples;
+        if(epochs < warmupEpochs
+                || rand.nextDouble() < Math.max(floor, Math.pow(rank, beta))){
+            ++numSelected;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return a one-line summary of how many samples were backpropagated.
+     */
+    String report()
+    {
+        return "Selective backprop trained on " + numSelected + " of " + numSamples
+                + " samples (" + Math.round(numSamples == 0 ? 0.0 : 100.0 * numSelected / numSamples)
+                + "%).";
+    }
+}
@@ -0,0 +1,95 @@
+package neural2d;
+
+/**
+ * <p>
+ * The softmax output layer and its cross-entropy loss. A softmax layer's
+ * neurons pass their weighted input sums through unchanged; the layer then
+ * exponentiates and normalizes the sums of all its neurons together, so the
+ * outputs are positive and add up to 1, one probability per class.
+ * <p>
+ * Trained against the cross-entropy of its outputs, the gradient of a softmax
+ * neuron's sum reduces to the target minus the output, with none of the
+ * vanishing derivative of a saturated tanh or logistic output. The targets
+ * are taken as class probabilities: a target of 0 or less means "not this
+ * class", and the positive targets are scaled to add up to 1, so the
+ * classifier convention of +1 for the class and -1 or 0 for the others works
+ * unchanged.
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+final class Softmax
+{
+    // The smallest output whose log is taken, so a confidently wrong
+    // output costs a large, but finite, error.
+    private static final double MIN_OUTPUT = 1e-300;
+
+    private Softmax()
+    {
+    }
+
+    /**
+     * Replace v[start] .. v[end-1] by their softmax, in place. The largest
+     * value is subtracted first, so that exp() cannot overflow.
+     * @param v
+     * @param start
+     * @param end
+     */
+    static void normalize(double[] v, int start, int end)
+    {
+        double max = Double.NEGATIVE_INFINITY;
+        for(int i = start; i < end; i++){
+            max = Math.max(max, v[i]);
+        }
+        double sum = 0.0;
+        for(int i = start; i < end; i++){
+            v[i] = Math.exp(v[i] - max);
+            sum += v[i];
+        }
+        double scale = 1.0 / sum;
+        for(int i = start; i < end; i++){
+            v[i] *= scale;
+        }
+    }
+
+    /**
+     * @param targets the target values of a sample, rows by columns.
+     * @return the class probabilities the targets stand for, by position
+     * (row * columns + column).
+     */
+    static double[] probabilities(Matrix targets)
+    {
+        int cols = targets.getNumColumns();
+        double[] p = new double[targets.getNumRows() * cols];
+        double sum = 0.0;
+        for(int i = 0; i < p.length; i++){
+            p[i] = Math.max(0.0, targets.get(i / cols, i % cols));
+            sum += p[i];
+        }
+        if(sum > 0.0){
+            for(int i = 0; i < p.length; i++){
+                p[i] /= sum;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * @param targets the target values of a sample, rows by columns.
+     * @param outputs the softmax outputs, by position.
+     * @param offset the position of the first output in outputs.
+     * @return the cross-entropy of the outputs against the class
+     * probabilities of the targets.
+     */
+    static double crossEntropy(Matrix targets, double[] outputs, int offset)
+    {
+        double[] p = probabilities(targets);
+        double error = 0.0;
+        for(int i = 0; i < p.length; i++){
+            if(p[i] > 0.0){
+                error -= p[i] * Math.log(Math.max(outputs[offset + i], MIN_OUTPUT));
+            }
+        }
+        return error;
+    }
+}
@@ -0,0 +1,57 @@
+package neural2d;
+
+/**
+ * <p>
+ * A small, fast random number generator (SplitMix64) that can be forked
+ * into independent streams by key. A fork depends only on the seed and the
+ * key, not on how many numbers were drawn before it or by which thread, so
+ * a net whose neurons each draw their initial weights from their own fork
+ * gets the same weights from the same seed however its construction is
+ * divided between threads.
+ * <p>
+ * Not thread safe; give each thread its own fork.
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+final class SplitMixRandom
+{
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private long state;
+
+    SplitMixRandom(long seed)
+    {
+        this.state = seed;
+    }
+
+    private static long mix64(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @param key
+     * @return a new generator whose stream is determined by this generator's
+     * current state and the key. This generator is not advanced.
+     */
+    SplitMixRandom fork(long key)
+    {
+        return new SplitMixRandom(mix64(state ^ mix64(key * GOLDEN_GAMMA + GOLDEN_GAMMA)));
+    }
+
+    long nextLong()
+    {
+        state += GOLDEN_GAMMA;
+        return mix64(state);
+    }
+
+    /**
+     * @return a double uniformly distributed in the range [0.0..1.0)
+     */
+    double nextDouble()
+    {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+}
@@ -0,0 +1,841 @@
+package neural2d;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * The implicit connectivity of a radius-connected layer to one of its source
+ * layers. A layer has one stencil per source layer. The window of source
+ * neurons that a neuron connects to has the same shape for every neuron whose
+ * window is the same size, so the stencil keeps one mask of source offsets
+ * per window size (one for the interior, and a few for windows clipped at the
+ * borders), and for each neuron of the layer only the mask and position of
+ * its window. The weights of all the neurons are kept in one buffer, a run of
+ * consecutive weights per neuron. No Connection objects are stored. The
+ * buffers of the weights and delta weights are arrays on the heap, or, if
+ * the net was given an OffHeapArena, memory outside it.
+ * <p>
+ * Visitors still see the connections: the neurons and the stencil hand them
+ * flyweight Connections, which are only valid during the visit. The forward
+ * direction, from a source neuron to the neurons it feeds, is served from a
+ * reverse index that is built the first time it is needed. Training does not
+ * need it: backPropagate() scatters each neuron's weighted gradient through
+ * its mask, and counting the connections of a source only needs a count per
+ * source.
+ * <p>
+ * The bias input of the layer belongs to its first stencil, whose neurons
+ * each have one more weight, after those of their window.
+ * <p>
+ * The layout never changes once made, so a copy of a net shares it, along
+ * with the masks and indexes built from it. The copy shares the weights,
+ * delta weights and optimizer state as well, until either stencil first
+ * changes them; then that stencil takes its own copy of all three.
+ * <p>
+ * A stencil whose every window covers the whole source layer, as is common
+ * for the last layers of a classifier, is fully connected. Its weights are
+ * kept as a dense row-major matrix, a row per neuron and a column per source
+ * neuron, with the bias weight in the last column. Its forward pass and
+ * weight updates run over the whole matrix a block of rows at a time, and
+ * its contribution to the gradients of the source layer is computed for all
+ * the source neurons at once, as the product of the transposed matrix and
+ * the gradients.
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+final class Stencil
+{
+    private final Layer layer;        // the layer whose neurons use this stencil
+    private final Layer sourceLayer;
+    private final Neuron biasNeuron;  // or null, if this stencil has no bias input
+    private final OffHeapArena arena; // where the weights are, or null if on the heap
+    private final Map<Long,Mask> masks = new HashMap<>();
+    private volatile int[] sinkCounts;  // for each source, the neurons it feeds
+    private volatile ReverseIndex reverseIndex;
+
+    // For each neuron of the layer, indexed like the neurons:
+    private Mask[] windows;   // the mask of its window
+    private int[] bases;      // index in the source layer of its window origin
+    private int[] firsts;     // its weights are weights[firsts[i]] .. weights[firsts[i+1]-1]
+    private DoubleBuffer weights;
+    private DoubleBuffer deltaWeights;
+    private double[] optimizerState; // for each weight in turn, the optimizer's state
+    private Optimizer stateOptimizer; // the optimizer whose state optimizerState is
+    private volatile boolean shared; // if the three arrays above are shared with a copy
+
+    // If the stencil is dense:
+    private boolean dense;
+    private Mask windowMask;  // the mask of every window, in the order its weights are drawn
+    private int stride;       // the number of weights of each neuron
+
+    /**
+     * The source positions inside one size of window, relative to the
+     * window origin, in the order their connections are made.
+     */
+    static final class Mask
+    {
+        final int width, height;
+        final int[] offsets;  // added to the index of the window origin in the source layer
+        final int maxOffset;
+
+        Mask(int width, int height, int[] offsets)
+        {
+            this.width = width;
+            this.height = height;
+            this.offsets = offsets;
+            int max = 0;
+            for(int offset: offsets){
+                max = Math.max(max, offset);
+            }
+            this.maxOffset = max;
+        }
+
+        int size()
+        {
+            return offsets.length;
+        }
+    }
+
+    // For each neuron of the source layer, the neurons of this layer that it
+    // feeds, in the order of this layer's neurons, and the slot of the weight
+    // in each one.
+    private static final class ReverseIndex
+    {
+        final int[] start;    // sinks of source neuron i are start[i] .. start[i+1]-1
+        final int[] sink;     // position of the neuron in this layer
+        final int[] slot;
+
+        ReverseIndex(int[] start, int[] sink, int[] slot)
+        {
+            this.start = start;
+            this.sink = sink;
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * A Connection that reads and writes a weight slot of a neuron of a
+     * stencil. One instance is moved from slot to slot during a traversal, so
+     * visitors must not keep a reference to it after the visit.
+     */
+    static final class StencilConnection extends Connection
+    {
+        private final Stencil stencil;
+        private int position;   // of the neuron in its layer
+        private int slot;
+
+        StencilConnection(Stencil stencil)
+        {
+            super(null, null);
+            this.stencil = stencil;
+        }
+
+        void set(int position, int slot)
+        {
+            this.position = position;
+            this.slot = slot;
+        }
+
+        @Override
+        public double getWeight()
+        {
+            return stencil.weights.get(stencil.firsts[position] + slot);
+        }
+
+        @Override
+        public void setWeight(double weight)
+        {
+            stencil.own();
+            stencil.weights.put(stencil.firsts[position] + slot, weight);
+        }
+
+        @Override
+        public double getDeltaWeight()
+        {
+            return stencil.deltaWeights.get(stencil.firsts[position] + slot);
+        }
+
+        @Override
+        public void setDeltaWeight(double deltaWeight)
+        {
+            stencil.own();
+            stencil.deltaWeights.put(stencil.firsts[position] + slot, deltaWeight);
+        }
+
+        @Override
+        public Neuron getFromNeuron()
+        {
+            return stencil.getSource(position, slot);
+        }
+
+        @Override
+        public Neuron getToNeuron()
+        {
+            return stencil.layer.getNeuron(position);
+        }
+    }
+
+    /**
+     * @param layer
+     * @param sourceLayer
+     * @param biasNeuron the bias neuron, if this stencil has the bias input.
+     * @param arena where to keep the weights, or null to keep them on the
+     * heap.
+     */
+    Stencil(Layer layer, Layer sourceLayer, Neuron biasNeuron, OffHeapArena arena)
+    {
+        this.layer = layer;
+        this.sourceLayer = sourceLayer;
+        this.biasNeuron = biasNeuron;
+        this.arena = arena;
+    }
+
+    /**
+     * A copy of a stencil that has been laid out, for the matching layers of
+     * a copy of its net. The copy shares the layout, and shares the weights
+     * until either stencil changes them. Must not be called while the
+     * original is training.
+     * @param original
+     * @param layer the copy of the original's layer.
+     * @param sourceLayer the copy of the original's source layer.
+     * @param biasNeuron the bias neuron of the copied net, if the original
+     * has a bias input.
+     */
+    Stencil(Stencil original, Layer layer, Layer sourceLayer, Neuron biasNeuron)
+    {
+        this(layer, sourceLayer, biasNeuron, original.arena);
+        synchronized(original){
+            masks.putAll(original.masks);
+            sinkCounts = original.sinkCounts;
+            reverseIndex = original.reverseIndex;
+            windows = original.windows;
+            bases = original.bases;
+            firsts = original.firsts;
+            dense = original.dense;
+            windowMask = original.windowMask;
+            stride = original.stride;
+            weights = original.weights;
+            deltaWeights = original.deltaWeights;
+            optimizerState = original.optimizerState;
+            stateOptimizer = original.stateOptimizer;
+            shared = true;
+            original.shared = true;
+        }
+    }
+
+    // Called before the weights, delta weights or optimizer state change.
+    // If they are still shared with a copy, takes a private copy of them.
+    private void own()
+    {
+        if(shared){
+            synchronized(this){
+                if(shared){
+                    weights = copyOf(weights);
+                    deltaWeights = copyOf(deltaWeights);
+                    if(optimizerState != null){
+                        optimizerState = optimizerState.clone();
+                    }
+                    shared = false;
+                }
+            }
+        }
+    }
+
+    private DoubleBuffer allocate(int n)
+    {
+        return arena == null ? DoubleBuffer.wrap(new double[n]) : arena.allocate(n);
+    }
+
+    private DoubleBuffer copyOf(DoubleBuffer buf)
+    {
+        DoubleBuffer copy = allocate(buf.capacity());
+        copy.put((DoubleBuffer)buf.duplicate().clear());
+        copy.clear();
+        return copy;
+    }
+
+    /**
+     * Stop using the weights, when the net is closed. If they are off the
+     * heap, they may be freed, so that reading them afterwards would read
+     * freed memory.
+     */
+    synchronized void release()
+    {
+        weights = null;
+        deltaWeights = null;
+        optimizerState = null;
+    }
+
+    Layer getLayer()
+    {
+        return layer;
+    }
+
+    Layer getSourceLayer()
+    {
+        return sourceLayer;
+    }
+
+    Neuron getBiasNeuron()
+    {
+        return biasNeuron;
+    }
+
+    boolean hasBias()
+    {
+        return biasNeuron != null;
+    }
+
+    /**
+     * @param width
+     * @param height
+     * @return the mask for a window of the given size, whose ellipse, unless
+     * the layer is rectangular, is centered in the window. Windows of the same
+     * size share a mask.
+     */
+    synchronized Mask getMask(int width, int height)
+    {
+        Long key = ((long)width << 32) | height;
+        Mask mask = masks.get(key);
+        if(mask == null){
+            mask = new Mask(width, height, StencilGeometry.maskOffsets(width, height,
+                    layer.isRectangular(), layer.getRadiusX(), layer.getRadiusY(),
+                    sourceLayer.getNumColumns()));
+            masks.put(key, mask);
+        }
+        return mask;
+    }
+
+    /**
+     * Set the window of each neuron of the layer, and make room for the
+     * weights, which are all 0.0 until setWeights() is called. If every
+     * window covers the whole source layer, and its mask connects every source
+     * neuron exactly once, the weights are kept in a dense matrix.
+     * @param windows the mask of the window of each neuron, indexed like the
+     * neurons.
+     * @param bases the index in the source layer of the origin of each window.
+     * @param coversSource whether every window is the whole source layer.
+     */
+    void layOut(Mask[] windows, int[] bases, boolean coversSource)
+    {
+        int bias = hasBias() ? 1 : 0;
+        for(int i = 0; i < windows.length; i++){
+            if(bases[i] + windows[i].maxOffset >= sourceLayer.size()){
+                throw new IndexOutOfBoundsException("Window of neuron " + i
+                        + " of layer " + layer.getName()
+                        + " falls outside source layer " + sourceLayer.getName());
+            }
+        }
+        if(coversSource && windows.length > 0
+                && StencilGeometry.isPermutation(windows[0].offsets, sourceLayer.size())){
+            int[] offsets = new int[sourceLayer.size()];
+            for(int j = 0; j < offsets.length; j++){
+                offsets[j] = j;
+            }
+            Mask denseMask = new Mask(windows[0].width, windows[0].height, offsets);
+            windowMask = windows[0];
+            dense = true;
+            stride = offsets.length + bias;
+            Arrays.fill(windows, denseMask);
+            Arrays.fill(bases, 0);
+        }
+        long total = 0;
+        firsts = new int[windows.length + 1];
+        for(int i = 0; i < windows.length; i++){
+            total += windows[i].size() + bias;
+            if(total > Integer.MAX_VALUE - 8){
+                throw new IllegalArgumentException("Layer " + layer.getName()
+                        + " has too many connections from " + sourceLayer.getName());
+            }
+            firsts[i + 1] = (int)total;
+        }
+        this.windows = windows;
+        this.bases = bases;
+        weights = allocate((int)total);
+        deltaWeights = allocate((int)total);
+    }
+
+    boolean isDense()
+    {
+        return dense;
+    }
+
+    /**
+     * @param position the position of a neuron in the layer.
+     * @return the mask of the neuron's window, whose offsets are in the order
+     * setWeights() takes the weights.
+     */
+    Mask getWindowMask(int position)
+    {
+        return dense ? windowMask : windows[position];
+    }
+
+    /**
+     * @param position
+     * @return the mask the neuron at the position is connected through.
+     * For a dense stencil, this is every source neuron, in order.
+     */
+    Mask getMask(int position)
+    {
+        return windows[position];
+    }
+
+    /**
+     * Set the initial weights of a neuron of the layer.
+     * @param position the position of the neuron in the layer.
+     * @param w the weights, one per offset of getWindowMask(), then the bias
+     * weight if the stencil has a bias.
+     */
+    void setWeights(int position, double[] w)
+    {
+        own();
+        int first = firsts[position];
+        if(!dense){
+            ((DoubleBuffer)weights.duplicate().position(first)).put(w);
+            return;
+        }
+        // Move the weights into the neuron's row, in the order of the sources:
+        for(int k = 0; k < windowMask.size(); k++){
+            weights.put(first + windowMask.offsets[k], w[k]);
+        }
+        if(hasBias()){
+            weights.put(first + stride - 1, w[windowMask.size()]);
+        }
+    }
+
+    /**
+     * @param position
+     * @return the number of weights of the neuron at the position: one per
+     * source in its window, plus one for the bias input, if any.
+     */
+    int numSlots(int position)
+    {
+        return firsts[position + 1] - firsts[position];
+    }
+
+    Neuron getSource(int position, int slot)
+    {
+        Mask mask = windows[position];
+        if(slot < mask.size()){
+            return sourceLayer.getNeuron(bases[position] + mask.offsets[slot]);
+        }
+        return biasNeuron;
+    }
+
+    private int[] getSinkCounts()
+    {
+        int[] counts = sinkCounts;
+        if(counts == null){
+            synchronized(this){
+                counts = sinkCounts;
+                if(counts == null){
+                    counts = new int[sourceLayer.size()];
+                    for(int i = 0; i < windows.length; i++){
+                        for(int offset: windows[i].offsets){
+                            counts[bases[i] + offset]++;
+                        }
+                    }
+                    sinkCounts = counts;
+                }
+            }
+        }
+        return counts;
+    }
+
+    private ReverseIndex getReverseIndex()
+    {
+        ReverseIndex index = reverseIndex;
+        if(index == null){
+            synchronized(this){
+                index = reverseIndex;
+                if(index == null){
+                    index = buildReverseIndex();
+                    reverseIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    private ReverseIndex buildReverseIndex()
+    {
+        int[] start = new int[sourceLayer.size() + 1];
+        System.arraycopy(getSinkCounts(), 0, start, 1, sourceLayer.size());
+        for(int i = 0; i < sourceLayer.size(); i++){
+            start[i + 1] += start[i];
+        }
+        int[] next = new int[sourceLayer.size()];
+        System.arraycopy(start, 0, next, 0, next.length);
+        int[] sink = new int[start[sourceLayer.size()]];
+        int[] slot = new int[sink.length];
+        for(int i = 0; i < windows.length; i++){
+            int[] offsets = windows[i].offsets;
+            for(int k = 0; k < offsets.length; k++){
+                int pos = next[bases[i] + offsets[k]]++;
+                sink[pos] = i;
+                slot[pos] = k;
+            }
+        }
+        return new ReverseIndex(start, sink, slot);
+    }
+
+    /**
+     * @param source a neuron of the source layer, or the bias neuron.
+     * @return the number of neurons of this layer that the source feeds.
+     */
+    int getNumForwardConnections(Neuron source)
+    {
+        if(source == biasNeuron || dense){
+            return layer.size();
+        }
+        return getSinkCounts()[source.getRow() * sourceLayer.getNumColumns() + source.getColumn()];
+    }
+
+    /**
+     * Visit the connections from the source to the neurons of this layer that
+     * it feeds, in the order of those neurons.
+     * @param source a neuron of the source layer, or the bias neuron.
+     * @param v
+     */
+    void acceptForward(Neuron source, NetElementVisitor v)
+    {
+        StencilConnection conn = new StencilConnection(this);
+        if(source == biasNeuron){
+            for(int i = 0; i < windows.length; i++){
+                conn.set(i, numSlots(i) - 1);
+                conn.accept(v);
+            }
+            return;
+        }
+        int j = source.getRow() * sourceLayer.getNumColumns() + source.getColumn();
+        if(dense){
+            for(int i = 0; i < windows.length; i++){
+                conn.set(i, j);
+                conn.accept(v);
+            }
+            return;
+        }
+        ReverseIndex index = getReverseIndex();
+        for(int c = index.start[j]; c < index.start[j + 1]; c++){
+            conn.set(index.sink[c], index.slot[c]);
+            conn.accept(v);
+        }
+    }
+
+    /**
+     * Visit the connections from the sources of a neuron to the neuron.
+     * @param position the position of the neuron in the layer.
+     * @param v
+     */
+    void acceptBackward(int position, NetElementVisitor v)
+    {
+        StencilConnection conn = new StencilConnection(this);
+        int n = numSlots(position);
+        for(int slot = 0; slot < n; slot++){
+            conn.set(position, slot);
+            conn.accept(v);
+        }
+    }
+
+    /**
+     * @param position the position of a neuron in the layer.
+     * @param sum the sum of the neuron's weighted inputs through the stencils
+     * before this one.
+     * @param activations where to read the source outputs, or null to use
+     * the neurons.
+     * @return the sum, plus the weighted inputs of the neuron through this
+     * stencil.
+     */
+    double weightedSum(int position, double sum, Activations activations)
+    {
+        int[] offsets = windows[position].offsets;
+        int base = bases[position];
+        int first = firsts[position];
+        DoubleBuffer w = weights;
+        double s = sum;
+        if(activations == null){
+            for(int k = 0; k < offsets.length; k++){
+                s += w.get(first + k) * sourceLayer.getNeuron(base + offsets[k]).getOutput();
+            }
+            if(hasBias()){
+                s += w.get(first + offsets.length) * biasNeuron.getOutput();
+            }
+        } else {
+            for(int k = 0; k < offsets.length; k++){
+                s += w.get(first + k) * activations.get(sourceLayer.getNeuron(base + offsets[k]));
+            }
+            if(hasBias()){
+                s += w.get(first + offsets.length) * activations.get(biasNeuron);
+            }
+        }
+        return s;
+    }
+
+    // The outputs of the source layer, then of the bias neuron, if any.
+    private double[] gatherSources(Activations activations)
+    {
+        double[] x = new double[stride];
+        for(int j = 0; j < sourceLayer.size(); j++){
+            Neuron source = sourceLayer.getNeuron(j);
+            x[j] = activations == null ? source.getOutput() : activations.get(source);
+        }
+        if(hasBias()){
+            x[stride - 1] = activations == null ? biasNeuron.getOutput() : activations.get(biasNeuron);
+        }
+        return x;
+    }
+
+    // The average number of weights per neuron, as the work per item of a
+    // RangeTask over the neurons.
+    private int averageSlots()
+    {
+        return Math.max(1, weights.capacity() / Math.max(1, windows.length));
+    }
+
+    /**
+     * Add the weighted inputs through this stencil of every neuron of the
+     * layer to its sum. A dense stencil does so as a matrix-vector product,
+     * multiplying blocks of four rows together, so that each source output is
+     * loaded once per block.
+     * @param activations where to read the source outputs, or null to use
+     * the neurons.
+     * @param sums the sum of each neuron, indexed like the neurons.
+     */
+    void addWeightedSums(final Activations activations, final double[] sums)
+    {
+        if(!dense){
+            layer.invoke(new Layer.RangeTask(new Layer.Range()
+            {
+                @Override
+                public void run(int start, int end)
+                {
+                    for(int i = start; i < end; i++){
+                        sums[i] = weightedSum(i, sums[i], activations);
+                    }
+                }
+            }, 0, windows.length, averageSlots()));
+            return;
+        }
+        final double[] x = gatherSources(activations);
+        final DoubleBuffer w = weights;
+        layer.invoke(new Layer.RangeTask(new Layer.Range()
+        {
+            @Override
+            public void run(int start, int end)
+            {
+                int i = start;
+                for(; i + 4 <= end; i += 4){
+                    int r0 = i * stride, r1 = r0 + stride, r2 = r1 + stride, r3 = r2 + stride;
+                    double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+                    for(int j = 0; j < stride; j++){
+                        double xj = x[j];
+                        s0 += w.get(r0 + j) * xj;
+                        s1 += w.get(r1 + j) * xj;
+                        s2 += w.get(r2 + j) * xj;
+                        s3 += w.get(r3 + j) * xj;
+                    }
+                    sums[i] += s0;
+                    sums[i + 1] += s1;
+                    sums[i + 2] += s2;
+                    sums[i + 3] += s3;
+                }
+                for(; i < end; i++){
+                    int r = i * stride;
+                    double s = 0.0;
+                    for(int j = 0; j < stride; j++){
+                        s += w.get(r + j) * x[j];
+                    }
+                    sums[i] += s;
+                }
+            }
+        }, 0, windows.length, stride));
+    }
+
+    /**
+     * For backprop training
+     * Once the gradients of the neurons of this layer are known, add each
+     * neuron's weights times its gradient to the gradient sums of its source
+     * neurons. Does nothing unless the source layer is a hidden layer that
+     * needs its gradients.
+     * <p>
+     * A sparse stencil scatters through each neuron's mask in turn. A dense
+     * stencil computes the product of the transposed weight matrix and the
+     * gradients: the matrix is read a block of four rows at a time, in row
+     * order, and the work is divided between threads by columns.
+     */
+    void backPropagate()
+    {
+        if(sourceLayer.getLayerType() != LayerType.HIDDEN || !sourceLayer.needsGradient()){
+            return;
+        }
+        final double[] t = sourceLayer.getGradientSums();
+        final DoubleBuffer w = weights;
+        if(!dense){
+            for(int i = 0; i < windows.length; i++){
+                double g = layer.getNeuron(i).getGradient();
+                int[] offsets = windows[i].offsets;
+                int base = bases[i];
+                int first = firsts[i];
+                for(int k = 0; k < offsets.length; k++){
+                    t[base + offsets[k]] += w.get(first + k) * g;
+                }
+            }
+            return;
+        }
+        final int rows = layer.size();
+        final double[] g = new double[rows];
+        for(int i = 0; i < rows; i++){
+            g[i] = layer.getNeuron(i).getGradient();
+        }
+        layer.invoke(new Layer.RangeTask(new Layer.Range()
+        {
+            @Override
+            public void run(int start, int end)
+            {
+                int i = 0;
+                for(; i + 4 <= rows; i += 4){
+                    int r0 = i * stride, r1 = r0 + stride, r2 = r1 + stride, r3 = r2 + stride;
+                    double g0 = g[i], g1 = g[i + 1], g2 = g[i + 2], g3 = g[i + 3];
+                    for(int j = start; j < end; j++){
+                        t[j] += w.get(r0 + j) * g0 + w.get(r1 + j) * g1 + w.get(r2 + j) * g2 + w.get(r3 + j) * g3;
+                    }
+                }
+                for(; i < rows; i++){
+                    int r = i * stride;
+                    for(int j = start; j < end; j++){
+                        t[j] += w.get(r + j) * g[i];
+                    }
+                }
+            }
+        }, 0, t.length, rows));
+    }
+
+    // The optimizer state of every weight, stateSize values per weight, in
+    // the order of the weights. It is discarded if the optimizer changes,
+    // even to one that keeps as much state.
+    synchronized double[] getOptimizerState(Optimizer optimizer)
+    {
+        own();
+        int stateSize = weights.capacity() * optimizer.getStateSize();
+        if(optimizerState == null || optimizerState.length != stateSize
+                || stateOptimizer != optimizer){
+            optimizerState = new double[stateSize];
+            stateOptimizer = optimizer;
+        }
+        return optimizerState;
+    }
+
+    synchronized void clearOptimizerState(int position)
+    {
+        own();
+        if(optimizerState != null && weights.capacity() > 0){
+            int stateSize = optimizerState.length / weights.capacity();
+            Arrays.fill(optimizerState, firsts[position] * stateSize,
+                    firsts[position + 1] * stateSize, 0.0);
+        }
+    }
+
+    /**
+     * For backprop training
+     * Update the weights of one neuron of the layer.
+     * @param position the position of the neuron in the layer.
+     * @param state from getOptimizerState().
+     * @return false if the update was skipped; see Layer.setUpdateEpsilons().
+     */
+    boolean updateInputWeights(int position, double eta, double alpha,
+            Optimizer optimizer, long step, double[] state)
+    {
+        double gradient = layer.getNeuron(position).getGradient();
+        int first = firsts[position];
+        int n = numSlots(position);
+        if(layer.canSkipUpdate(gradient, optimizer)
+                && layer.isMomentumNegligible(maxAbs(deltaWeights, first, first + n), alpha)){
+            return false;
+        }
+        own();
+        int stateSize = optimizer.getStateSize();
+        DoubleBuffer w = weights;
+        DoubleBuffer dw = deltaWeights;
+        for(int slot = 0; slot < n; slot++){
+            double newDeltaWeight = optimizer.deltaWeight(
+                    getSource(position, slot).getOutput() * gradient, dw.get(first + slot),
+                    state, (first + slot) * stateSize, eta, alpha, step);
+            dw.put(first + slot, newDeltaWeight);
+            w.put(first + slot, w.get(first + slot) + newDeltaWeight);
+        }
+        return true;
+    }
+
+    // The largest magnitude of v[start] .. v[end-1].
+    private static double maxAbs(DoubleBuffer v, int start, int end)
+    {
+        double max = 0.0;
+        for(int i = start; i < end; i++){
+            max = Math.max(max, Math.abs(v.get(i)));
+        }
+        return max;
+    }
+
+    /**
+     * For backprop training
+     * Update the weights of all the neurons of the layer. A dense stencil
+     * reads the source outputs once for the whole layer.
+     */
+    void updateInputWeights(final double eta, final double alpha,
+            final Optimizer optimizer, final long step)
+    {
+        final double[] state = getOptimizerState(optimizer);
+        if(!dense){
+            layer.invoke(new Layer.RangeTask(new Layer.Range()
+            {
+                @Override
+                public void run(int start, int end)
+                {
+                    long skipped = 0;
+                    for(int i = start; i < end; i++){
+                        if(!updateInputWeights(i, eta, alpha, optimizer, step, state)){
+                            skipped += numSlots(i);
+                        }
+                    }
+                    layer.countWeightUpdates(0, skipped);
+                }
+            }, 0, windows.length, averageSlots()));
+            layer.countWeightUpdates(weights.capacity(), 0);
+            return;
+        }
+        final double[] x = gatherSources(null);
+        final List<Neuron> neurons = layer.getNeurons();
+        final int stateSize = optimizer.getStateSize();
+        final DoubleBuffer w = weights;
+        final DoubleBuffer dw = deltaWeights;
+        layer.invoke(new Layer.RangeTask(new Layer.Range()
+        {
+            @Override
+            public void run(int start, int end)
+            {
+                long skipped = 0;
+                for(int i = start; i < end; i++){
+                    double gradient = neurons.get(i).getGradient();
+                    int r = i * stride;
+                    if(layer.canSkipUpdate(gradient, optimizer)
+                            && layer.isMomentumNegligible(maxAbs(dw, r, r + stride), alpha)){
+                        skipped += stride;
+                        continue;
+                    }
+                    for(int j = 0; j < stride; j++){
+                        double newDeltaWeight = optimizer.deltaWeight(x[j] * gradient,
+                                dw.get(r + j), state, (r + j) * stateSize, eta, alpha, step);
+                        dw.put(r + j, newDeltaWeight);
+                        w.put(r + j, w.get(r + j) + newDeltaWeight);
+                    }
+                }
+                layer.countWeightUpdates(0, skipped);
+            }
+        }, 0, windows.length, stride));
+        layer.countWeightUpdates(w.capacity(), 0);
+    }
+}
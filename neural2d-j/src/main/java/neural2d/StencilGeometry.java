@@ -0,0 +1,151 @@
+package neural2d;
+
+/**
+ * <p>
+ * Where the window of each neuron of a radius-connected layer falls on a
+ * source layer, and which source neurons in the window it connects to. Net
+ * and Stencil use it to connect a net, and CapacityPlanner to count the
+ * connections of a net that has not been built, so it works on the sizes and
+ * radii of the layers rather than on the layers themselves.
+ * <p>
+ * A window is given as {xmin, xmax, ymin, ymax}. Source (x, y) is looked up
+ * as row x, column y, as Net.connectNeuron() always has.
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+final class StencilGeometry
+{
+    private StencilGeometry()
+    {
+    }
+
+    /**
+     * The neuron is projected onto the source layer, and the window is the
+     * radius around the nearest source neuron, clipped to the source layer.
+     * @param toRows the size of the layer.
+     * @param toColumns
+     * @param radiusX the radius of the layer.
+     * @param radiusY
+     * @param fromRows the size of the source layer.
+     * @param fromColumns
+     * @param nx the position of the neuron in the layer.
+     * @param ny
+     * @return the window {xmin, xmax, ymin, ymax} of the neuron.
+     */
+    static int[] window(int toRows, int toColumns, int radiusX, int radiusY,
+            int fromRows, int fromColumns, int nx, int ny)
+    {
+        assert(toColumns > 0 && toRows > 0);
+
+        // Calculate the normalized [0..1] coordinates of our neuron:
+        double normalizedX = (nx / toColumns) + (1.0 / (2 * toColumns));
+        double normalizedY = (ny / toRows) + (1.0 / (2 * toRows));
+
+        // Calculate the coords of the nearest neuron in the "from" layer.
+        // The calculated coords are relative to the "from" layer:
+        int lfromX = (int)(normalizedX * fromColumns); // should we round off instead of round down?
+        int lfromY = (int)(normalizedY * fromRows);
+
+        int xmin = lfromX - radiusX;
+        int xmax = lfromX + radiusX;
+        int ymin = lfromY - radiusY;
+        int ymax = lfromY + radiusY;
+
+        // Clip to the layer boundaries:
+
+        if(xmin < 0) xmin = 0;
+        if(xmin >= fromColumns) xmin = fromColumns - 1;
+        if(ymin < 0) ymin = 0;
+        if(ymin >= fromRows) ymin = fromRows - 1;
+        if(xmax < 0) xmax = 0;
+        if(xmax >= fromColumns) xmax = fromColumns - 1;
+        if(ymax < 0) ymax = 0;
+        if(ymax >= fromRows) ymax = fromRows - 1;
+
+        return new int[] {xmin, xmax, ymin, ymax};
+    }
+
+    /**
+     * @param window a window returned by window().
+     * @param fromColumns the number of columns of the source layer.
+     * @return the index in the source layer of the origin of the window.
+     */
+    static int base(int[] window, int fromColumns)
+    {
+        return window[0] * fromColumns + window[2];
+    }
+
+    /**
+     * @param window a window returned by window().
+     * @param fromRows the size of the source layer.
+     * @param fromColumns
+     * @return true if the window is the whole source layer.
+     */
+    static boolean coversSource(int[] window, int fromRows, int fromColumns)
+    {
+        return window[0] == 0 && window[1] == fromColumns - 1
+                && window[2] == 0 && window[3] == fromRows - 1;
+    }
+
+    /**
+     * @param width the size of the window.
+     * @param height
+     * @param rectangular if the whole window is connected, rather than the
+     * ellipse centered in it.
+     * @param radiusX the radius of the ellipse.
+     * @param radiusY
+     * @param fromColumns the number of columns of the source layer.
+     * @return the offsets from the origin of the window of the source neurons
+     * connected, in the order Net.connectNeuron() connects them.
+     */
+    static int[] maskOffsets(int width, int height, boolean rectangular,
+            int radiusX, int radiusY, int fromColumns)
+    {
+        double xcenter = (width - 1) / 2.0;
+        double ycenter = (height - 1) / 2.0;
+        int[] offsets = new int[width * height];
+        int count = 0;
+        for(int y = 0; y < height; ++y){
+            for(int x = 0; x < width; ++x){
+                if(!rectangular && elliptDist(xcenter - x, ycenter - y, radiusX, radiusY) >= 1.0){
+                    continue; // Skip this location, it's outside the ellipse
+                }
+                offsets[count++] = x * fromColumns + y;
+            }
+        }
+        int[] trimmed = new int[count];
+        System.arraycopy(offsets, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    /**
+     * @param offsets the offsets of a mask.
+     * @param sourceSize the number of neurons in the source layer.
+     * @return true if the offsets connect every source neuron exactly once.
+     */
+    static boolean isPermutation(int[] offsets, int sourceSize)
+    {
+        if(offsets.length != sourceSize){
+            return false;
+        }
+        boolean[] seen = new boolean[sourceSize];
+        for(int offset: offsets){
+            if(offset >= sourceSize || seen[offset]){
+                return false;
+            }
+            seen[offset] = true;
+        }
+        return true;
+    }
+
+    // Assuming an ellipse centered at 0,0 and aligned with the global axes, returns
+    // a positive value if x,y is outside the ellipse; 0.0 if on the ellipse;
+    // negative if inside the ellipse.
+    //
+    static double elliptDist(double x, double y, double radiusX, double radiusY)
+    {
+        assert(radiusX >= 0.0 && radiusY >= 0.0);
+        return radiusY*radiusY*x*x + radiusX*radiusX*y*y - radiusX*radiusX*radiusY*radiusY;
+    }
+}
@@ -0,0 +1,122 @@
+package neural2d;
+
+import java.util.List;
+
+/**
+ * <p>
+ * A neuron whose back connections are given implicitly by the Stencils of its
+ * layer, one per source layer. The stencils hold the neuron's windows and
+ * weights, by the neuron's position in the layer; the neuron itself only
+ * sums its weighted inputs through each stencil in turn.
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+class StencilNeuron extends NeuronImpl
+{
+    private final List<Stencil> stencils;
+    private final int position;   // row * columns + column
+
+    StencilNeuron(TransferFunction tf, Layer layer, int row, int col, List<Stencil> stencils)
+    {
+        super(tf, layer, row, col);
+        this.stencils = stencils;
+        this.position = row * layer.getNumColumns() + col;
+    }
+
+    @Override
+    public void acceptBackward(NetElementVisitor v)
+    {
+        if(v.visit(this)){
+            for(Stencil stencil: stencils){
+                stencil.acceptBackward(position, v);
+            }
+        }
+    }
+
+    @Override
+    public void feedForward()
+    {
+        double s = 0.0;
+        for(Stencil stencil: stencils){
+            s = stencil.weightedSum(position, s, null);
+        }
+        sum = s;
+
+        // Shape the output by passing it through the transfer function:
+        setOutput(transferFunction.transfer(sum));
+    }
+
+    @Override
+    public void feedForward(Activations activations)
+    {
+        double s = 0.0;
+        for(Stencil stencil: stencils){
+            s = stencil.weightedSum(position, s, activations);
+        }
+        activations.set(this, transferFunction.transfer(s));
+    }
+
+    /**
+     * Set the weighted input sum, as computed for the whole layer by
+     * Layer.feedForward(), and pass it through the transfer function.
+     * @param s
+     * @param activations where to write the output, or null to set it.
+     */
+    void fire(double s, Activations activations)
+    {
+        if(activations == null){
+            sum = s;
+            refreshOutput();
+        } else {
+            activations.set(this, transferFunction.transfer(s));
+        }
+    }
+
+    @Override
+    public void updateInputWeights(double eta, double alpha, Optimizer optimizer, long step)
+    {
+        for(Stencil stencil: stencils){
+            stencil.updateInputWeights(position, eta, alpha, optimizer, step,
+                    stencil.getOptimizerState(optimizer));
+        }
+    }
+
+    @Override
+    public void clearOptimizerState()
+    {
+        for(Stencil stencil: stencils){
+            stencil.clearOptimizerState(position);
+        }
+    }
+
+    @Override
+    public boolean hasBackConnections()
+    {
+        return getNumBackConnections() > 0;
+    }
+
+    @Override
+    public int getNumBackConnections()
+    {
+        int count = 0;
+        for(Stencil stencil: stencils){
+            count += stencil.numSlots(position);
+        }
+        return count;
+    }
+
+    @Override
+    public void addBackConnection(Connection c)
+    {
+        throw new UnsupportedOperationException("The back connections of "
+                + this + " are fixed by the stencils of its layer.");
+    }
+
+    @Override
+    public void setBiasConnection(Connection c)
+    {
+        throw new UnsupportedOperationException("The bias connection of "
+                + this + " is fixed by the stencils of its layer.");
+    }
+}
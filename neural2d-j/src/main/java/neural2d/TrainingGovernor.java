@@ -0,0 +1,117 @@
+package neural2d;
+
+import neural2d.config.TrainingParameters;
+
+/**
+ * <p>
+ * Decides when training should give up before reaching the error threshold:
+ * after maxEpochs epochs, after maxTrainingTime seconds, when the running
+ * average error has stopped improving (a plateau), or when the error has
+ * become NaN or infinite (divergence). All of these are checked from values
+ * the net already tracks, so the checks after each sample cost next to
+ * nothing.
+ * <p>
+ * The governor takes a NetSnapshot of the weights before training starts,
+ * and again at the end of each epoch if the running average error is the
+ * lowest seen so far, so that training stopped by the governor can end with
+ * the best weights it found rather than the last ones. If the error
+ * diverged, the last weights are never kept, even when training diverged
+ * before the end of the first epoch.
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+class TrainingGovernor
+{
+    private final int maxEpochs;
+    private final long deadline;      // System.nanoTime() after which to stop, if timed
+    private final boolean timed;
+    private final int plateauWindow;
+    private final double plateauMinImprovement;
+
+    private int samplesInWindow;
+    private double windowStartError = Double.NaN;
+    private NetSnapshot best;         // Never null: the initial weights until an epoch ends
+    private double bestError = Double.MAX_VALUE;
+    private boolean diverged;
+
+    TrainingGovernor(TrainingParameters params, Net net)
+    {
+        best = net.snapshot();
+        maxEpochs = params.getMaxEpochs();
+        timed = params.getMaxTrainingTime() > 0;
+        deadline = System.nanoTime() + (long)(params.getMaxTrainingTime() * 1.0e9);
+        plateauWindow = params.getPlateauWindow();
+        plateauMinImprovement = params.getPlateauMinImprovement();
+    }
+
+    /**
+     * Called after each training sample.
+     * @param error the error of the sample.
+     * @param recentAverageError the running average error.
+     * @return why training should stop, or null if it should continue.
+     */
+    String afterSample(double error, double recentAverageError)
+    {
+        if(Double.isNaN(recentAverageError) || Double.isInfinite(recentAverageError)
+                || Double.isNaN(error) || Double.isInfinite(error)){
+            diverged = true;
+            return "the net error diverged to " + error;
+        }
+        if(timed && System.nanoTime() - deadline > 0){
+            return "the training time limit was reached";
+        }
+        if(plateauWindow > 0 && ++samplesInWindow >= plateauWindow){
+            samplesInWindow = 0;
+            double start = windowStartError;
+            windowStartError = recentAverageError;
+            if(start - recentAverageError < plateauMinImprovement * start){
+                return "the average error improved by less than "
+                        + plateauMinImprovement * 100.0 + "% over the last "
+                        + plateauWindow + " samples";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Called after each complete pass over the training samples.
+     * @param net
+     * @param epochs the number of epochs completed.
+     * @param recentAverageError the running average error.
+     * @return why training should stop, or null if it should continue.
+     */
+    String afterEpoch(Net net, int epochs, double recentAverageError)
+    {
+        if(recentAverageError < bestError){
+            bestError = recentAverageError;
+            best = net.snapshot();
+        }
+        if(maxEpochs > 0 && epochs >= maxEpochs){
+            return "the limit of " + maxEpochs + " epochs was reached";
+        }
+        return null;
+    }
+
+    /**
+     * @return true if training was stopped because the error diverged.
+     */
+    boolean hasDiverged()
+    {
+        return diverged;
+    }
+
+    /**
+     * @param recentAverageError the running average error when training stopped.
+     * @return the snapshot taken when the running average error was lowest, or
+     * the initial weights if training diverged before the end of the first
+     * epoch, or null if the current weights are at least as good.
+     */
+    NetSnapshot getBest(double recentAverageError)
+    {
+        if(diverged || !(recentAverageError <= bestError)){
+            return best;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,388 @@
+package neural2d.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import neural2d.Connection;
+import neural2d.Layer;
+import neural2d.LayerType;
+import neural2d.Net;
+import neural2d.NetElementVisitor;
+import neural2d.Neuron;
+
+/**
+ * <p>
+ * The weights of a trained net in a compact binary file, a .bnom, for nets
+ * too large to save as XML in reasonable time and memory. The file holds the
+ * NOM the net was built from, without weights, so that the same topology can
+ * be built again, and then the weights of each layer, in the order the
+ * back connections of its neurons are visited, as one array of doubles. No
+ * neuron is looked up by name and position: the weights are read
+ * sequentially, in large blocks, and set in the same order they were saved.
+ * <p>
+ * The layout is big-endian:
+ * <pre>
+ *   long magic, int version, int 0, long CRC32 of everything after it
+ *   int length of the NOM, the NOM in UTF-8
+ *   int number of layers
+ *   for each layer: int length of its name, the name in UTF-8,
+ *       int number of weights, the weights
+ * </pre>
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+public class BinaryWeights
+{
+    /**
+     * The extension of the files in this format. NetConfig reads and writes
+     * NOM files with it as binary, and all others as XML.
+     */
+    public static final String EXTENSION = ".bnom";
+
+    private static final long MAGIC = 0x4e3244424e4f4d31L; // "N2DBNOM1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final byte[] nom;
+    private final List<String> layerNames;
+    private final List<double[]> layerWeights;
+
+    private BinaryWeights(byte[] nom, List<String> layerNames, List<double[]> layerWeights)
+    {
+        this.nom = nom;
+        this.layerNames = layerNames;
+        this.layerWeights = layerWeights;
+    }
+
+    /**
+     * @param file
+     * @return true if the file should be read and written in this format.
+     */
+    public static boolean isBinary(File file)
+    {
+        return file.getName().toLowerCase().endsWith(EXTENSION);
+    }
+
+    /**
+     * @return the NOM the weights belong to, without weights.
+     */
+    byte[] getNOM()
+    {
+        return nom;
+    }
+
+    // The layers of the net that have back connections, in the order the
+    // net visits them.
+    private static List<Layer> layersWithWeights(Net net)
+    {
+        final List<Layer> layers = new ArrayList<>();
+        net.accept(new NetElementVisitor()
+        {
+            @Override
+            public boolean visit(Layer layer)
+            {
+                if(layer.getLayerType() != LayerType.INPUT && layer.getLayerType() != LayerType.BIAS){
+                    layers.add(layer);
+                }
+                return false;
+            }
+        });
+        return layers;
+    }
+
+    /**
+     * Set the weights of the net, which must have been built from the NOM
+     * read with them.
+     * @param net
+     * @throws ConfigurationException if the layers of the net or their
+     * numbers of connections differ from those saved. No weights are set.
+     */
+    public void apply(Net net) throws ConfigurationException
+    {
+        List<Layer> layers = layersWithWeights(net);
+        if(layers.size() != layerNames.size()){
+            throw new ConfigurationException("The net has " + layers.size()
+                    + " layers with weights, but " + layerNames.size() + " were saved.");
+        }
+        for(int i = 0; i < layers.size(); i++){
+            Layer layer = layers.get(i);
+            if(!layer.getName().equals(layerNames.get(i))
+                    || layer.getNumBackConnections() != layerWeights.get(i).length){
+                throw new ConfigurationException("The saved weights of layer '" + layerNames.get(i)
+                        + "' do not match layer '" + layer.getName() + "' of the net.");
+            }
+        }
+        for(int i = 0; i < layers.size(); i++){
+            final double[] weights = layerWeights.get(i);
+            NetElementVisitor v = new NetElementVisitor()
+            {
+                int count;
+
+                @Override
+                public boolean visit(Connection conn)
+                {
+                    conn.setWeight(weights[count++]);
+                    return false;
+                }
+            };
+            for(Neuron neuron: layers.get(i).getNeurons()){
+                neuron.acceptBackward(v);
+            }
+        }
+    }
+
+    /**
+     * Save the weights of a net, with the NOM it was built from.
+     * @param net
+     * @param nom the NOM, without weights.
+     * @param file overwritten if it exists.
+     * @throws ConfigurationException if the file cannot be written.
+     */
+    public static void write(Net net, byte[] nom, File file) throws ConfigurationException
+    {
+        List<Layer> layers = layersWithWeights(net);
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+            raf.setLength(0);
+            final Output out = new Output(raf.getChannel());
+            out.putBytes(nom);
+            out.putInt(layers.size());
+            NetElementVisitor v = new NetElementVisitor()
+            {
+                @Override
+                public boolean visit(Connection conn)
+                {
+                    out.putDouble(conn.getWeight());
+                    return false;
+                }
+            };
+            for(Layer layer: layers){
+                out.putBytes(layer.getName().getBytes(StandardCharsets.UTF_8));
+                out.putInt(layer.getNumBackConnections());
+                for(Neuron neuron: layer.getNeurons()){
+                    neuron.acceptBackward(v);
+                }
+            }
+            out.close();
+        } catch(IOException e){
+            throw new ConfigurationException("Cannot write weights to '" + file + "'.", e);
+        }
+    }
+
+    /**
+     * Read the weights saved by write(), and the NOM they belong to,
+     * checking that neither has been corrupted.
+     * @param file
+     * @return
+     * @throws ConfigurationException if the file cannot be read, is not in
+     * this format, or fails its checksum.
+     */
+    public static BinaryWeights read(File file) throws ConfigurationException
+    {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")){
+            Input in = new Input(raf.getChannel());
+            byte[] nom = in.getBytes();
+            int numLayers = in.getInt();
+            List<String> names = new ArrayList<>();
+            List<double[]> weights = new ArrayList<>();
+            for(int i = 0; i < numLayers; i++){
+                names.add(new String(in.getBytes(), StandardCharsets.UTF_8));
+                double[] w = new double[in.getCount()];
+                in.getDoubles(w);
+                weights.add(w);
+            }
+            in.close();
+            return new BinaryWeights(nom, names, weights);
+        } catch(IOException e){
+            throw new ConfigurationException("Cannot read weights from '" + file + "': "
+                    + e.getMessage(), e);
+        }
+    }
+
+    // Writes the body of the file through a buffer, keeping its checksum,
+    // and the header when closed. putDouble() is called from a visitor, so
+    // it cannot throw; an error writing is thrown by close() instead.
+    private static final class Output
+    {
+        private final FileChannel channel;
+        private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+        private IOException error;
+
+        Output(FileChannel channel) throws IOException
+        {
+            this.channel = channel;
+            channel.position(HEADER_SIZE);
+        }
+
+        void putInt(int i) throws IOException
+        {
+            ensure(4);
+            buf.putInt(i);
+        }
+
+        void putDouble(double d)
+        {
+            if(error != null){
+                return;
+            }
+            try {
+                ensure(8);
+                buf.putDouble(d);
+            } catch(IOException e){
+                error = e;
+            }
+        }
+
+        void putBytes(byte[] b) throws IOException
+        {
+            putInt(b.length);
+            int off = 0;
+            while(off < b.length){
+                ensure(1);
+                int n = Math.min(buf.remaining(), b.length - off);
+                buf.put(b, off, n);
+                off += n;
+            }
+        }
+
+        private void ensure(int n) throws IOException
+        {
+            if(buf.remaining() < n){
+                flush();
+            }
+        }
+
+        private void flush() throws IOException
+        {
+            crc.update(buf.array(), 0, buf.position());
+            buf.flip();
+            while(buf.hasRemaining()){
+                channel.write(buf);
+            }
+            buf.clear();
+        }
+
+        void close() throws IOException
+        {
+            if(error != null){
+                throw error;
+            }
+            flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(MAGIC).putInt(VERSION).putInt(0).putLong(crc.getValue());
+            header.flip();
+            while(header.hasRemaining()){
+                channel.write(header, header.position());
+            }
+        }
+    }
+
+    // Reads the body of the file through a buffer, checking it against the
+    // checksum in the header when closed.
+    private static final class Input
+    {
+        private final FileChannel channel;
+        private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+        private final long expectedCrc;
+
+        Input(FileChannel channel) throws IOException
+        {
+            this.channel = channel;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while(header.hasRemaining()){
+                if(channel.read(header) < 0){
+                    throw new IOException("not a binary NOM file");
+                }
+            }
+            header.flip();
+            if(header.getLong() != MAGIC){
+                throw new IOException("not a binary NOM file");
+            }
+            int version = header.getInt();
+            if(version != VERSION){
+                throw new IOException("version " + version + " cannot be read");
+            }
+            header.getInt();
+            expectedCrc = header.getLong();
+            buf.limit(0);
+        }
+
+        int getInt() throws IOException
+        {
+            require(4);
+            return buf.getInt();
+        }
+
+        // A count of things to read, each at least a byte.
+        int getCount() throws IOException
+        {
+            int n = getInt();
+            if(n < 0 || n > channel.size()){
+                throw new IOException("the file is corrupt");
+            }
+            return n;
+        }
+
+        byte[] getBytes() throws IOException
+        {
+            byte[] b = new byte[getCount()];
+            int off = 0;
+            while(off < b.length){
+                require(1);
+                int n = Math.min(buf.remaining(), b.length - off);
+                buf.get(b, off, n);
+                off += n;
+            }
+            return b;
+        }
+
+        void getDoubles(double[] d) throws IOException
+        {
+            int off = 0;
+            while(off < d.length){
+                require(8);
+                int n = Math.min(buf.remaining() / 8, d.length - off);
+                buf.asDoubleBuffer().get(d, off, n);
+                buf.position(buf.position() + 8 * n);
+                off += n;
+            }
+        }
+
+        // Reads until at least n bytes are buffered.
+        private void require(int n) throws IOException
+        {
+            if(buf.remaining() >= n){
+                return;
+            }
+            buf.compact();
+            while(buf.position() < n){
+                int start = buf.position();
+                int read = channel.read(buf);
+                if(read < 0){
+                    throw new IOException("the file ends early");
+                }
+                crc.update(buf.array(), start, read);
+            }
+            buf.flip();
+        }
+
+        void close() throws IOException
+        {
+            if(buf.hasRemaining() || channel.position() != channel.size()){
+                throw new IOException("the file has data after the weights");
+            }
+            if(crc.getValue() != expectedCrc){
+                throw new IOException("the file is corrupt: its checksum does not match");
+            }
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package neural2d.config;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import neural2d.ColorChannel;
 import neural2d.Matrix;
 import neural2d.TransferFunction;
@@ -15,7 +18,7 @@ import static neural2d.TransferFunction.TANH;
  */
 public class LayerConfig {
     private String layerName;
-    private String fromLayerName;
+    private final List<String> fromLayerNames = new ArrayList<>(); // in order of appearance
     private int numColumns, numRows;
     private ColorChannel channel; // applies only to input layer
     private int radiusX, radiusY;
@@ -23,15 +26,19 @@ public class LayerConfig {
     private TransferFunction tf;
     private Matrix convolveMatrix;
     private boolean isClassifier;
+    private boolean softmax; // if the outputs are normalized together; applies only to output layer
+    private boolean frozen;  // if training leaves the weights into this layer alone
 
     public void setTransferFunction(TransferFunction func)
     {
         tf = func;
+        softmax = false;
     }
 
     public void setTransferFunction(String transferFunctionName)
     {
         String tfName = transferFunctionName.toLowerCase();
+        softmax = false;
         if(tfName == null || tfName.isEmpty() || tfName.equals("tanh")){
             tf = TANH;
         } else if(tfName.equals("logistic")){
@@ -45,6 +52,10 @@ public class LayerConfig {
             tf = GAUSSIAN;
         } else if (tfName.equals("identity")){
             tf = IDENTITY;
+        } else if (tfName.equals("softmax")){
+            // The neurons pass their sums through; the layer normalizes them.
+            tf = IDENTITY;
+            softmax = true;
         } else {
             throw new IllegalArgumentException("No such transfer function: " + tfName);
         }
@@ -62,12 +73,13 @@ public class LayerConfig {
     private void _clear()
     {
         layerName = null;
-        fromLayerName = null;
+        fromLayerNames.clear();
         numColumns = numRows = 0;
         channel = null;
         radiusX = 1000000000;
         radiusY = 1000000000;
         tf = TANH;
+        softmax = false;
         convolveMatrix = null;
     }
 
@@ -91,14 +103,38 @@ public class LayerConfig {
         this.layerName = layerName;
     }
 
+    /**
+     * The first layer this layer receives input from.
+     * @return the first 'from' layer name, or null if there is none.
+     */
     public String getFromLayerName()
     {
-        return fromLayerName;
+        return fromLayerNames.isEmpty() ? null : fromLayerNames.get(0);
     }
 
+    /**
+     * Make the named layer the only layer this layer receives input from.
+     * @param fromLayerName
+     */
     public void setFromLayerName(String fromLayerName)
     {
-        this.fromLayerName = fromLayerName;
+        fromLayerNames.clear();
+        addFromLayerName(fromLayerName);
+    }
+
+    /**
+     * All the layers this layer receives input from, in the order they
+     * appeared in the topology.
+     * @return the 'from' layer names, possibly empty.
+     */
+    public List<String> getFromLayerNames()
+    {
+        return Collections.unmodifiableList(fromLayerNames);
+    }
+
+    public void addFromLayerName(String fromLayerName)
+    {
+        fromLayerNames.add(fromLayerName);
     }
 
     public int getNumRows()
@@ -177,4 +213,28 @@ public class LayerConfig {
     {
         this.isClassifier = b;
     }
+
+    /**
+     * @return true if training must not change the weights of the
+     * connections into this layer, as when fine-tuning only the layers
+     * after it.
+     */
+    public boolean isFrozen()
+    {
+        return frozen;
+    }
+
+    public void setFrozen(boolean b)
+    {
+        this.frozen = b;
+    }
+
+    /**
+     * @return true if the layer's outputs are the softmax of its neurons'
+     * sums, trained against their cross-entropy.
+     */
+    public boolean isSoftmax()
+    {
+        return softmax;
+    }
 }
@@ -1,6 +1,16 @@
 package neural2d.config;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import neural2d.Net;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -20,8 +30,10 @@ public class NetConfig extends XMLConfig
 
     private TopologyConfig topology;
     private WeightsConfig weights;
+    private BinaryWeights binaryWeights;
     private Node topologyElement, trainingElement;
     private TrainingParameters trainingParams;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
 
 
     // other configuration items here... eta, etc...
@@ -41,7 +53,9 @@ public class NetConfig extends XMLConfig
                 + "<!ELEMENT layers (layer)*>\n"
                 + "<!ELEMENT output ((size|radius|from|channel|tf|convolve|name)*)>\n"
                 + "<!ATTLIST output classifier (true|false) \"false\">\n"
-                + "<!ELEMENT layer ((size|radius|from|channel|tf|convolve|name)*)>\n";
+                + "<!ATTLIST output frozen (true|false) \"false\">\n"
+                + "<!ELEMENT layer ((size|radius|from|channel|tf|convolve|name)*)>\n"
+                + "<!ATTLIST layer frozen (true|false) \"false\">\n";
     private final static String weightsDTD = "<!ELEMENT weights ((layerWeights)*)>\n"
                 + "<!ELEMENT layerWeights ((neuronWeights)*)>\n"
                 + "<!ELEMENT neuronWeights ((connectionWeight)*)>\n"
@@ -53,36 +67,80 @@ public class NetConfig extends XMLConfig
                 + "<!ATTLIST connectionWeight toColumn CDATA #REQUIRED>"
                 + "<!ATTLIST connectionWeight toLayer CDATA #REQUIRED>";
     private final static String trainingDTD =
-            "<!ELEMENT trainingParams ((eta|alpha|lamba|dynamicEta|errorThreshold|repeatSamples|shuffleSamples|reportEveryNth|averageErrorSmoothing)*)>\n"
+            "<!ELEMENT trainingParams ((eta|alpha|optimizer|lamba|dynamicEta|errorThreshold|repeatSamples|shuffleSamples|reportEveryNth|averageErrorSmoothing|pipelineStages|pipelineWindow|validateEveryNth|patience|maxEpochs|maxTrainingTime|plateauWindow|plateauMinImprovement|prefetchSamples|prefetchThreads|cacheActivations|cacheFile|selectiveBackprop|selectiveBackpropFloor|selectiveBackpropWarmup|updateGradientEpsilon|updateMomentumEpsilon|offHeapWeights|seed)*)>\n"
                 + "<!ELEMENT eta (#PCDATA)>\n"
                 + "<!ELEMENT alpha (#PCDATA)>\n"
+                + "<!ELEMENT optimizer (#PCDATA)>\n"
                 + "<!ELEMENT lamba (#PCDATA)>\n"
                 + "<!ELEMENT dynamicEta (#PCDATA)>\n"
                 + "<!ELEMENT errorThreshold (#PCDATA)>\n"
                 + "<!ELEMENT repeatSamples (#PCDATA)>\n"
                 + "<!ELEMENT shuffleSamples (#PCDATA)>\n"
                 + "<!ELEMENT reportEveryNth (#PCDATA)>\n"
-                + "<!ELEMENT averageErrorSmoothing (#PCDATA)>\n";
+                + "<!ELEMENT averageErrorSmoothing (#PCDATA)>\n"
+                + "<!ELEMENT pipelineStages (#PCDATA)>\n"
+                + "<!ELEMENT pipelineWindow (#PCDATA)>\n"
+                + "<!ELEMENT validateEveryNth (#PCDATA)>\n"
+                + "<!ELEMENT patience (#PCDATA)>\n"
+                + "<!ELEMENT maxEpochs (#PCDATA)>\n"
+                + "<!ELEMENT maxTrainingTime (#PCDATA)>\n"
+                + "<!ELEMENT plateauWindow (#PCDATA)>\n"
+                + "<!ELEMENT plateauMinImprovement (#PCDATA)>\n"
+                + "<!ELEMENT prefetchSamples (#PCDATA)>\n"
+                + "<!ELEMENT prefetchThreads (#PCDATA)>\n"
+                + "<!ELEMENT cacheActivations (#PCDATA)>\n"
+                + "<!ELEMENT cacheFile (#PCDATA)>\n"
+                + "<!ELEMENT selectiveBackprop (#PCDATA)>\n"
+                + "<!ELEMENT selectiveBackpropFloor (#PCDATA)>\n"
+                + "<!ELEMENT selectiveBackpropWarmup (#PCDATA)>\n"
+                + "<!ELEMENT updateGradientEpsilon (#PCDATA)>\n"
+                + "<!ELEMENT updateMomentumEpsilon (#PCDATA)>\n"
+                + "<!ELEMENT offHeapWeights (#PCDATA)>\n"
+                + "<!ELEMENT seed (#PCDATA)>\n";
 
     public static NetConfig parseConfig(String configFilename) throws ConfigurationException
     {
         return parseConfig(new File(configFilename));
     }
 
+    /**
+     * @param file a NOM file, binary if it has the extension of
+     * BinaryWeights, and XML otherwise.
+     * @return
+     * @throws ConfigurationException
+     */
     public static NetConfig parseConfig(File file) throws ConfigurationException
     {
-        Document document = getDocument(file,
-                "<?xml version=\"1.0\"?>\n"
+        if (BinaryWeights.isBinary(file)) {
+            BinaryWeights binary = BinaryWeights.read(file);
+            NetConfig config = parseConfig(new ByteArrayInputStream(binary.getNOM()));
+            config.binaryWeights = binary;
+            return config;
+        }
+        Document document = getDocument(file, getDTD());
+
+        Element netElem = document.getDocumentElement();
+        return new NetConfig(netElem);
+    }
+
+    public static NetConfig parseConfig(InputStream is) throws ConfigurationException
+    {
+        Document document = getDocument(is, getDTD());
+
+        Element netElem = document.getDocumentElement();
+        return new NetConfig(netElem);
+    }
+
+    private static String getDTD()
+    {
+        return "<?xml version=\"1.0\"?>\n"
                 + "<!DOCTYPE net [\n"
                 + "<!ELEMENT net ((topology|weights|trainingParams)*)>\n"
                 + topologyDTD
                 + weightsDTD
                 + trainingDTD
                 + "\n"
-                + "]>\n");
-
-        Element netElem = document.getDocumentElement();
-        return new NetConfig(netElem);
+                + "]>\n";
     }
 
     public TopologyConfig getTopologyConfig()
@@ -100,9 +158,17 @@ public class NetConfig extends XMLConfig
         return trainingParams;
     }
 
+    /**
+     * @return the weights read from a binary NOM file, or null if it was XML.
+     */
+    public BinaryWeights getBinaryWeights()
+    {
+        return binaryWeights;
+    }
+
     public boolean isTrained()
     {
-        return weights != null;
+        return weights != null || binaryWeights != null;
     }
 
     private NetConfig(Element netElem) throws ConfigurationException
@@ -131,15 +197,55 @@ public class NetConfig extends XMLConfig
         }
     }
 
+    /**
+     * Save the NOM with the trained weights of the net, in binary if the file
+     * has the extension of BinaryWeights, and as XML otherwise. The XML is
+     * written as the weights are visited, so no copy of them is built in
+     * memory. Weights that are NaN or infinite are never written.
+     * @param net
+     * @param outputFile
+     * @throws ConfigurationException
+     */
     public void writeTrainedNOM(Net net, File outputFile) throws ConfigurationException
     {
-        Document weightDocument, nomDocument;
-        WeightsConfig.SaveWeightConfigVisitor v =
-                new WeightsConfig.SaveWeightConfigVisitor();
-        net.accept(v);
-        weightDocument = v.getDocument();
+        if (!net.hasFiniteWeights()) {
+            throw new ConfigurationException("Not writing '" + outputFile
+                    + "': the net has NaN or infinite weights.");
+        }
+        if (BinaryWeights.isBinary(outputFile)) {
+            ByteArrayOutputStream nom = new ByteArrayOutputStream();
+            XMLConfig.writeDocument(createUntrainedNOM(), nom);
+            BinaryWeights.write(net, nom.toByteArray(), outputFile);
+            return;
+        }
 
-        nomDocument = createDocument("net");
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(outputFile), WRITE_BUFFER_SIZE)) {
+            XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(os, "UTF-8");
+            writer.writeStartElement("net");
+            writer.writeCharacters("\n  ");
+            writeNode(writer, topologyElement);
+            if (trainingElement != null) {
+                writer.writeCharacters("\n  ");
+                writeNode(writer, trainingElement);
+            }
+            WeightsConfig.SaveWeightConfigVisitor v =
+                    new WeightsConfig.SaveWeightConfigVisitor(writer);
+            net.accept(v);
+            v.finish();
+            writer.writeCharacters("\n");
+            writer.writeEndElement();
+            writer.writeCharacters("\n");
+            writer.close();
+        } catch (IOException | XMLStreamException ex) {
+            throw new ConfigurationException("Exception while writing configuration file '"
+                    + outputFile + "'.", ex);
+        }
+    }
+
+    // The topology and training parameters of this NOM, without weights.
+    private Document createUntrainedNOM() throws ConfigurationException
+    {
+        Document nomDocument = createDocument("net");
         Node newTopo = nomDocument.importNode(topologyElement, true);
         nomDocument.getDocumentElement().appendChild(newTopo);
 
@@ -147,11 +253,7 @@ public class NetConfig extends XMLConfig
             Node newTrain = nomDocument.importNode(trainingElement, true);
             nomDocument.getDocumentElement().appendChild(newTrain);
         }
-
-        Node newWeight = nomDocument.importNode(weightDocument.getDocumentElement(), true);
-        nomDocument.getDocumentElement().appendChild(newWeight);
-
-        XMLConfig.writeDocument(nomDocument, outputFile);
+        return nomDocument;
     }
 }
 
@@ -147,27 +147,32 @@ public class SampleConfig extends XMLConfig
         for(Node node: getChildElements(parentNode)){
             switch(node.getNodeName()){
                 case "img":
-                    String file = getAttribute(node, "src");
-                    try {
-                        InputStream is = new URL(file).openConnection().getInputStream();
-                        ImageData img = readBMP(is, file);
-                        if(img.getNumRows() != inSizeY
-                                || img.getNumColumns() != inSizeX){
-                            throw new ConfigurationException("Image file '" + file + "' dimensions do not match size of input layer.");
-                        }
-                        return img;
-                    } catch (MalformedURLException ex) {
-                        throw new ConfigurationException("Image file '" + file + "' could not be loaded.", ex);
-                    } catch (IOException ex) {
-                        throw new ConfigurationException("Image file '" + file + "' could not be loaded.", ex);
-
-                    }
+                    return loadImage(getAttribute(node, "src"), inSizeX, inSizeY);
             }
         }
         return null;
     }
 
-    private ImageData readBMP(InputStream is, String filename) throws IOException
+    // Read the image at the URL, which must be inSizeX columns by inSizeY rows.
+    static ImageData loadImage(String file, int inSizeX, int inSizeY) throws ConfigurationException
+    {
+        try {
+            InputStream is = new URL(file).openConnection().getInputStream();
+            ImageData img = readBMP(is, file);
+            if(img.getNumRows() != inSizeY
+                    || img.getNumColumns() != inSizeX){
+                throw new ConfigurationException("Image file '" + file + "' dimensions do not match size of input layer.");
+            }
+            return img;
+        } catch (MalformedURLException ex) {
+            throw new ConfigurationException("Image file '" + file + "' could not be loaded.", ex);
+        } catch (IOException ex) {
+            throw new ConfigurationException("Image file '" + file + "' could not be loaded.", ex);
+
+        }
+    }
+
+    private static ImageData readBMP(InputStream is, String filename) throws IOException
     {
         byte info[] = new byte[54];
         if(is.read(info) != 54) {
@@ -0,0 +1,288 @@
+package neural2d.config;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import neural2d.Matrix;
+import neural2d.Sample;
+import neural2d.Sample.ImageData;
+
+/**
+ * <p>
+ * Reads the samples of a sample file one at a time, as they are needed,
+ * rather than all at once as SampleConfig does. Only the sample being read
+ * is in memory, so a sample file may be much larger than the heap. The file
+ * is the same as for SampleConfig, except that its inputSize and targetSize
+ * must come before its samples.
+ * <p>
+ * The file is not validated against the DTD before it is read; an error in
+ * it is found when the sample it is in is read.
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+public class SampleReader implements Iterator<Sample>, Closeable
+{
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+    static {
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    private final InputStream in;
+    private final XMLStreamReader reader;
+    private final String source;
+    private final boolean needsTargets;
+    private int inSizeX, inSizeY, outSizeX, outSizeY;
+    private boolean haveInputSize;
+    private int count;        // samples read so far
+    private Sample next;      // read by hasNext() but not yet returned
+    private boolean done;
+
+    /**
+     * @param in the sample file. Closed when the reader is.
+     * @param source the name of the file, for error messages.
+     * @param needsTargets if every sample must have target values.
+     * @throws ConfigurationException if the file cannot be read.
+     */
+    public SampleReader(InputStream in, String source, boolean needsTargets) throws ConfigurationException
+    {
+        this.in = in;
+        this.source = source;
+        this.needsTargets = needsTargets;
+        try {
+            reader = FACTORY.createXMLStreamReader(in);
+        } catch (XMLStreamException e){
+            close();
+            throw new ConfigurationException("Error parsing file '" + source + "'", e);
+        }
+    }
+
+    /**
+     * @param f
+     * @param needsTargets if every sample must have target values.
+     * @return a reader of the samples in the file.
+     * @throws ConfigurationException if the file cannot be opened.
+     */
+    public static SampleReader open(File f, boolean needsTargets) throws ConfigurationException
+    {
+        if(!f.isFile()){
+            throw new ConfigurationException("Input file '" + f.getPath() + "' not found.");
+        }
+        try {
+            return new SampleReader(new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE),
+                    f.getPath(), needsTargets);
+        } catch (IOException e){
+            throw new ConfigurationException("Error opening file '" + f.getPath() + "'", e);
+        }
+    }
+
+    /**
+     * @return the number of samples read so far.
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Read the next sample.
+     * @return the sample, or null at the end of the file.
+     * @throws ConfigurationException if the file is not a valid sample file,
+     * or the sample is not valid.
+     */
+    public Sample read() throws ConfigurationException
+    {
+        if(next != null){
+            Sample sample = next;
+            next = null;
+            return sample;
+        }
+        if(done){
+            return null;
+        }
+        try {
+            while(reader.hasNext()){
+                if(reader.next() != XMLStreamConstants.START_ELEMENT){
+                    continue;
+                }
+                switch(reader.getLocalName()){
+                    case "sampleSet":
+                    case "samples":
+                        break;
+                    case "inputSize":
+                    case "targetSize":
+                        parseSize();
+                        break;
+                    case "sample":
+                        Sample sample = parseSample();
+                        ++count;
+                        return sample;
+                    default:
+                        throw new ConfigurationException("Unexpected element <"
+                                + reader.getLocalName() + ">.");
+                }
+            }
+        } catch (XMLStreamException | ConfigurationException e){
+            throw new ConfigurationException("Error parsing file '" + source + "' at sample "
+                    + (count + 1), e);
+        }
+        done = true;
+        if(count == 0){
+            throw new ConfigurationException("Input file '" + source + "' has no sample data.");
+        }
+        return null;
+    }
+
+    private void parseSize() throws XMLStreamException, ConfigurationException
+    {
+        boolean input = reader.getLocalName().charAt(0) == 'i';
+        String content = reader.getElementText().trim();
+        int twoNums[];
+        try {
+            twoNums = XMLConfig.extractTwoNums(content);
+        } catch (NumberFormatException e){
+            throw new ConfigurationException("Bad XxY format in config file. " + content);
+        }
+        if(input){
+            inSizeX = twoNums[0];
+            inSizeY = twoNums[1];
+            haveInputSize = true;
+        } else {
+            outSizeX = twoNums[0];
+            outSizeY = twoNums[1];
+        }
+    }
+
+    // Reads a sample, positioned at its start element, up to its end element.
+    private Sample parseSample() throws XMLStreamException, ConfigurationException
+    {
+        if(!haveInputSize){
+            throw new ConfigurationException("The inputSize must come before the samples.");
+        }
+        Matrix in = null, out = null;
+        ImageData img = null;
+        boolean haveInput = false;
+        while(reader.nextTag() == XMLStreamConstants.START_ELEMENT){
+            switch(reader.getLocalName()){
+                case "input":
+                    haveInput = true;
+                    StringBuilder text = new StringBuilder();
+                    img = parseInput(text);
+                    if(img == null){
+                        in = new Matrix(inSizeX, inSizeY);
+                        in.load(MatrixConfig.parse(text.toString().trim(), inSizeX, inSizeY));
+                    }
+                    break;
+                case "target":
+                    out = new Matrix(outSizeX, outSizeY);
+                    out.load(MatrixConfig.parse(reader.getElementText().trim(), outSizeX, outSizeY));
+                    break;
+                default:
+                    throw new ConfigurationException("Unexpected element <"
+                            + reader.getLocalName() + "> in a sample.");
+            }
+        }
+        if(!haveInput){
+            throw new ConfigurationException("input values must be supplied for all samples.");
+        }
+        if(out == null && needsTargets){
+            throw new ConfigurationException("All samples must have target values in training and validation modes).");
+        }
+        return img == null ? Sample.createSample(in, out) : Sample.createSample(img, out);
+    }
+
+    // Reads an input, positioned at its start element, up to its end
+    // element. Returns its image, if it has one, or null after appending its
+    // values to text.
+    private ImageData parseInput(StringBuilder text) throws XMLStreamException, ConfigurationException
+    {
+        ImageData img = null;
+        int event;
+        while((event = reader.next()) != XMLStreamConstants.END_ELEMENT){
+            switch(event){
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    text.append(reader.getText());
+                    break;
+                case XMLStreamConstants.START_ELEMENT:
+                    if(!reader.getLocalName().equals("img")){
+                        throw new ConfigurationException("Unexpected element <"
+                                + reader.getLocalName() + "> in an input.");
+                    }
+                    img = SampleConfig.loadImage(reader.getAttributeValue(null, "src"), inSizeX, inSizeY);
+                    reader.nextTag();
+                    break;
+            }
+        }
+        return img;
+    }
+
+    /**
+     * @return true unless the end of the file has been reached.
+     * @throws IllegalStateException if the file is not a valid sample file;
+     * its cause is the ConfigurationException read() would have thrown.
+     */
+    @Override
+    public boolean hasNext()
+    {
+        if(next == null){
+            try {
+                next = read();
+            } catch (ConfigurationException e){
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+        return next != null;
+    }
+
+    /**
+     * @return the next sample.
+     * @throws IllegalStateException as for hasNext().
+     */
+    @Override
+    public Sample next()
+    {
+        if(!hasNext()){
+            throw new NoSuchElementException();
+        }
+        Sample sample = next;
+        next = null;
+        return sample;
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close()
+    {
+        done = true;
+        try {
+            if(reader != null){
+                reader.close();
+            }
+        } catch (XMLStreamException e){
+            // Nothing to do
+        }
+        try {
+            in.close();
+        } catch (IOException e){
+            // Nothing to do
+        }
+    }
+}
@@ -42,6 +42,12 @@ public class TopologyConfig extends XMLConfig
         for(int i=0; i < layers.size(); i++){
             LayerConfig layer = layers.get(i);
 
+            // Only the output layer can be a softmax layer, and it cannot
+            // also be a convolution layer.
+            if(layer.isSoftmax() && (i < layers.size()-1 || layer.isConvolutionLayer())){
+                throw new ConfigurationException("Only a regular output layer may use the 'softmax' transfer function.");
+            }
+
             // No layer except the input layer can have a color channel.
             if(i > 0 && layer.isColorChannelSpecified()){
                 throw new ConfigurationException("Only the input layer may specify a color channel.");
@@ -52,25 +58,55 @@ public class TopologyConfig extends XMLConfig
                 throw new ConfigurationException("All layers must have a name.");
             }
 
-            // All layers except input layer must have a valid 'from' layer
-            // that exists.
-            if(i > 0 && findLayer(layer.getFromLayerName()) < 0){
-                throw new ConfigurationException("'" + layer.getLayerName() + "' layer must specify a valid 'from' layer. 'from' layer was '"+layer.getFromLayerName());
+            // All layers except input layer must have at least one valid
+            // 'from' layer that exists, each named once, and none of them
+            // may be the layer itself or the output layer.
+            if(i > 0 && layer.getFromLayerNames().isEmpty()){
+                throw new ConfigurationException("'" + layer.getLayerName() + "' layer must specify a valid 'from' layer.");
+            }
+            List<String> seen = new ArrayList<>();
+            for(String from: layer.getFromLayerNames()){
+                int j = findLayer(from);
+                if(j < 0 || j == i){
+                    throw new ConfigurationException("'" + layer.getLayerName() + "' layer must specify a valid 'from' layer. 'from' layer was '"+from);
+                }
+                if(j == layers.size()-1){
+                    throw new ConfigurationException("'" + layer.getLayerName() + "' layer may not receive input from the output layer.");
+                }
+                if(seen.contains(from)){
+                    throw new ConfigurationException("'" + layer.getLayerName() + "' layer specifies 'from' layer '" + from + "' more than once.");
+                }
+                seen.add(from);
             }
-
         }
 
-        // Sort the layers in the order of forward propagation
-        // Since all layers except the input must have a previous
-        // layer, and since all previous layers exist and are
-        // unique, we can order the layers.
-        for(int i=layers.size()-1; i > 0; i--){
-            int j = findLayer(layers.get(i).getFromLayerName());
-            // Move the jth layer to the position i-1
-            if(j != i-1){
-                Collections.swap(layers, i-1, j);
+        // Sort the layers in the order of forward propagation, so that
+        // every layer comes after all the layers it receives input from.
+        // Each time, the first hidden layer in the config whose 'from'
+        // layers are all placed is placed next. The input layer stays
+        // first and the output layer, which feeds no other layer, last.
+        List<LayerConfig> sorted = new ArrayList<>();
+        List<String> placed = new ArrayList<>();
+        sorted.add(layers.get(0));
+        placed.add(layers.get(0).getLayerName());
+        List<LayerConfig> pending = new ArrayList<>(layers.subList(1, layers.size()-1));
+        while(!pending.isEmpty()){
+            LayerConfig next = null;
+            for(LayerConfig layer: pending){
+                if(placed.containsAll(layer.getFromLayerNames())){
+                    next = layer;
+                    break;
+                }
             }
+            if(next == null){
+                throw new ConfigurationException("The 'from' layers of '" + pending.get(0).getLayerName() + "' form a cycle.");
+            }
+            pending.remove(next);
+            sorted.add(next);
+            placed.add(next.getLayerName());
         }
+        sorted.add(layers.get(layers.size()-1));
+        layers = sorted;
     }
 
     /**
@@ -174,6 +210,10 @@ public class TopologyConfig extends XMLConfig
         if(attVal != null && Boolean.parseBoolean(attVal)){
             layerConfig.setClassifier(true);
         }
+        attVal = getAttribute(node, "frozen");
+        if(attVal != null && Boolean.parseBoolean(attVal)){
+            layerConfig.setFrozen(true);
+        }
 
         for(Node childNode: getChildElements(node)){
             String content;
@@ -188,10 +228,10 @@ public class TopologyConfig extends XMLConfig
                     layerConfig.setSize(twoNums[0],twoNums[1]);
                     break;
                 case "from":
-                    // TODO: allow a layer to receive input
-                    // from multiple previous layers.
+                    // A layer may receive input from several layers,
+                    // each given in its own <from> node.
                     content = getNodeContent(childNode);
-                    layerConfig.setFromLayerName(content);
+                    layerConfig.addFromLayerName(content);
                     break;
                 case "name":
                     content = getNodeContent(childNode);
@@ -222,7 +262,8 @@ public class TopologyConfig extends XMLConfig
                     layerConfig.setConvolveMatrix(parseConvolveMatrix(childNode));
                     if(tfSpecified
                             &&
-                        layerConfig.getTransferFunction() != TransferFunction.IDENTITY){
+                        (layerConfig.getTransferFunction() != TransferFunction.IDENTITY
+                            || layerConfig.isSoftmax())){
                         // Why?
                         throw new ConfigurationException("Convolution layers must have 'identity' transfer function.");
                     }
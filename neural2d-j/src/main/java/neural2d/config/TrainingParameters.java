@@ -1,5 +1,6 @@
 package neural2d.config;
 
+import neural2d.Optimizer;
 import static neural2d.config.XMLConfig.getChildElements;
 import org.w3c.dom.Node;
 
@@ -27,6 +28,11 @@ public class TrainingParameters extends XMLConfig
     // the early stages of training, but if set too high will interfere with the network
     // converging on the most accurate solution.
     private double alpha; // Initial momentum, multiplier of last deltaWeight, [0.0..1.0]
+    // The rule for updating the weights: sgd (the default), nesterov, rmsprop
+    // or adam. sgd and nesterov use alpha as the momentum factor. rmsprop and
+    // adam adapt the learning rate of each connection, so dynamicEta does not
+    // apply to them, and they usually want a smaller eta, such as 0.001.
+    private Optimizer optimizer;
 
     // Regularization parameter. If zero, regularization is disabled:
     private double lambda;
@@ -47,18 +53,111 @@ public class TrainingParameters extends XMLConfig
     private boolean shuffleInputSamples;
     private int reportEveryNth;
 
+    // If pipelineStages > 0, the layers are divided into that many stages, each
+    // run by its own thread, and up to pipelineWindow samples are fed through
+    // the stages together. While training, the forward passes of a window all
+    // see the weights as they were at the start of the window.
+    private int pipelineStages;
+    private int pipelineWindow;
+
+    // If validation samples are given, the error on them is measured in the
+    // background every validateEveryNth training samples. If it fails to
+    // improve for patience validations in a row, training stops early; if
+    // patience is zero, it never does. Either way, the weights that did best
+    // on the validation samples are kept when training ends.
+    private int validateEveryNth;
+    private int patience;
+
+    // Limits on training, for when the error threshold may never be reached.
+    // Training stops after maxEpochs passes over the samples or after
+    // maxTrainingTime seconds, if these are greater than zero. If
+    // plateauWindow is greater than zero, training also stops when the
+    // running average error improves by less than the fraction
+    // plateauMinImprovement over that many samples. It always stops if the
+    // error becomes NaN or infinite. When stopped this way, the weights from
+    // the epoch with the lowest running average error are kept.
+    private int maxEpochs;
+    private double maxTrainingTime;
+    private int plateauWindow;
+    private double plateauMinImprovement;
+
+    // If prefetchSamples > 0, that many training samples are converted to
+    // inputs ahead of time by prefetchThreads background threads, and the
+    // order of each epoch is shuffled ahead of time, so that training does not
+    // wait for image conversion. The converted inputs are not kept in the
+    // samples, so memory use does not grow with the number of image samples.
+    private int prefetchSamples;
+    private int prefetchThreads;
+
+    // If cacheActivations is true, and the first layers are frozen, the
+    // outputs of the last frozen layers are saved for each training sample
+    // the first time it is fed forward, and later epochs feed forward only
+    // the layers after them. The outputs are kept in memory, or, if cacheFile
+    // is given, memory-mapped in that file. Only serial training uses them.
+    private boolean cacheActivations;
+    private String cacheFile;
+
+    // If selectiveBackprop (beta) > 0, after selectiveBackpropWarmup epochs,
+    // samples whose error is small compared to the recent samples are
+    // backpropagated only some of the time: one whose error is higher than a
+    // fraction f of the recent errors with probability f^beta, but never less
+    // than selectiveBackpropFloor.
+    private double selectiveBackprop;
+    private double selectiveBackpropFloor;
+    private int selectiveBackpropWarmup;
+
+    // If updateGradientEpsilon > 0, backprop leaves alone the weights of a
+    // neuron whose gradient is smaller than it, as long as alpha times the
+    // largest delta weight of the neuron is no more than
+    // updateMomentumEpsilon. This saves writing weights that would hardly
+    // change, as for saturated neurons. Only sgd updates are skipped; the
+    // other optimizers keep state that must be updated every time.
+    private double updateGradientEpsilon;
+    private double updateMomentumEpsilon;
+
+    // If offHeapWeights is true, the weights and delta weights of the layers
+    // connected by stencils are kept outside the Java heap, and freed when
+    // the net is closed. The size of the heap then need not allow for them,
+    // though -XX:MaxDirectMemorySize must.
+    private boolean offHeapWeights;
+
+    // The seed for the random initial weights. The same topology and seed
+    // always give the same initial weights. If no seed is given, a random one
+    // is chosen.
+    private long seed;
+    private boolean hasSeed;
+
     public TrainingParameters() throws ConfigurationException
     {
         errorThreshold = 0.01;
         eta = 0.01;                    // Initial overall net learning rate, [0.0..1.0]
         dynamicEta = true;       // true enables automatic eta adjustment during training
         alpha = 0.0;                   // Momentum factor, multiplier of last deltaWeight, [0.0..1.0]
+        optimizer = Optimizer.SGD;
         lambda = 0.0;                  // Regularization parameter; disabled if 0.0
         projectRectangular = false;    // Use elliptical areas for sparse connections
         recentAverageSmoothingFactor = 125; // Average net errors over this many input samples
         repeatInputSamples = true;
         shuffleInputSamples = true;
         reportEveryNth = 100;
+        pipelineStages = 0;            // Pipelining disabled
+        pipelineWindow = 16;
+        validateEveryNth = 1000;
+        patience = 10;
+        maxEpochs = 0;                 // No limit
+        maxTrainingTime = 0.0;         // No limit
+        plateauWindow = 0;             // Plateau detection disabled
+        plateauMinImprovement = 0.001;
+        prefetchSamples = 0;           // Prefetching disabled
+        prefetchThreads = 2;
+        cacheActivations = false;      // Caching disabled
+        cacheFile = null;              // Cache in memory
+        selectiveBackprop = 0.0;       // Backprop every sample
+        selectiveBackpropFloor = 0.1;
+        selectiveBackpropWarmup = 1;
+        updateGradientEpsilon = 0.0;   // Update every weight
+        updateMomentumEpsilon = 0.0;
+        offHeapWeights = false;
     }
 
     public TrainingParameters(Node parent) throws ConfigurationException
@@ -82,6 +181,9 @@ public class TrainingParameters extends XMLConfig
                             throw new ConfigurationException("Training parameter " + name + " should be numeric", e);
                         }
                         break;
+                    case "optimizer":
+                        setOptimizer(getNodeContent(node));
+                        break;
                     case "lamba":
                         try {
                             lambda = Double.parseDouble(getNodeContent(node));
@@ -131,6 +233,143 @@ public class TrainingParameters extends XMLConfig
                             throw new ConfigurationException("Training parameter " + name + " should be an integer.", e);
                         }
                         break;
+                    case "pipelineStages":
+                        try {
+                            pipelineStages = Integer.parseInt(getNodeContent(node));
+                        } catch (NumberFormatException e) {
+                            throw new ConfigurationException("Training parameter " + name + " should be an integer.", e);
+                        }
+                        break;
+                    case "pipelineWindow":
+                        try {
+                            pipelineWindow = Integer.parseInt(getNodeContent(node));
+                        } catch (NumberFormatException e) {
+                            throw new ConfigurationException("Training parameter " + name + " should be an integer.", e);
+                        }
+                        if (pipelineWindow < 1) {
+                            throw new ConfigurationException("Training parameter " + name + " should be at least 1.");
+                        }
+                        break;
+                    case "validateEveryNth":
+                        try {
+                            validateEveryNth = Integer.parseInt(getNodeContent(node));
+                        } catch (NumberFormatException e) {
+                            throw new ConfigurationException("Training parameter " + name + " should be an integer.", e);
+                        }
+                        if (validateEveryNth < 1) {
+                            throw new ConfigurationException("Training parameter " + name + " should be at least 1.");
+                        }
+                        break;
+                    case "patience":
+                        try {
+                            patience = Integer.parseInt(getNodeContent(node));
+                        } catch (NumberFormatException e) {
+                            throw new ConfigurationException("Training parameter " + name + " should be an integer.", e);
+                        }
+                        break;
+                    case "maxEpochs":
+                        try {
+                            maxEpochs = Integer.parseInt(getNodeContent(node));
+                        } catch (NumberFormatException e) {
+                            throw new ConfigurationException("Training parameter " + name + " should be an integer.", e);
+                        }
+                        break;
+                    case "maxTrainingTime":
+                        try {
+                            maxTrainingTime = Double.parseDouble(getNodeContent(node));
+                        } catch (NumberFormatException e) {
+                            throw new ConfigurationException("Training parameter " + name + " should be numeric", e);
+                        }
+                        break;
+                    case "plateauWindow":
+                        try {
+                            plateauWindow = Integer.parseInt(getNodeContent(node));
+                        } catch (NumberFormatException e) {
+                            throw new ConfigurationException("Training parameter " + name + " should be an integer.", e);
+                        }
+                        break;
+                    case "prefetchSamples":
+                        try {
+                            prefetchSamples = Integer.parseInt(getNodeContent(node));
+                        } catch (NumberFormatException e) {
+                            throw new ConfigurationException("Training parameter " + name + " should be an integer.", e);
+                        }
+                        break;
+                    case "prefetchThreads":
+                        try {
+                            prefetchThreads = Integer.parseInt(getNodeContent(node));
+                        } catch (NumberFormatException e) {
+                            throw new ConfigurationException("Training parameter " + name + " should be an integer.", e);
+                        }
+                        if (prefetchThreads < 1) {
+                            throw new ConfigurationException("Training parameter " + name + " should be at least 1.");
+                        }
+                        break;
+                    case "cacheActivations":
+                        cacheActivations = Boolean.parseBoolean(getNodeContent(node));
+                        break;
+                    case "cacheFile":
+                        cacheFile = getNodeContent(node);
+                        break;
+                    case "selectiveBackprop":
+                        try {
+                            selectiveBackprop = Double.parseDouble(getNodeContent(node));
+                        } catch (NumberFormatException e) {
+                            throw new ConfigurationException("Training parameter " + name + " should be numeric", e);
+                        }
+                        if (selectiveBackprop < 0.0) {
+                            throw new ConfigurationException("Training parameter " + name + " should not be negative.");
+                        }
+                        break;
+                    case "selectiveBackpropFloor":
+                        try {
+                            selectiveBackpropFloor = Double.parseDouble(getNodeContent(node));
+                        } catch (NumberFormatException e) {
+                            throw new ConfigurationException("Training parameter " + name + " should be numeric", e);
+                        }
+                        if (selectiveBackpropFloor <= 0.0 || selectiveBackpropFloor > 1.0) {
+                            throw new ConfigurationException("Training parameter " + name + " should be greater than 0 and at most 1.");
+                        }
+                        break;
+                    case "selectiveBackpropWarmup":
+                        try {
+                            selectiveBackpropWarmup = Integer.parseInt(getNodeContent(node));
+                        } catch (NumberFormatException e) {
+                            throw new ConfigurationException("Training parameter " + name + " should be an integer.", e);
+                        }
+                        break;
+                    case "updateGradientEpsilon":
+                        try {
+                            updateGradientEpsilon = Double.parseDouble(getNodeContent(node));
+                        } catch (NumberFormatException e) {
+                            throw new ConfigurationException("Training parameter " + name + " should be numeric", e);
+                        }
+                        break;
+                    case "updateMomentumEpsilon":
+                        try {
+                            updateMomentumEpsilon = Double.parseDouble(getNodeContent(node));
+                        } catch (NumberFormatException e) {
+                            throw new ConfigurationException("Training parameter " + name + " should be numeric", e);
+                        }
+                        break;
+                    case "offHeapWeights":
+                        offHeapWeights = Boolean.parseBoolean(getNodeContent(node));
+                        break;
+                    case "seed":
+                        try {
+                            seed = Long.parseLong(getNodeContent(node));
+                            hasSeed = true;
+                        } catch (NumberFormatException e) {
+                            throw new ConfigurationException("Training parameter " + name + " should be an integer.", e);
+                        }
+                        break;
+                    case "plateauMinImprovement":
+                        try {
+                            plateauMinImprovement = Double.parseDouble(getNodeContent(node));
+                        } catch (NumberFormatException e) {
+                            throw new ConfigurationException("Training parameter " + name + " should be numeric", e);
+                        }
+                        break;
                 }
             }
         }
@@ -161,6 +400,32 @@ public class TrainingParameters extends XMLConfig
         return alpha;
     }
 
+    public Optimizer getOptimizer()
+    {
+        return optimizer;
+    }
+
+    public void setOptimizer(Optimizer optimizer)
+    {
+        this.optimizer = optimizer;
+    }
+
+    public void setOptimizer(String optimizerName) throws ConfigurationException
+    {
+        String name = optimizerName.trim().toLowerCase();
+        if(name.isEmpty() || name.equals("sgd")){
+            optimizer = Optimizer.SGD;
+        } else if(name.equals("nesterov")){
+            optimizer = Optimizer.NESTEROV;
+        } else if(name.equals("rmsprop")){
+            optimizer = Optimizer.RMSPROP;
+        } else if(name.equals("adam")){
+            optimizer = Optimizer.ADAM;
+        } else {
+            throw new ConfigurationException("No such optimizer: " + optimizerName);
+        }
+    }
+
     public double getLambda()
     {
         return lambda;
@@ -185,4 +450,108 @@ public class TrainingParameters extends XMLConfig
     {
         return shuffleInputSamples;
     }
+
+    public int getPipelineStages()
+    {
+        return pipelineStages;
+    }
+
+    public int getPipelineWindow()
+    {
+        return pipelineWindow;
+    }
+
+    public int getValidateEveryNth()
+    {
+        return validateEveryNth;
+    }
+
+    public int getPatience()
+    {
+        return patience;
+    }
+
+    public int getMaxEpochs()
+    {
+        return maxEpochs;
+    }
+
+    public double getMaxTrainingTime()
+    {
+        return maxTrainingTime;
+    }
+
+    public int getPlateauWindow()
+    {
+        return plateauWindow;
+    }
+
+    public double getPlateauMinImprovement()
+    {
+        return plateauMinImprovement;
+    }
+
+    public int getPrefetchSamples()
+    {
+        return prefetchSamples;
+    }
+
+    public int getPrefetchThreads()
+    {
+        return prefetchThreads;
+    }
+
+    public boolean isCacheActivations()
+    {
+        return cacheActivations;
+    }
+
+    /**
+     * @return the file in which to map the cached activations, or null to
+     * keep them in memory.
+     */
+    public String getCacheFile()
+    {
+        return cacheFile;
+    }
+
+    public double getSelectiveBackprop()
+    {
+        return selectiveBackprop;
+    }
+
+    public double getSelectiveBackpropFloor()
+    {
+        return selectiveBackpropFloor;
+    }
+
+    public int getSelectiveBackpropWarmup()
+    {
+        return selectiveBackpropWarmup;
+    }
+
+    public double getUpdateGradientEpsilon()
+    {
+        return updateGradientEpsilon;
+    }
+
+    public double getUpdateMomentumEpsilon()
+    {
+        return updateMomentumEpsilon;
+    }
+
+    public boolean isOffHeapWeights()
+    {
+        return offHeapWeights;
+    }
+
+    public boolean hasSeed()
+    {
+        return hasSeed;
+    }
+
+    public long getSeed()
+    {
+        return seed;
+    }
 }
@@ -10,6 +10,8 @@ import neural2d.LayerType;
 import neural2d.Net;
 import neural2d.NetElementVisitor;
 import neural2d.Neuron;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -206,42 +208,60 @@ public class WeightsConfig extends XMLConfig
     }
 
     /**
-     * Builds a Document objects that when serialized can be
-     * read by WeightsConfig.
+     * Writes the weights of a net, as it visits them, as a weights element
+     * that WeightsConfig can read. The elements go straight to the writer;
+     * nothing is kept but the names of the elements still open. Call
+     * finish() after the visit.
      */
     public static class SaveWeightConfigVisitor extends NetElementVisitor
     {
-        private final Document document;
-        private Element layerNode;
-        private Element neuronNode;
-        private Element connectionNode;
+        // The nesting of each element, for indentation: weights is inside net.
+        private static final int WEIGHTS = 1, LAYER = 2, NEURON = 3, CONNECTION = 4;
+        private static final char[] INDENT = "\n          ".toCharArray();
+        private final XMLStreamWriter writer;
+        private int depth;       // of the innermost open element
+        private XMLStreamException error;  // thrown by finish(); visits cannot throw
 
-        public SaveWeightConfigVisitor() throws ConfigurationException
+        public SaveWeightConfigVisitor(XMLStreamWriter writer) throws XMLStreamException
         {
-            document = XMLConfig.createDocument("weights");
+            this.writer = writer;
+            open("weights", WEIGHTS);
         }
 
         @Override
         public boolean visit(Connection conn)
         {
-            connectionNode = document.createElement("connectionWeight");
-            Neuron toNeuron = conn.getToNeuron();
-            connectionNode.setAttribute("toLayer", toNeuron.getLayer().getName());
-            connectionNode.setAttribute("toRow", ""+toNeuron.getRow());
-            connectionNode.setAttribute("toColumn", ""+toNeuron.getColumn());
-            Node textNode = document.createTextNode(""+conn.getWeight());
-            connectionNode.appendChild(textNode);
-            neuronNode.appendChild(connectionNode);
+            if(error != null){
+                return false;
+            }
+            try {
+                Neuron toNeuron = conn.getToNeuron();
+                indent(CONNECTION);
+                writer.writeStartElement("connectionWeight");
+                writer.writeAttribute("toLayer", toNeuron.getLayer().getName());
+                writer.writeAttribute("toRow", ""+toNeuron.getRow());
+                writer.writeAttribute("toColumn", ""+toNeuron.getColumn());
+                writer.writeCharacters(""+conn.getWeight());
+                writer.writeEndElement();
+            } catch(XMLStreamException e){
+                error = e;
+            }
             return false;
         }
 
         @Override
         public boolean visit(Neuron neuron)
         {
-            neuronNode = document.createElement("neuronWeights");
-            neuronNode.setAttribute("row", ""+neuron.getRow());
-            neuronNode.setAttribute("column", ""+neuron.getColumn());
-            layerNode.appendChild(neuronNode);
+            if(error != null){
+                return false;
+            }
+            try {
+                open("neuronWeights", NEURON);
+                writer.writeAttribute("row", ""+neuron.getRow());
+                writer.writeAttribute("column", ""+neuron.getColumn());
+            } catch(XMLStreamException e){
+                error = e;
+            }
             return true;
         }
 
@@ -249,12 +269,15 @@ public class WeightsConfig extends XMLConfig
         public boolean visit(Layer layer)
         {
             // Skip the output layer
-            if(layer.getLayerType() == LayerType.OUTPUT){
+            if(layer.getLayerType() == LayerType.OUTPUT || error != null){
                 return false;
             }
-            layerNode = document.createElement("layerWeights");
-            layerNode.setAttribute("name", layer.getName());
-            document.getDocumentElement().appendChild(layerNode);
+            try {
+                open("layerWeights", LAYER);
+                writer.writeAttribute("name", layer.getName());
+            } catch(XMLStreamException e){
+                error = e;
+            }
             return true;
         }
 
@@ -264,10 +287,42 @@ public class WeightsConfig extends XMLConfig
             return true;
         }
 
-        public Document getDocument()
+        /**
+         * Close the elements still open.
+         * @throws XMLStreamException if any element could not be written.
+         */
+        public void finish() throws XMLStreamException
         {
-            return document;
+            if(error != null){
+                throw error;
+            }
+            while(depth > 0){
+                close();
+            }
+        }
+
+        // Starts an element, after closing the elements at its level or
+        // deeper.
+        private void open(String name, int level) throws XMLStreamException
+        {
+            while(depth >= level){
+                close();
+            }
+            indent(level);
+            writer.writeStartElement(name);
+            depth = level;
         }
 
+        private void close() throws XMLStreamException
+        {
+            indent(depth);
+            writer.writeEndElement();
+            --depth;
+        }
+
+        private void indent(int level) throws XMLStreamException
+        {
+            writer.writeCharacters(INDENT, 0, 1 + 2 * level);
+        }
     }
 }
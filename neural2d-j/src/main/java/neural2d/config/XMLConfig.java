@@ -11,7 +11,10 @@ import java.io.OutputStream;
 import java.io.SequenceInputStream;
 import java.util.ArrayList;
 import java.util.List;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import org.apache.xerces.parsers.DOMParser;
+import org.w3c.dom.Attr;
 import org.w3c.dom.DOMConfiguration;
 import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
@@ -79,6 +82,43 @@ public class XMLConfig {
         }
     }
 
+    /**
+     * Write a node of a document, and everything in it, to a stream writer.
+     * Attributes that were not specified, but defaulted by the DTD, are
+     * left out.
+     * @param writer
+     * @param node
+     * @throws XMLStreamException
+     */
+    public static void writeNode(XMLStreamWriter writer, Node node) throws XMLStreamException
+    {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                writer.writeStartElement(node.getNodeName());
+                NamedNodeMap atts = node.getAttributes();
+                for (int i = 0; i < atts.getLength(); i++) {
+                    Attr att = (Attr)atts.item(i);
+                    if (att.getSpecified()) {
+                        writer.writeAttribute(att.getName(), att.getValue());
+                    }
+                }
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    writeNode(writer, child);
+                }
+                writer.writeEndElement();
+                break;
+            case Node.TEXT_NODE:
+                writer.writeCharacters(node.getNodeValue());
+                break;
+            case Node.CDATA_SECTION_NODE:
+                writer.writeCData(node.getNodeValue());
+                break;
+            case Node.COMMENT_NODE:
+                writer.writeComment(node.getNodeValue());
+                break;
+        }
+    }
+
     public static Document createDocument(String rootNode) throws ConfigurationException
     {
         Document doc = new org.apache.xerces.dom.DocumentImpl();
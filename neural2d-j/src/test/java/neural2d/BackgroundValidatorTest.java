@@ -0,0 +1,79 @@
+package neural2d;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Michael C. Whidden
+ */
+public class BackgroundValidatorTest
+{
+    private static final int PATIENCE = 3;
+
+    private static Matrix fill(double value)
+    {
+        Matrix m = new Matrix(2, 2);
+        for(int row = 0; row < 2; row++){
+            for(int col = 0; col < 2; col++){
+                m.set(row, col, value);
+            }
+        }
+        return m;
+    }
+
+    private static int count(String text, String s)
+    {
+        int n = 0;
+        for(int i = text.indexOf(s); i >= 0; i = text.indexOf(s, i + 1)){
+            n++;
+        }
+        return n;
+    }
+
+    // The net trains its outputs towards 1 on the same inputs for which the
+    // validation samples want -1, so every validation after the first is
+    // worse than the one before. Training stops once PATIENCE validations
+    // in a row fail to improve, and the weights of the first validation,
+    // taken after one training sample, are restored.
+    @Test(timeout = 60000)
+    public void testStopsAndRestoresBest() throws Exception
+    {
+        String nom = TestNets.createNOM("<errorThreshold>0</errorThreshold><maxEpochs>100</maxEpochs>"
+                + "<validateEveryNth>1</validateEveryNth><patience>" + PATIENCE + "</patience>");
+        Matrix inputs = TestNets.createSamples(1, false).get(0).getData();
+        Sample training = Sample.createSample(inputs, fill(1.0));
+        Sample validation = Sample.createSample(inputs, fill(-1.0));
+
+        Net reference = TestNets.createNet(nom);
+        reference.feedForward(training);
+        reference.backProp(training);
+        List<Double> best = TestNets.getWeights(reference);
+
+        Net net = TestNets.createNet(nom);
+        for(int i = 0; i < 20; i++){
+            net.sampleSet.getSamples().add(training);
+        }
+        net.validationSet.getSamples().add(validation);
+        PrintStream out = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true));
+        try {
+            net.train();
+        } finally {
+            System.setOut(out);
+        }
+        String log = captured.toString();
+
+        assertTrue(net.getStopReason(), net.getStopReason().contains("validation error did not improve"));
+        // The first validation, PATIENCE that failed to improve on it, and
+        // the final weights when training ended.
+        assertEquals(PATIENCE + 2, count(log, "Validation #"));
+        assertTrue(log.contains("Restoring the weights with the lowest validation error."));
+        assertEquals(best, TestNets.getWeights(net));
+    }
+}
@@ -0,0 +1,80 @@
+package neural2d;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import neural2d.config.ConfigurationException;
+import neural2d.config.NetConfig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Michael C. Whidden
+ */
+public class BinaryWeightsTest
+{
+    private NetConfig config;
+    private Net net;
+    private File xml, binary;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        config = TestNets.parse(TestNets.createNOM(""));
+        net = new Net(config);
+        TestNets.train(net, TestNets.createSamples(20, true));
+        xml = File.createTempFile("trained", ".nom");
+        binary = File.createTempFile("trained", ".bnom");
+    }
+
+    @After
+    public void tearDown()
+    {
+        net.close();
+        xml.delete();
+        binary.delete();
+    }
+
+    // A net loaded from either format has the weights it was saved with.
+    @Test
+    public void testBothFormatsLoadTheSameWeights() throws Exception
+    {
+        config.writeTrainedNOM(net, xml);
+        config.writeTrainedNOM(net, binary);
+        assertTrue(binary.length() < xml.length());
+
+        List<Double> expected = TestNets.getWeights(net);
+        Net fromXml = new Net(NetConfig.parseConfig(xml));
+        NetConfig binaryConfig = NetConfig.parseConfig(binary);
+        assertTrue(binaryConfig.isTrained());
+        Net fromBinary = new Net(binaryConfig);
+        assertEquals(expected, TestNets.getWeights(fromXml));
+        assertEquals(expected, TestNets.getWeights(fromBinary));
+        fromXml.close();
+        fromBinary.close();
+    }
+
+    @Test
+    public void testCorruptFileIsRejected() throws Exception
+    {
+        config.writeTrainedNOM(net, binary);
+        try(RandomAccessFile raf = new RandomAccessFile(binary, "rw")){
+            long position = raf.length() - 20;
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 1);
+        }
+        try {
+            NetConfig.parseConfig(binary);
+            fail("Read a corrupt file.");
+        } catch(ConfigurationException e){
+            assertTrue(e.getMessage().contains("checksum"));
+        }
+    }
+}
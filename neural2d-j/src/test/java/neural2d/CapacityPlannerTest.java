@@ -0,0 +1,81 @@
+package neural2d;
+
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Michael C. Whidden
+ */
+public class CapacityPlannerTest
+{
+    private static final String NOM = "<net>"
+            + "<topology>"
+            + "<input><name>input</name><size>12x9</size></input>"
+            + "<layers>"
+            + "<layer><name>round</name><size>7x7</size><radius>2x3</radius><from>input</from></layer>"
+            + "<layer><name>square</name><size>5x5</size><radius rectangular=\"true\">1x1</radius><from>input</from></layer>"
+            + "<layer><name>both</name><size>6x6</size><radius>2x2</radius><from>round</from><from>square</from></layer>"
+            + "</layers>"
+            + "<output><name>output</name><size>3x3</size><from>both</from></output>"
+            + "</topology>"
+            + "</net>";
+
+    // The planned counts are those of the net once it is built.
+    @Test
+    public void testCountsMatchNet() throws Exception
+    {
+        CapacityPlanner planner = new CapacityPlanner(TestNets.parse(NOM));
+        Net net = new Net(TestNets.parse(NOM));
+        try {
+            List<CapacityPlanner.LayerPlan> plans = planner.getLayers();
+            long connections = 0;
+            for(CapacityPlanner.LayerPlan plan: plans){
+                Layer layer = TestNets.getLayer(net, plan.getName());
+                assertEquals(layer.size(), plan.getNumNeurons());
+                assertEquals(layer.getNumBackConnections(), plan.getNumConnections());
+                boolean dense = !layer.getStencils().isEmpty();
+                for(Stencil stencil: layer.getStencils()){
+                    dense &= stencil.isDense();
+                }
+                assertEquals(dense, plan.isDense());
+                connections += plan.getNumConnections();
+            }
+            assertEquals(connections, planner.getNumConnections());
+            assertTrue(plans.get(plans.size() - 1).isDense());
+            assertTrue(planner.getForwardFlops() >= 2 * connections);
+            assertTrue(planner.getBackwardFlops() > 0);
+        } finally {
+            net.close();
+        }
+    }
+
+    // Frozen layers are not updated, and backprop stops below the trainable
+    // layers.
+    @Test
+    public void testFrozenLayersHaveNoBackwardPass() throws Exception
+    {
+        String nom = NOM.replace("<layer><name>round</name>", "<layer frozen=\"true\"><name>round</name>")
+                .replace("<layer><name>square</name>", "<layer frozen=\"true\"><name>square</name>");
+        CapacityPlanner planner = new CapacityPlanner(TestNets.parse(nom));
+        for(CapacityPlanner.LayerPlan plan: planner.getLayers()){
+            String name = plan.getName();
+            assertEquals(name, name.equals("both") || name.equals("output"), plan.getBackwardFlops() > 0);
+        }
+    }
+
+    // Off-heap weights move the weights, but not the optimizer state, off
+    // the heap.
+    @Test
+    public void testOffHeapWeights() throws Exception
+    {
+        CapacityPlanner onHeap = new CapacityPlanner(TestNets.parse(NOM));
+        CapacityPlanner offHeap = new CapacityPlanner(TestNets.parse(NOM.replace("</net>",
+                "<trainingParams><offHeapWeights>true</offHeapWeights></trainingParams></net>")));
+        assertEquals(0, onHeap.getOffHeapBytes());
+        assertEquals(16 * onHeap.getNumConnections(), offHeap.getOffHeapBytes());
+        assertEquals(onHeap.getHeapBytes(), offHeap.getHeapBytes() + offHeap.getOffHeapBytes());
+    }
+}
@@ -0,0 +1,155 @@
+package neural2d;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Michael C. Whidden
+ */
+public class FreezeTest
+{
+    private static String createNOM(boolean frozen)
+    {
+        return createNOM(frozen, "");
+    }
+
+    private static String createNOM(boolean frozen, String trainingParams)
+    {
+        String attr = frozen ? " frozen=\"true\"" : "";
+        return "<net>"
+            + "<topology>"
+            + "<input><name>input</name><size>6x6</size></input>"
+            + "<layers>"
+            + "<layer" + attr + "><name>lower</name><size>5x5</size><radius>1x1</radius><from>input</from></layer>"
+            + "<layer" + attr + "><name>middle</name><size>4x4</size><radius>1x1</radius><from>lower</from></layer>"
+            + "<layer><name>upper</name><size>3x3</size><radius>1x1</radius><from>middle</from></layer>"
+            + "</layers>"
+            + "<output><name>output</name><size>2x2</size><from>upper</from></output>"
+            + "</topology>"
+            + "<trainingParams><seed>1</seed><alpha>0.5</alpha>" + trainingParams + "</trainingParams>"
+            + "</net>";
+    }
+
+    private static final String[] LAYERS = { "lower", "middle", "upper", "output" };
+
+    // The weights of the connections into a layer.
+    private static List<Double> getWeights(Layer layer)
+    {
+        final List<Double> weights = new ArrayList<>();
+        for(Neuron neuron: layer.getNeurons()){
+            neuron.acceptBackward(new NetElementVisitor()
+            {
+                @Override
+                public boolean visit(Connection conn)
+                {
+                    weights.add(conn.getWeight());
+                    return false;
+                }
+            });
+        }
+        return weights;
+    }
+
+    private static void setWeights(Layer layer, final List<Double> weights)
+    {
+        final int[] next = new int[1];
+        for(Neuron neuron: layer.getNeurons()){
+            neuron.acceptBackward(new NetElementVisitor()
+            {
+                @Override
+                public boolean visit(Connection conn)
+                {
+                    conn.setWeight(weights.get(next[0]++));
+                    return false;
+                }
+            });
+        }
+    }
+
+    // Frozen layers keep their weights, and the layers after them train
+    // exactly as they would with the gradients of every layer calculated.
+    @Test
+    public void testFrozenLayersKeepTheirWeights() throws Exception
+    {
+        Net frozen = TestNets.createNet(createNOM(true));
+        Net reference = TestNets.createNet(createNOM(false));
+        List<List<Double>> before = new ArrayList<>();
+        for(String name: LAYERS){
+            before.add(getWeights(TestNets.getLayer(frozen, name)));
+            assertEquals(before.get(before.size() - 1), getWeights(TestNets.getLayer(reference, name)));
+        }
+
+        // The reference net trains all its layers, so put back the weights
+        // of the layers frozen in the other net after each sample.
+        for(Sample sample: TestNets.createSamples(20, true)){
+            frozen.feedForward(sample);
+            frozen.backProp(sample);
+            reference.feedForward(sample);
+            reference.backProp(sample);
+            setWeights(TestNets.getLayer(reference, "lower"), before.get(0));
+            setWeights(TestNets.getLayer(reference, "middle"), before.get(1));
+        }
+
+        for(int i = 0; i < LAYERS.length; i++){
+            List<Double> after = getWeights(TestNets.getLayer(frozen, LAYERS[i]));
+            assertEquals(getWeights(TestNets.getLayer(reference, LAYERS[i])), after);
+            assertEquals(LAYERS[i], i < 2, before.get(i).equals(after));
+        }
+    }
+
+    // Backprop stops at the earliest layer that is not frozen.
+    @Test
+    public void testGradientsStopAtTrainableLayers() throws Exception
+    {
+        Net net = TestNets.createNet(createNOM(true));
+        assertTrue(TestNets.getLayer(net, "lower").isFrozen());
+        assertFalse(TestNets.getLayer(net, "lower").needsGradient());
+        assertFalse(TestNets.getLayer(net, "middle").needsGradient());
+        assertTrue(TestNets.getLayer(net, "upper").needsGradient());
+        assertTrue(TestNets.getLayer(net, "output").needsGradient());
+    }
+
+    private static Net trainEpochs(String trainingParams) throws Exception
+    {
+        Net net = TestNets.createNet(createNOM(true,
+                "<shuffleSamples>false</shuffleSamples><maxEpochs>4</maxEpochs>"
+                + "<dynamicEta>false</dynamicEta><errorThreshold>0</errorThreshold>"
+                + trainingParams));
+        net.sampleSet.getSamples().addAll(TestNets.createSamples(20, true));
+        net.train();
+        return net;
+    }
+
+    // Training from the cached outputs of the frozen layers gives the same
+    // weights as feeding every layer forward, to within the rounding of the
+    // cached outputs to floats, whether they are cached in memory or in a file.
+    @Test
+    public void testCachedActivationsTrainTheSame() throws Exception
+    {
+        Net reference = trainEpochs("");
+        File cacheFile = File.createTempFile("neural2d", ".cache");
+        cacheFile.deleteOnExit();
+        Net[] cached = {
+            trainEpochs("<cacheActivations>true</cacheActivations>"),
+            trainEpochs("<cacheActivations>true</cacheActivations><cacheFile>"
+                    + cacheFile.getPath() + "</cacheFile>")
+        };
+        assertEquals(0, cacheFile.length());
+        for(Net net: cached){
+            for(String name: LAYERS){
+                List<Double> expected = getWeights(TestNets.getLayer(reference, name));
+                List<Double> actual = getWeights(TestNets.getLayer(net, name));
+                assertEquals(expected.size(), actual.size());
+                for(int i = 0; i < expected.size(); i++){
+                    assertEquals(expected.get(i), actual.get(i), 1e-5);
+                }
+            }
+        }
+    }
+}
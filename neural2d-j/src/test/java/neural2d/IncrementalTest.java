@@ -0,0 +1,119 @@
+package neural2d;
+
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author Michael C. Whidden
+ */
+public class IncrementalTest
+{
+    // The same layers as TestNets, but with a hidden radius that covers the
+    // whole input, so that every input feeds the hidden layer.
+    private static final String NOM = TestNets.createNOM("").replace(
+            "<radius>1x1</radius>", "<radius>5x5</radius>");
+
+    // The same net, but with a softmax output.
+    private static final String SOFTMAX_NOM = NOM.replace(
+            "<output><name>output</name><size>2x2</size>",
+            "<output classifier=\"true\"><name>output</name><size>2x2</size><tf>softmax</tf>");
+
+    private Net incremental, full;
+    private final Matrix inputs = new Matrix(6, 6);
+    private final Random rand = new Random(2);
+
+    private void createNets(String nom) throws Exception
+    {
+        incremental = TestNets.createNet(nom);
+        incremental.setIncremental(true);
+        full = TestNets.createNet(nom);
+        for(int row = 0; row < 6; row++){
+            for(int col = 0; col < 6; col++){
+                inputs.set(row, col, rand.nextDouble());
+            }
+        }
+    }
+
+    private void change(int numInputs)
+    {
+        for(int i = 0; i < numInputs; i++){
+            inputs.set(rand.nextInt(6), rand.nextInt(6), rand.nextDouble());
+        }
+    }
+
+    // Feed the inputs forward in both nets and compare every output. A full
+    // pass in the incremental net gives exactly the same outputs; an
+    // incremental pass gives them to within rounding. The incremental net
+    // counts its passes since the last full one.
+    private void feedForward(boolean fullPass) throws Exception
+    {
+        Sample sample = Sample.createSample(inputs, null);
+        incremental.feedForward(sample);
+        full.feedForward(sample);
+        assertEquals(fullPass, incremental.incrementalPasses == 0);
+        Matrix expected = TestNets.getOutputs(full);
+        Matrix actual = TestNets.getOutputs(incremental);
+        for(int row = 0; row < expected.getNumRows(); row++){
+            for(int col = 0; col < expected.getNumColumns(); col++){
+                assertEquals(expected.get(row, col), actual.get(row, col), fullPass ? 0.0 : 1e-12);
+            }
+        }
+    }
+
+    private void checkIncrementalMatchesFull(String nom) throws Exception
+    {
+        createNets(nom);
+        feedForward(true);
+
+        // A few inputs at a time are propagated incrementally, and an
+        // unchanged sample changes nothing.
+        for(int i = 0; i < 50; i++){
+            change(1 + i % 3);
+            feedForward(false);
+        }
+        feedForward(false);
+
+        // Too many inputs changed for an incremental pass.
+        change(36);
+        feedForward(true);
+
+        // A backprop changes the weights, so the next pass is full.
+        change(1);
+        Matrix target = new Matrix(2, 2);
+        target.set(1, 0, 1.0);
+        Sample sample = Sample.createSample(inputs, target);
+        incremental.feedForward(sample);
+        full.feedForward(sample);
+        incremental.backProp(sample);
+        full.backProp(sample);
+        change(1);
+        feedForward(true);
+
+        // The cached sums are resynced by a full pass every 1000 passes,
+        // counting from the last full pass.
+        for(int i = 1; i < 1000; i++){
+            change(1);
+            feedForward(false);
+        }
+        change(1);
+        feedForward(true);
+        change(1);
+        feedForward(false);
+    }
+
+    // A hidden layer and an output layer, both connected by stencils.
+    @Test
+    public void testStencilNet() throws Exception
+    {
+        checkIncrementalMatchesFull(NOM);
+    }
+
+    // The softmax output is normalized again over the whole layer.
+    @Test
+    public void testSoftmaxOutput() throws Exception
+    {
+        checkIncrementalMatchesFull(SOFTMAX_NOM);
+    }
+}
@@ -0,0 +1,180 @@
+package neural2d;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Michael C. Whidden
+ */
+public class ModelRegistryTest
+{
+    // A pool whose requests each take a while, so that they overlap, and
+    // which records how many were being scored at once. A request stops
+    // counting when it hands its slot to the next one, by submitting it
+    // from its own thread, or else when it ends.
+    private static class SlowPool extends ThreadPoolExecutor
+    {
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        private final ThreadLocal<Boolean> counted = new ThreadLocal<>();
+
+        SlowPool(int numThreads)
+        {
+            super(numThreads, numThreads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        }
+
+        private void uncount()
+        {
+            if(Boolean.TRUE.equals(counted.get())){
+                counted.set(false);
+                active.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void execute(Runnable r)
+        {
+            uncount();
+            super.execute(r);
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r)
+        {
+            counted.set(true);
+            int n = active.incrementAndGet();
+            int max = maxActive.get();
+            while(n > max && !maxActive.compareAndSet(max, n)){
+                max = maxActive.get();
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t)
+        {
+            uncount();
+        }
+    }
+
+    private NetSnapshot snapshot;
+    private List<Sample> samples;
+    private SlowPool pool;
+    private ModelRegistry registry;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Net net = TestNets.createNet(TestNets.createNOM(""));
+        snapshot = net.snapshot();
+        net.close();
+        samples = TestNets.createSamples(12, false);
+    }
+
+    @After
+    public void tearDown()
+    {
+        if(registry != null){
+            registry.shutdown();
+        }
+    }
+
+    private static void assertMatrixEquals(Matrix expected, Matrix actual)
+    {
+        for(int row = 0; row < expected.getNumRows(); row++){
+            for(int col = 0; col < expected.getNumColumns(); col++){
+                assertEquals(expected.get(row, col), actual.get(row, col), 0.0);
+            }
+        }
+    }
+
+    // No more than a model's limit of requests are scored at once, however
+    // many threads are free, and the rest wait their turn.
+    @Test(timeout = 30000)
+    public void testPerModelLimit() throws Exception
+    {
+        pool = new SlowPool(4);
+        registry = new ModelRegistry(pool);
+        registry.register("a", snapshot, 2);
+        List<Future<Matrix>> results = new ArrayList<>();
+        for(Sample sample: samples){
+            results.add(registry.submit("a", sample));
+        }
+        for(int i = 0; i < samples.size(); i++){
+            assertMatrixEquals(snapshot.score(samples.get(i)), results.get(i).get());
+        }
+        assertEquals(2, pool.maxActive.get());
+        assertTrue(registry.report().contains("Model a: 12 scored, 0 failed"));
+    }
+
+    // Models that score the same sample share its conversion to inputs.
+    @Test(timeout = 30000)
+    public void testSharedDecoding() throws Exception
+    {
+        registry = new ModelRegistry(4);
+        registry.register("a", snapshot, 1);
+        registry.register("b", snapshot, 1);
+        byte[] pixels = new byte[6 * 6 * 3];
+        for(int i = 0; i < pixels.length; i++){
+            pixels[i] = (byte)(i % 100);
+        }
+        Sample sample = Sample.createSample(new Sample.ImageData(pixels, 6, 6), null);
+        Map<String, Future<Matrix>> results = registry.submitAll(sample);
+        Matrix expected = snapshot.score(sample.decode(snapshot.getInputChannel()));
+        assertEquals(2, results.size());
+        for(Future<Matrix> result: results.values()){
+            assertMatrixEquals(expected, result.get());
+        }
+        assertTrue(registry.report().contains("Inputs converted 1 times, shared 1 times"));
+    }
+
+    // Shutting down lets the request being scored finish and cancels the
+    // ones waiting their turn, rather than leaving them to wait forever.
+    @Test(timeout = 30000)
+    public void testShutdownCancelsWaiting() throws Exception
+    {
+        pool = new SlowPool(1);
+        registry = new ModelRegistry(pool);
+        registry.register("a", snapshot, 1);
+        List<Future<Matrix>> results = new ArrayList<>();
+        for(int i = 0; i < 4; i++){
+            results.add(registry.submit("a", samples.get(i)));
+        }
+        registry.shutdown();
+        assertMatrixEquals(snapshot.score(samples.get(0)), results.get(0).get());
+        for(int i = 1; i < 4; i++){
+            try {
+                results.get(i).get();
+                fail("Request " + i + " was scored after shutdown.");
+            } catch (CancellationException e){
+                // Expected
+            }
+        }
+        try {
+            registry.submit("a", samples.get(0));
+            fail("Accepted a request after shutdown.");
+        } catch (RejectedExecutionException e){
+            // Expected
+        }
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    }
+}
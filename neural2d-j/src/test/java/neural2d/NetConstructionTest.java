@@ -0,0 +1,78 @@
+package neural2d;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.List;
+import neural2d.config.NetConfig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Michael C. Whidden
+ */
+public class NetConstructionTest
+{
+    // Layers large enough that their connections are made by several tasks.
+    private static final String LARGE_NOM = "<net><topology>"
+            + "<input><name>input</name><size>32x32</size></input>"
+            + "<layers><layer><name>hidden</name><size>32x32</size><radius>2x2</radius><from>input</from></layer></layers>"
+            + "<output><name>output</name><size>4x4</size><from>hidden</from></output>"
+            + "</topology><trainingParams><seed>7</seed></trainingParams></net>";
+
+    private static List<Double> getWeights(String nom, int parallelism) throws Exception
+    {
+        Net net = new Net(TestNets.parse(nom), parallelism);
+        try {
+            return TestNets.getWeights(net);
+        } finally {
+            net.close();
+        }
+    }
+
+    // The seed alone decides the initial weights, whatever the number of
+    // threads that made the connections.
+    @Test
+    public void testWeightsIndependentOfParallelism() throws Exception
+    {
+        List<Double> expected = getWeights(LARGE_NOM, 1);
+        assertEquals(getWeights(LARGE_NOM, 2), expected);
+        assertEquals(getWeights(LARGE_NOM, 7), expected);
+    }
+
+    private static String construct(NetConfig config) throws Exception
+    {
+        PrintStream out = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true));
+        try {
+            new Net(config).close();
+        } finally {
+            System.setOut(out);
+        }
+        return captured.toString();
+    }
+
+    // The seed is reported only when it was not given and the weights are
+    // not loaded from the NOM.
+    @Test
+    public void testSeedReportedForRandomWeightsOnly() throws Exception
+    {
+        NetConfig config = TestNets.parse(TestNets.NOM);
+        assertTrue(construct(config).contains("Initial weight seed: "));
+        assertFalse(construct(TestNets.parse(TestNets.createNOM(""))).contains("Initial weight seed: "));
+
+        File file = File.createTempFile("trained", ".xml");
+        try {
+            Net net = new Net(config);
+            config.writeTrainedNOM(net, file);
+            net.close();
+            assertFalse(construct(NetConfig.parseConfig(file)).contains("Initial weight seed: "));
+        } finally {
+            file.delete();
+        }
+    }
+}
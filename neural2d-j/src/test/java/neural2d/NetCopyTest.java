@@ -0,0 +1,124 @@
+package neural2d;
+
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Michael C. Whidden
+ */
+public class NetCopyTest
+{
+    private Net net;
+    private List<Sample> samples;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        net = TestNets.createNet(TestNets.createNOM(""));
+        samples = TestNets.createSamples(20, true);
+    }
+
+    private void train(Net n) throws Exception
+    {
+        TestNets.train(n, samples);
+    }
+
+    private static double[] getWeights(Net n)
+    {
+        List<Double> weights = TestNets.getWeights(n);
+        double[] w = new double[weights.size()];
+        for(int i = 0; i < w.length; i++){
+            w[i] = weights.get(i);
+        }
+        return w;
+    }
+
+    // Training a copy changes neither the original nor another copy, and a
+    // copy trains exactly as the original would have.
+    @Test
+    public void testCopiesTrainIndependently() throws Exception
+    {
+        train(net);
+        Net first = net.copy();
+        Net second = net.copy();
+        double[] before = getWeights(net);
+
+        train(first);
+        assertArrayEquals(before, getWeights(second));
+        assertArrayEquals(before, getWeights(net));
+
+        train(net);
+        double[] original = getWeights(net);
+        double[] copied = getWeights(first);
+        assertTrue(before[0] != original[0]);
+        assertArrayEquals(original, copied);
+        assertArrayEquals(before, getWeights(second));
+    }
+
+    private static void assertArrayEquals(double[] expected, double[] actual)
+    {
+        assertEquals(expected.length, actual.length);
+        for(int i = 0; i < expected.length; i++){
+            assertEquals(expected[i], actual[i], 0.0);
+        }
+    }
+
+    // A copy scores samples the same as the original.
+    @Test
+    public void testCopyFeedsForwardTheSame() throws Exception
+    {
+        train(net);
+        Net copy = net.copy();
+        NetSnapshot original = net.snapshot();
+        NetSnapshot copied = copy.snapshot();
+        for(Sample sample: samples){
+            Matrix a = original.score(sample);
+            Matrix b = copied.score(sample);
+            for(int row = 0; row < 2; row++){
+                for(int col = 0; col < 2; col++){
+                    assertEquals(a.get(row, col), b.get(row, col), 0.0);
+                }
+            }
+        }
+    }
+
+    // A copy trained with another optimizer that keeps as much state per
+    // weight does not take the old optimizer's state for its own: RMSProp
+    // would take the square root of a negative Nesterov velocity.
+    @Test
+    public void testCopyWithAnotherOptimizer() throws Exception
+    {
+        Net nesterov = TestNets.createNet(TestNets.createNOM("<optimizer>nesterov</optimizer>"));
+        for(int epoch = 0; epoch < 5; epoch++){
+            train(nesterov);
+        }
+        Net copy = nesterov.copy(TestNets.parse(TestNets.createNOM("<optimizer>rmsprop</optimizer>"))
+                .getTrainingParameters());
+        train(copy);
+        assertTrue(copy.hasFiniteWeights());
+    }
+
+    // Off-heap weights train the same as weights on the heap, and closing a
+    // net leaves the weights its copy still shares alone.
+    @Test
+    public void testOffHeapWeights() throws Exception
+    {
+        Net offHeap = TestNets.createNet(TestNets.createNOM("<offHeapWeights>true</offHeapWeights>"));
+        assertArrayEquals(getWeights(net), getWeights(offHeap));
+        train(net);
+        train(offHeap);
+        assertArrayEquals(getWeights(net), getWeights(offHeap));
+
+        Net copy = offHeap.copy();
+        offHeap.close();
+        offHeap.close();
+        train(net);
+        train(copy);
+        assertArrayEquals(getWeights(net), getWeights(copy));
+        copy.close();
+    }
+}
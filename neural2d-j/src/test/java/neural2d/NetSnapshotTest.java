@@ -0,0 +1,121 @@
+package neural2d;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Michael C. Whidden
+ */
+public class NetSnapshotTest
+{
+    private Net net;
+    private List<Sample> samples;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        net = TestNets.createNet(TestNets.NOM);
+        samples = TestNets.createSamples(50, false);
+    }
+
+    private Matrix feedForward(Sample sample) throws Exception
+    {
+        net.feedForward(sample);
+        return TestNets.getOutputs(net);
+    }
+
+    private static void assertMatrixEquals(Matrix expected, Matrix actual)
+    {
+        for(int row = 0; row < expected.getNumRows(); row++){
+            for(int col = 0; col < expected.getNumColumns(); col++){
+                assertEquals(expected.get(row, col), actual.get(row, col), 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshotMatchesNet() throws Exception
+    {
+        NetSnapshot snapshot = net.snapshot();
+        for(Sample sample: samples){
+            assertMatrixEquals(feedForward(sample), snapshot.score(sample));
+        }
+    }
+
+    @Test
+    public void testConcurrentScoring() throws Exception
+    {
+        final NetSnapshot snapshot = net.snapshot();
+        List<Matrix> expected = new ArrayList<>();
+        for(Sample sample: samples){
+            expected.add(feedForward(sample));
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Matrix>> results = new ArrayList<>();
+            for(int repeat = 0; repeat < 20; repeat++){
+                for(final Sample sample: samples){
+                    results.add(exec.submit(new Callable<Matrix>()
+                    {
+                        @Override
+                        public Matrix call()
+                        {
+                            return snapshot.score(sample);
+                        }
+                    }));
+                }
+            }
+            for(int i = 0; i < results.size(); i++){
+                assertMatrixEquals(expected.get(i % samples.size()), results.get(i).get());
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    // A snapshot saved and mapped back scores the same as the net.
+    @Test
+    public void testMappedSnapshotMatchesNet() throws Exception
+    {
+        File file = File.createTempFile("snapshot", ".snap");
+        try {
+            net.snapshot().save(file);
+            NetSnapshot mapped = NetSnapshot.map(file);
+            for(Sample sample: samples){
+                assertMatrixEquals(feedForward(sample), mapped.score(sample));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMapRejectsOtherFiles() throws Exception
+    {
+        File file = File.createTempFile("snapshot", ".snap");
+        try {
+            try(FileOutputStream out = new FileOutputStream(file)){
+                out.write(TestNets.NOM.getBytes());
+            }
+            NetSnapshot.map(file);
+            fail("Mapped a file that is not a snapshot.");
+        } catch(IOException e){
+            // Expected
+        } finally {
+            file.delete();
+        }
+    }
+}
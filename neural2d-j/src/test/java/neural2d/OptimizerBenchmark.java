@@ -0,0 +1,127 @@
+package neural2d;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import neural2d.config.NetConfig;
+
+/**
+ * <p>
+ * Compares the optimizers by the number of epochs and the time taken to
+ * train a small net to the error threshold on 3-bit parity. Weights start
+ * random, so each optimizer is trained several times and the medians are
+ * reported. Run with:
+ * <pre>
+ *   java -cp ... neural2d.OptimizerBenchmark [trials] [maxEpochs]
+ * </pre>
+ * <p>
+ * Copyright (c) 2015 Michael C. Whidden
+ * @author Michael C. Whidden
+ */
+public class OptimizerBenchmark
+{
+    private static final String NOM = "<net>"
+            + "<topology>"
+            + "<input><name>input</name><size>2x2</size></input>"
+            + "<layers><layer><name>hidden</name><size>3x3</size><from>input</from></layer></layers>"
+            + "<output><name>output</name><size>1x1</size><from>hidden</from></output>"
+            + "</topology>"
+            + "<trainingParams>"
+            + "<optimizer>%s</optimizer><eta>%s</eta><alpha>%s</alpha><dynamicEta>false</dynamicEta>"
+            + "<errorThreshold>%s</errorThreshold><averageErrorSmoothing>16</averageErrorSmoothing>"
+            + "<repeatSamples>false</repeatSamples><reportEveryNth>1000000000</reportEveryNth>"
+            + "</trainingParams>"
+            + "</net>";
+
+    private static final double THRESHOLD = 0.01;
+
+    // optimizer, eta, alpha
+    private static final String[][] CONFIGS = {
+        {"sgd", "0.01", "0.0"},
+        {"sgd", "0.002", "0.9"},
+        {"nesterov", "0.002", "0.9"},
+        {"rmsprop", "0.005", "0.0"},
+        {"adam", "0.01", "0.0"},
+    };
+
+    private static Sample[] paritySamples()
+    {
+        Sample[] samples = new Sample[8];
+        for(int i = 0; i < 8; i++){
+            Matrix in = new Matrix(2, 2);
+            in.set(0, 0, i & 1);
+            in.set(0, 1, (i >> 1) & 1);
+            in.set(1, 0, (i >> 2) & 1);
+            Matrix target = new Matrix(1, 1);
+            target.set(0, 0, Integer.bitCount(i) % 2 == 1 ? 0.9 : -0.9);
+            samples[i] = Sample.createSample(in, target);
+        }
+        return samples;
+    }
+
+    // Returns the number of epochs to converge, or -1 if it did not.
+    private static int train(String[] config, int maxEpochs) throws Exception
+    {
+        String nom = String.format(NOM, config[0], config[1], config[2], THRESHOLD);
+        Net net = new Net(NetConfig.parseConfig(new ByteArrayInputStream(nom.getBytes())));
+        net.sampleSet.getSamples().addAll(Arrays.asList(paritySamples()));
+        try {
+            for(int epoch = 1; epoch <= maxEpochs; epoch++){
+                net.train();
+                if(net.getRecentAverageError() < THRESHOLD){
+                    return epoch;
+                }
+            }
+            return -1;
+        } finally {
+            net.shutdown();
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int trials = args.length > 0 ? Integer.parseInt(args[0]) : 11;
+        int maxEpochs = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        // The net is chatty while it is built; keep the results readable.
+        PrintStream out = System.out;
+        PrintStream quiet = new PrintStream(new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+            }
+        });
+
+        out.println(String.format("%-10s %6s %5s %9s %14s %14s",
+                "optimizer", "eta", "alpha", "converged", "median epochs", "median ms"));
+        for(String[] config: CONFIGS){
+            int[] epochs = new int[trials];
+            long[] times = new long[trials];
+            int converged = 0;
+            for(int t = 0; t < trials; t++){
+                System.setOut(quiet);
+                long start = System.nanoTime();
+                try {
+                    epochs[t] = train(config, maxEpochs);
+                } finally {
+                    System.setOut(out);
+                }
+                times[t] = (System.nanoTime() - start) / 1000000;
+                if(epochs[t] < 0){
+                    epochs[t] = Integer.MAX_VALUE; // sorts after all that converged
+                } else {
+                    ++converged;
+                }
+            }
+            Arrays.sort(epochs);
+            Arrays.sort(times);
+            int median = epochs[trials / 2];
+            out.println(String.format("%-10s %6s %5s %5d/%-3d %14s %14d",
+                    config[0], config[1], config[2], converged, trials,
+                    median == Integer.MAX_VALUE ? ">" + maxEpochs : Integer.toString(median),
+                    times[trials / 2]));
+        }
+    }
+}
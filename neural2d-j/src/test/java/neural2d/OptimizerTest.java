@@ -0,0 +1,74 @@
+package neural2d;
+
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author Michael C. Whidden
+ */
+public class OptimizerTest
+{
+    @Test
+    public void testSGD()
+    {
+        assertEquals(0.1 * 0.5 + 0.9 * 0.2,
+                Optimizer.SGD.deltaWeight(0.5, 0.2, new double[0], 0, 0.1, 0.9, 1), 1e-15);
+    }
+
+    @Test
+    public void testNesterovWithoutMomentumIsSGD()
+    {
+        double[] state = new double[1];
+        for(int step = 1; step <= 3; step++){
+            assertEquals(Optimizer.SGD.deltaWeight(0.5, 0.0, null, 0, 0.1, 0.0, step),
+                    Optimizer.NESTEROV.deltaWeight(0.5, 0.0, state, 0, 0.1, 0.0, step), 1e-15);
+        }
+    }
+
+    @Test
+    public void testAdamFirstStep()
+    {
+        // After bias correction, the first step is eta in the direction of g,
+        // whatever the magnitude of g.
+        for(double g: new double[]{1e-4, 0.3, -20.0}){
+            double[] state = new double[4];
+            assertEquals(Math.signum(g) * 0.01,
+                    Optimizer.ADAM.deltaWeight(g, 0.0, state, 2, 0.01, 0.0, 1), 1e-6);
+            assertEquals(0.0, state[0], 0.0);
+            assertEquals(0.0, state[1], 0.0);
+        }
+    }
+
+    @Test
+    public void testRMSPropScalesByRecentMagnitude()
+    {
+        double[] state = new double[1];
+        double small = Optimizer.RMSPROP.deltaWeight(1e-3, 0.0, state, 0, 0.01, 0.0, 1);
+        state = new double[1];
+        double large = Optimizer.RMSPROP.deltaWeight(1e3, 0.0, state, 0, 0.01, 0.0, 1);
+        assertEquals(small, large, 1e-6);
+    }
+
+    // Restoring a snapshot of the weights clears the optimizer state, and
+    // Adam's bias correction starts again with it: the next update is the
+    // same as a fresh net's first.
+    @Test
+    public void testAdamRestartsAfterRestore() throws Exception
+    {
+        String nom = TestNets.createNOM("<optimizer>adam</optimizer>");
+        List<Sample> samples = TestNets.createSamples(20, true);
+        Net restored = TestNets.createNet(nom);
+        NetSnapshot initial = restored.snapshot();
+        for(int epoch = 0; epoch < 3; epoch++){
+            TestNets.train(restored, samples);
+        }
+        restored.restoreWeights(initial);
+        TestNets.train(restored, samples.subList(0, 1));
+
+        Net fresh = TestNets.createNet(nom);
+        TestNets.train(fresh, samples.subList(0, 1));
+        assertEquals(TestNets.getWeights(fresh), TestNets.getWeights(restored));
+    }
+}
@@ -0,0 +1,104 @@
+package neural2d;
+
+import java.util.ArrayList;
+import java.util.List;
+import neural2d.config.LayerConfig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author Michael C. Whidden
+ */
+public class PipelineTest
+{
+    // The layers of the net, in order of forward propagation.
+    private static List<Layer> getLayers(Net net)
+    {
+        final List<Layer> layers = new ArrayList<>();
+        net.accept(new NetElementVisitor()
+        {
+            @Override
+            public boolean visit(Layer layer)
+            {
+                layers.add(layer);
+                return false;
+            }
+        });
+        return layers;
+    }
+
+    private static int countStageThreads()
+    {
+        int n = 0;
+        for(Thread t: Thread.getAllStackTraces().keySet()){
+            if(t.getName().startsWith("pipeline-stage-") && t.isAlive()){
+                n++;
+            }
+        }
+        return n;
+    }
+
+    // A layer whose forward pass fails with an Error, not an exception.
+    private static class FailingLayer extends Layer.HiddenLayer
+    {
+        FailingLayer(LayerConfig config, int index)
+        {
+            super(config);
+            setIndex(index);
+        }
+
+        @Override
+        public int getNumBackConnections()
+        {
+            return 0;
+        }
+
+        @Override
+        void feedForward(Activations activations)
+        {
+            throw new AssertionError("stage failed");
+        }
+    }
+
+    // Validation stops at the first sample that fails, with the others still
+    // in flight, and the stages are shut down rather than left blocked.
+    @Test(timeout = 10000)
+    public void testValidationStopsEarly() throws Exception
+    {
+        Net net = TestNets.createNet(TestNets.createNOM(
+                "<pipelineStages>1</pipelineStages><pipelineWindow>1</pipelineWindow>"));
+        net.sampleSet.getSamples().addAll(TestNets.createSamples(20, true));
+        assertFalse(net.validate());
+        assertEquals(0, countStageThreads());
+    }
+
+    // A stage that fails passes the error on to take(), and close() returns
+    // with the rest of the samples still in flight.
+    @Test(timeout = 10000)
+    public void testFailingStage() throws Exception
+    {
+        Net net = TestNets.createNet(TestNets.NOM);
+        List<Layer> layers = getLayers(net);
+        Layer output = layers.get(layers.size() - 1);
+        layers.set(layers.size() - 1, new FailingLayer(output.getConfig(), output.getIndex()));
+        Pipeline pipeline = new Pipeline(layers, 2, 1);
+        try {
+            for(Sample sample: TestNets.createSamples(20, false)){
+                if(pipeline.isFull()){
+                    break;
+                }
+                pipeline.submit(sample);
+            }
+            pipeline.take();
+            fail("The failing stage was not reported.");
+        } catch(AssertionError e){
+            assertEquals("stage failed", e.getMessage());
+        } finally {
+            pipeline.close();
+        }
+        assertEquals(0, countStageThreads());
+    }
+}
@@ -0,0 +1,96 @@
+package neural2d;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Michael C. Whidden
+ */
+public class SamplePrefetcherTest
+{
+    private static final int NUM_SAMPLES = 7;
+    private static final int NUM_EPOCHS = 4;
+
+    // Image samples, so that each has its own inputs to convert.
+    private static List<Sample> createSamples()
+    {
+        List<Sample> samples = new ArrayList<>();
+        for(int s = 0; s < NUM_SAMPLES; s++){
+            byte[] pixels = new byte[3 * 3 * 3];
+            for(int i = 0; i < pixels.length; i++){
+                pixels[i] = (byte)(s * 31 + i * 7);
+            }
+            samples.add(Sample.createSample(new Sample.ImageData(pixels, 3, 3), null));
+        }
+        return samples;
+    }
+
+    // Every epoch yields every sample exactly once, converted for the
+    // channel, and in the original order unless shuffled.
+    private static void checkEpochs(int depth, int numThreads, boolean shuffle)
+    {
+        List<Sample> samples = createSamples();
+        SamplePrefetcher prefetcher = new SamplePrefetcher(samples, ColorChannel.G,
+                depth, numThreads, shuffle);
+        try {
+            for(int epoch = 0; epoch < NUM_EPOCHS; epoch++){
+                List<Sample> order = new ArrayList<>();
+                for(int i = 0; i < NUM_SAMPLES; i++){
+                    SamplePrefetcher.Prepared prepared = prefetcher.next();
+                    assertMatrixEquals(prepared.sample.decode(ColorChannel.G), prepared.inputs);
+                    order.add(prepared.sample);
+                }
+                Set<Sample> seen = new HashSet<>(order);
+                assertEquals(NUM_SAMPLES, seen.size());
+                assertTrue(seen.containsAll(samples));
+                if(!shuffle || epoch == 0){
+                    assertEquals(samples, order);
+                }
+            }
+        } finally {
+            prefetcher.close();
+        }
+    }
+
+    private static void assertMatrixEquals(Matrix expected, Matrix actual)
+    {
+        assertEquals(expected.getNumRows(), actual.getNumRows());
+        assertEquals(expected.getNumColumns(), actual.getNumColumns());
+        for(int row = 0; row < expected.getNumRows(); row++){
+            for(int col = 0; col < expected.getNumColumns(); col++){
+                assertEquals(expected.get(row, col), actual.get(row, col), 0.0);
+            }
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testInOrder()
+    {
+        checkEpochs(1, 1, false);
+        checkEpochs(3, 2, false);
+        checkEpochs(NUM_SAMPLES, 4, false);
+    }
+
+    @Test(timeout = 30000)
+    public void testShuffled()
+    {
+        checkEpochs(1, 1, true);
+        checkEpochs(3, 2, true);
+        checkEpochs(NUM_SAMPLES, 4, true);
+    }
+
+    // More samples are prefetched than an epoch holds, so the queue reaches
+    // into the epochs after.
+    @Test(timeout = 30000)
+    public void testDepthBeyondEpoch()
+    {
+        checkEpochs(2 * NUM_SAMPLES + 3, 3, false);
+        checkEpochs(2 * NUM_SAMPLES + 3, 3, true);
+    }
+}
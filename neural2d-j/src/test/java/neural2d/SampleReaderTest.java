@@ -0,0 +1,156 @@
+package neural2d;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import neural2d.config.ConfigurationException;
+import neural2d.config.SampleConfig;
+import neural2d.config.SampleReader;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Michael C. Whidden
+ */
+public class SampleReaderTest
+{
+    private static final String NOM = TestNets.createNOM("<shuffleSamples>false</shuffleSamples>"
+            + "<errorThreshold>0.0</errorThreshold><maxEpochs>3</maxEpochs>");
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        StringBuilder sb = new StringBuilder("<sampleSet><inputSize>6x6</inputSize>"
+                + "<targetSize>2x2</targetSize><samples>\n");
+        for(Sample sample: TestNets.createSamples(20, true)){
+            sb.append("<sample><input>").append(values(sample.getData()))
+                    .append("</input><target>").append(values(sample.getTargetVals()))
+                    .append("</target></sample>\n");
+        }
+        sb.append("</samples></sampleSet>\n");
+        file = write(sb.toString());
+    }
+
+    // The values of the matrix as they are written in a sample file.
+    private static String values(Matrix m)
+    {
+        StringBuilder sb = new StringBuilder();
+        for(int row = 0; row < m.getNumRows(); row++){
+            for(int col = 0; col < m.getNumColumns(); col++){
+                sb.append(sb.length() == 0 ? "" : " ").append(m.get(row, col));
+            }
+        }
+        return sb.toString();
+    }
+
+    @After
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+    private static File write(String content) throws IOException
+    {
+        File f = File.createTempFile("samples", ".xml");
+        try(OutputStream out = new FileOutputStream(f)){
+            out.write(content.getBytes());
+        }
+        return f;
+    }
+
+    private static void assertMatrixEquals(Matrix expected, Matrix actual)
+    {
+        assertEquals(expected.getNumRows(), actual.getNumRows());
+        assertEquals(expected.getNumColumns(), actual.getNumColumns());
+        for(int row = 0; row < expected.getNumRows(); row++){
+            for(int col = 0; col < expected.getNumColumns(); col++){
+                assertEquals(expected.get(row, col), actual.get(row, col), 0.0);
+            }
+        }
+    }
+
+    // The reader reads the same samples as SampleConfig, and can be opened
+    // again to read them again.
+    @Test
+    public void testReadsSameSamples() throws Exception
+    {
+        List<Sample> expected = SampleConfig.parseConfig(file, true).getSamples();
+        for(int pass = 0; pass < 2; pass++){
+            try(SampleReader reader = SampleReader.open(file, true)){
+                int i = 0;
+                while(reader.hasNext()){
+                    Sample sample = reader.next();
+                    assertMatrixEquals(expected.get(i).getData(ColorChannel.BW), sample.getData(ColorChannel.BW));
+                    assertMatrixEquals(expected.get(i).getTargetVals(), sample.getTargetVals());
+                    ++i;
+                }
+                assertEquals(expected.size(), i);
+                assertEquals(expected.size(), reader.getCount());
+                assertNull(reader.read());
+            }
+        }
+    }
+
+    @Test
+    public void testRejectsBadFiles() throws Exception
+    {
+        String[] bad = {
+            "<sampleSet><inputSize>2x1</inputSize><samples><sample><input>1 2</input></sample></samples></sampleSet>",
+            "<sampleSet><samples><sample><input>1 2</input><target>1</target></sample></samples>"
+                    + "<inputSize>2x1</inputSize><targetSize>1</targetSize></sampleSet>",
+            "<sampleSet><inputSize>2x1</inputSize><targetSize>1</targetSize><samples>"
+                    + "<sample><input>1 2 3</input><target>1</target></sample></samples></sampleSet>",
+            "<sampleSet><inputSize>2x1</inputSize><samples></samples></sampleSet>",
+        };
+        for(String content: bad){
+            File f = write(content);
+            try(SampleReader reader = SampleReader.open(f, true)){
+                reader.read();
+                fail("Read a sample from " + content);
+            } catch(ConfigurationException e){
+                // Expected
+            } finally {
+                f.delete();
+            }
+        }
+        // Targets are optional when running a trained net.
+        File f = write(bad[0]);
+        try(SampleReader reader = SampleReader.open(f, false)){
+            assertTrue(reader.hasNext());
+            assertNull(reader.next().getTargetVals());
+            assertFalse(reader.hasNext());
+        } finally {
+            f.delete();
+        }
+    }
+
+    // Training on streamed samples, which reads the file for each epoch,
+    // gives the same weights as training on the loaded samples.
+    @Test
+    public void testStreamedTrainingMatchesLoaded() throws Exception
+    {
+        Net loaded = TestNets.createNet(NOM);
+        loaded.sampleSet.loadSamples(SampleConfig.parseConfig(file, true));
+        loaded.train();
+
+        Net streamed = TestNets.createNet(NOM);
+        streamed.sampleSet.streamSamples(file, true);
+        assertTrue(streamed.sampleSet.isStreamed());
+        assertTrue(streamed.sampleSet.getSamples().isEmpty());
+        streamed.train();
+
+        assertEquals(TestNets.getWeights(loaded), TestNets.getWeights(streamed));
+        assertTrue(streamed.validate() == loaded.validate());
+    }
+}
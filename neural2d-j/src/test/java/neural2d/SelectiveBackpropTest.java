@@ -0,0 +1,61 @@
+package neural2d;
+
+import java.io.ByteArrayInputStream;
+import neural2d.config.NetConfig;
+import neural2d.config.TrainingParameters;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Michael C. Whidden
+ */
+public class SelectiveBackpropTest
+{
+    private static SelectiveBackprop createSelector() throws Exception
+    {
+        String nom = "<net>"
+            + "<topology>"
+            + "<input><name>input</name><size>2x2</size></input>"
+            + "<output><name>output</name><size>1x1</size><from>input</from></output>"
+            + "</topology>"
+            + "<trainingParams><seed>1</seed><selectiveBackprop>2</selectiveBackprop>"
+            + "<selectiveBackpropFloor>0.1</selectiveBackpropFloor>"
+            + "<selectiveBackpropWarmup>1</selectiveBackpropWarmup></trainingParams>"
+            + "</net>";
+        TrainingParameters params = NetConfig.parseConfig(
+                new ByteArrayInputStream(nom.getBytes())).getTrainingParameters();
+        return new SelectiveBackprop(params);
+    }
+
+    // Every sample is backpropagated during the warm-up epochs.
+    @Test
+    public void testWarmupSelectsAll() throws Exception
+    {
+        SelectiveBackprop selector = createSelector();
+        for(int i = 0; i < 1000; i++){
+            assertTrue(selector.select(1.0 / (i + 1), 0));
+        }
+    }
+
+    // Afterwards, a sample with a larger error than all the recent ones is
+    // always backpropagated, and one with a smaller error about as often as
+    // the floor.
+    @Test
+    public void testSmallErrorsAreSkipped() throws Exception
+    {
+        SelectiveBackprop selector = createSelector();
+        for(int i = 0; i < 1000; i++){
+            selector.select(1.0, 1);
+        }
+        int selected = 0;
+        for(int i = 0; i < 10000; i++){
+            assertTrue(selector.select(2.0 + i, 1));
+            if(selector.select(0.0, 1)){
+                ++selected;
+            }
+        }
+        assertEquals(0.1, selected / 10000.0, 0.02);
+    }
+}
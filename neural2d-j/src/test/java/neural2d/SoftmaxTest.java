@@ -0,0 +1,101 @@
+package neural2d;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Michael C. Whidden
+ */
+public class SoftmaxTest
+{
+    private static final String NOM = "<net>"
+            + "<topology>"
+            + "<input><name>input</name><size>6x6</size></input>"
+            + "<layers><layer><name>hidden</name><size>4x4</size><radius>1x1</radius><from>input</from></layer></layers>"
+            + "<output classifier=\"true\"><name>output</name><size>2x2</size><tf>softmax</tf><from>hidden</from></output>"
+            + "</topology>"
+            + "</net>";
+
+    private static Matrix createInputs(double scale)
+    {
+        Matrix m = new Matrix(6, 6);
+        for(int row = 0; row < 6; row++){
+            for(int col = 0; col < 6; col++){
+                m.set(row, col, scale * (row * 6 + col) / 36.0);
+            }
+        }
+        return m;
+    }
+
+    // The outputs are positive and add up to 1, and a snapshot agrees.
+    @Test
+    public void testOutputsAreProbabilities() throws Exception
+    {
+        Net net = TestNets.createNet(NOM);
+        Matrix inputs = createInputs(1.0);
+        net.feedForward(Sample.createSample(inputs, null));
+        Layer output = TestNets.getOutputLayer(net);
+        assertTrue(output.isSoftmax());
+        Matrix scored = net.snapshot().score(inputs);
+        double sum = 0.0;
+        for(Neuron n: output.getNeurons()){
+            assertTrue(n.getOutput() > 0.0);
+            assertEquals(n.getOutput(), scored.get(n.getRow(), n.getColumn()), 1e-15);
+            sum += n.getOutput();
+        }
+        assertEquals(1.0, sum, 1e-12);
+    }
+
+    // The fused gradient, target minus output, is minus the derivative of the
+    // cross-entropy by each sum. Targets of -1 count as 0.
+    @Test
+    public void testGradientIsCrossEntropyDerivative() throws Exception
+    {
+        Matrix targets = new Matrix(2, 2);
+        targets.set(0, 0, -1.0);
+        targets.set(0, 1, 1.0);
+        targets.set(1, 0, -1.0);
+        targets.set(1, 1, -1.0);
+        double[] sums = {0.3, -1.2, 2.0, 0.7};
+        double[] outputs = sums.clone();
+        Softmax.normalize(outputs, 0, outputs.length);
+        double[] p = Softmax.probabilities(targets);
+        double h = 1e-6;
+        for(int i = 0; i < sums.length; i++){
+            double[] plus = sums.clone();
+            double[] minus = sums.clone();
+            plus[i] += h;
+            minus[i] -= h;
+            Softmax.normalize(plus, 0, plus.length);
+            Softmax.normalize(minus, 0, minus.length);
+            double derivative = (Softmax.crossEntropy(targets, plus, 0)
+                    - Softmax.crossEntropy(targets, minus, 0)) / (2 * h);
+            assertEquals(-derivative, p[i] - outputs[i], 1e-8);
+        }
+    }
+
+    // Incremental inference normalizes the whole layer again, so it must
+    // match a full pass.
+    @Test
+    public void testIncrementalMatchesFull() throws Exception
+    {
+        Net net = TestNets.createNet(NOM);
+        Layer output = TestNets.getOutputLayer(net);
+        net.setIncremental(true);
+        Matrix inputs = createInputs(1.0);
+        net.feedForward(Sample.createSample(inputs, null));
+        inputs.set(2, 3, 0.9);
+        net.feedForward(Sample.createSample(inputs, null));
+        double[] incremental = new double[output.size()];
+        for(int i = 0; i < incremental.length; i++){
+            incremental[i] = output.getNeuron(i).getOutput();
+        }
+        net.setIncremental(false);
+        net.feedForward(Sample.createSample(inputs, null));
+        for(int i = 0; i < incremental.length; i++){
+            assertEquals(output.getNeuron(i).getOutput(), incremental[i], 1e-12);
+        }
+    }
+}
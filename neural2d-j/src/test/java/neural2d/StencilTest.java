@@ -0,0 +1,324 @@
+package neural2d;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import neural2d.config.ConfigurationException;
+import neural2d.config.NetConfig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Michael C. Whidden
+ */
+public class StencilTest
+{
+    private static Net createNet(String radius) throws Exception
+    {
+        String nom = "<net>"
+            + "<topology>"
+            + "<input><name>input</name><size>6x6</size></input>"
+            + "<layers><layer><name>hidden</name><size>4x4</size>" + radius + "<from>input</from></layer></layers>"
+            + "<output><name>output</name><size>2x2</size><from>hidden</from></output>"
+            + "</topology>"
+            + "</net>";
+        return new Net(NetConfig.parseConfig(new ByteArrayInputStream(nom.getBytes())));
+    }
+
+    // The output layer also receives input straight from the first hidden
+    // layer, skipping the second.
+    private static Net createSkipNet() throws Exception
+    {
+        String nom = "<net>"
+            + "<topology>"
+            + "<input><name>input</name><size>6x6</size></input>"
+            + "<layers>"
+            + "<layer><name>second</name><size>4x4</size><radius>1x1</radius><from>first</from></layer>"
+            + "<layer><name>first</name><size>4x4</size><radius>1x1</radius><from>input</from></layer>"
+            + "</layers>"
+            + "<output><name>output</name><size>2x2</size><from>second</from><from>first</from></output>"
+            + "</topology>"
+            + "</net>";
+        return new Net(NetConfig.parseConfig(new ByteArrayInputStream(nom.getBytes())));
+    }
+
+    private static Sample createSample()
+    {
+        Matrix m = new Matrix(6, 6);
+        for(int row = 0; row < 6; row++){
+            for(int col = 0; col < 6; col++){
+                m.set(row, col, (row * 6 + col) / 36.0);
+            }
+        }
+        Matrix target = new Matrix(2, 2);
+        target.set(0, 1, 1.0);
+        return Sample.createSample(m, target);
+    }
+
+    private static List<Layer> getLayers(Net net)
+    {
+        final List<Layer> layers = new ArrayList<>();
+        net.accept(new NetElementVisitor()
+        {
+            @Override
+            public boolean visit(Layer layer)
+            {
+                layers.add(layer);
+                return false;
+            }
+        });
+        return layers;
+    }
+
+    @Test
+    public void testMaskShape() throws Exception
+    {
+        Stencil ellipse = getLayers(createNet("<radius>1x1</radius>")).get(2).getStencils().get(0);
+        assertEquals(5, ellipse.getMask(3, 3).size()); // the corners are outside
+        Stencil rectangle = getLayers(createNet("<radius rectangular=\"true\">1x1</radius>")).get(2).getStencils().get(0);
+        assertEquals(9, rectangle.getMask(3, 3).size());
+    }
+
+    @Test
+    public void testMasksAreShared() throws Exception
+    {
+        Layer hidden = getLayers(createNet("<radius>1x1</radius>")).get(2);
+        Stencil stencil = hidden.getStencils().get(0);
+        for(int i = 0; i < hidden.size(); i++){
+            Stencil.Mask mask = stencil.getMask(i);
+            assertSame(stencil.getMask(mask.width, mask.height), mask);
+        }
+    }
+
+    // The output layer, with the default radius, covers the whole hidden layer.
+    // Its matrix-vector product must match feeding each neuron forward alone.
+    @Test
+    public void testDenseLayer() throws Exception
+    {
+        Net net = createNet("<radius>1x1</radius>");
+        List<Layer> layers = getLayers(net);
+        assertFalse(layers.get(2).getStencils().get(0).isDense());
+        Layer output = layers.get(3);
+        assertTrue(output.getStencils().get(0).isDense());
+
+        Matrix m = new Matrix(6, 6);
+        for(int row = 0; row < 6; row++){
+            for(int col = 0; col < 6; col++){
+                m.set(row, col, (row * 6 + col) / 36.0);
+            }
+        }
+        net.feedForward(Sample.createSample(m, null));
+        for(Neuron n: output.getNeurons()){
+            double dense = n.getOutput();
+            n.feedForward();
+            assertEquals(n.getOutput(), dense, 1e-15);
+        }
+    }
+
+    // The gradient sums that the output layer scatters back must match summing
+    // the weight times gradient along each hidden neuron's forward connections.
+    @Test
+    public void testGradientSumsMatchForward() throws Exception
+    {
+        Net net = createNet("<radius>1x1</radius>");
+        Matrix m = new Matrix(6, 6);
+        for(int row = 0; row < 6; row++){
+            for(int col = 0; col < 6; col++){
+                m.set(row, col, (row * 6 + col) / 36.0);
+            }
+        }
+        Matrix target = new Matrix(2, 2);
+        target.set(0, 1, 1.0);
+        Sample sample = Sample.createSample(m, target);
+        net.feedForward(sample);
+        List<Layer> layers = getLayers(net);
+        Layer hidden = layers.get(2);
+        Layer output = layers.get(3);
+        output.executeCommand(new Neuron.CalculateGradientsCommand(sample.getTargetVals()));
+        hidden.clearGradientSums();
+        output.backPropagate();
+
+        for(int i = 0; i < hidden.size(); i++){
+            final double[] sum = new double[1];
+            hidden.getNeuron(i).accept(new NetElementVisitor()
+            {
+                @Override
+                public boolean visit(Connection conn)
+                {
+                    sum[0] += conn.getWeight() * conn.getToNeuron().getGradient();
+                    return false;
+                }
+            });
+            assertEquals(sum[0], hidden.getGradientSums()[i], 1e-12);
+        }
+    }
+
+    // Every connection must be seen the same from its source as from its
+    // destination.
+    @Test
+    public void testForwardMatchesBackward() throws Exception
+    {
+        Net net = createNet("<radius>1x1</radius>");
+        final List<String> forward = new ArrayList<>();
+        final List<String> backward = new ArrayList<>();
+        net.accept(new NetElementVisitor()
+        {
+            @Override
+            public boolean visit(Connection conn)
+            {
+                forward.add(conn.toString());
+                return false;
+            }
+        });
+        for(Layer layer: getLayers(net)){
+            for(Neuron n: layer.getNeurons()){
+                n.acceptBackward(new NetElementVisitor()
+                {
+                    @Override
+                    public boolean visit(Connection conn)
+                    {
+                        backward.add(conn.toString());
+                        return false;
+                    }
+                });
+            }
+        }
+        Collections.sort(forward);
+        Collections.sort(backward);
+        assertEquals(backward, forward);
+    }
+
+    // The layers are sorted so each follows the layers it is fed by, and the
+    // output layer sums its inputs from both of them.
+    @Test
+    public void testSkipConnection() throws Exception
+    {
+        Net net = createSkipNet();
+        List<Layer> layers = getLayers(net);
+        Layer first = layers.get(2);
+        Layer second = layers.get(3);
+        Layer output = layers.get(4);
+        assertEquals("first", first.getName());
+        assertEquals("second", second.getName());
+        assertEquals(2, output.getStencils().size());
+        assertTrue(output.getStencils().get(0).hasBias());
+        assertFalse(output.getStencils().get(1).hasBias());
+
+        net.feedForward(createSample());
+        for(Neuron n: output.getNeurons()){
+            double layerwise = n.getOutput();
+            n.feedForward();
+            assertEquals(n.getOutput(), layerwise, 1e-15);
+        }
+    }
+
+    // A layer feeding two layers gets the gradients scattered back from both.
+    @Test
+    public void testSkipGradientSums() throws Exception
+    {
+        Net net = createSkipNet();
+        Sample sample = createSample();
+        net.feedForward(sample);
+        List<Layer> layers = getLayers(net);
+        Layer first = layers.get(2);
+        Layer second = layers.get(3);
+        Layer output = layers.get(4);
+        output.executeCommand(new Neuron.CalculateGradientsCommand(sample.getTargetVals()));
+        first.clearGradientSums();
+        second.clearGradientSums();
+        output.backPropagate();
+        for(Neuron n: second.getNeurons()){
+            n.calcHiddenGradients();
+        }
+        second.backPropagate();
+
+        for(int i = 0; i < first.size(); i++){
+            final double[] sum = new double[1];
+            first.getNeuron(i).accept(new NetElementVisitor()
+            {
+                @Override
+                public boolean visit(Connection conn)
+                {
+                    sum[0] += conn.getWeight() * conn.getToNeuron().getGradient();
+                    return false;
+                }
+            });
+            assertEquals(sum[0], first.getGradientSums()[i], 1e-12);
+        }
+    }
+
+    private static List<Double> getWeights(Neuron neuron)
+    {
+        final List<Double> weights = new ArrayList<>();
+        neuron.acceptBackward(new NetElementVisitor()
+        {
+            @Override
+            public boolean visit(Connection conn)
+            {
+                weights.add(conn.getWeight());
+                return false;
+            }
+        });
+        return weights;
+    }
+
+    // With update epsilons, the neurons with gradients below the epsilon, and
+    // small enough momentum, keep their weights, and the rest update as
+    // usual, both through a sparse stencil and a dense one.
+    @Test
+    public void testSmallGradientsSkipUpdate() throws Exception
+    {
+        for(String radius: new String[] { "<radius>1x1</radius>", "" }){
+            Net net = createNet(radius);
+            Sample sample = createSample();
+            net.feedForward(sample);
+            net.backProp(sample);
+            Layer hidden = getLayers(net).get(2);
+            List<Double> gradients = new ArrayList<>();
+            List<List<Double>> before = new ArrayList<>();
+            for(Neuron n: hidden.getNeurons()){
+                gradients.add(Math.abs(n.getGradient()));
+                before.add(getWeights(n));
+            }
+            List<Double> sorted = new ArrayList<>(gradients);
+            Collections.sort(sorted);
+            double epsilon = sorted.get(sorted.size() / 2);
+
+            hidden.setUpdateEpsilons(epsilon, 1.0);
+            hidden.updateInputWeights(0.1, 0.5, Optimizer.SGD, 2);
+            long skipped = 0;
+            for(int i = 0; i < hidden.size(); i++){
+                List<Double> after = getWeights(hidden.getNeuron(i));
+                if(gradients.get(i) < epsilon){
+                    assertEquals(before.get(i), after);
+                    skipped += after.size();
+                } else {
+                    assertFalse(before.get(i).equals(after));
+                }
+            }
+            assertTrue(skipped > 0);
+            assertEquals(skipped, hidden.getSkippedWeightUpdates());
+        }
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void testCycleIsRejected() throws Exception
+    {
+        String nom = "<net>"
+            + "<topology>"
+            + "<input><name>input</name><size>6x6</size></input>"
+            + "<layers>"
+            + "<layer><name>a</name><size>4x4</size><from>input</from><from>b</from></layer>"
+            + "<layer><name>b</name><size>4x4</size><from>a</from></layer>"
+            + "</layers>"
+            + "<output><name>output</name><size>2x2</size><from>b</from></output>"
+            + "</topology>"
+            + "</net>";
+        NetConfig.parseConfig(new ByteArrayInputStream(nom.getBytes()));
+    }
+}
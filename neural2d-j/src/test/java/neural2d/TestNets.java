@@ -0,0 +1,148 @@
+package neural2d;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import neural2d.config.ConfigurationException;
+import neural2d.config.NetConfig;
+
+/**
+ * The small net and the random samples that several tests share.
+ *
+ * @author Michael C. Whidden
+ */
+final class TestNets
+{
+    // A 6x6 input, a 4x4 hidden layer with a radius of 1x1, and a 2x2 output.
+    static final String TOPOLOGY = "<topology>"
+            + "<input><name>input</name><size>6x6</size></input>"
+            + "<layers><layer><name>hidden</name><size>4x4</size><radius>1x1</radius><from>input</from></layer></layers>"
+            + "<output><name>output</name><size>2x2</size><from>hidden</from></output>"
+            + "</topology>";
+
+    // The net with random weights and the default training parameters.
+    static final String NOM = "<net>" + TOPOLOGY + "</net>";
+
+    private TestNets()
+    {
+    }
+
+    /**
+     * @param trainingParams more training parameters, or "".
+     * @return the net, seeded so that its weights are always the same, with
+     * a momentum of 0.5.
+     */
+    static String createNOM(String trainingParams)
+    {
+        return "<net>" + TOPOLOGY
+                + "<trainingParams><seed>1</seed><alpha>0.5</alpha>" + trainingParams + "</trainingParams>"
+                + "</net>";
+    }
+
+    static NetConfig parse(String nom) throws ConfigurationException
+    {
+        return NetConfig.parseConfig(new ByteArrayInputStream(nom.getBytes()));
+    }
+
+    static Net createNet(String nom) throws ConfigurationException
+    {
+        return new Net(parse(nom));
+    }
+
+    /**
+     * @param count
+     * @param targets if the samples have targets.
+     * @return the same random samples for the 6x6 input every time, with
+     * a single 1.0 in their 2x2 targets.
+     */
+    static List<Sample> createSamples(int count, boolean targets)
+    {
+        Random rand = new Random(1);
+        List<Sample> samples = new ArrayList<>();
+        for(int i = 0; i < count; i++){
+            Matrix m = new Matrix(6, 6);
+            for(int row = 0; row < 6; row++){
+                for(int col = 0; col < 6; col++){
+                    m.set(row, col, rand.nextDouble());
+                }
+            }
+            Matrix target = null;
+            if(targets){
+                target = new Matrix(2, 2);
+                target.set(rand.nextInt(2), rand.nextInt(2), 1.0);
+            }
+            samples.add(Sample.createSample(m, target));
+        }
+        return samples;
+    }
+
+    static void train(Net net, List<Sample> samples) throws Net.SampleException
+    {
+        for(Sample sample: samples){
+            net.feedForward(sample);
+            net.backProp(sample);
+        }
+    }
+
+    // The weights of all the connections, in the order the net visits them.
+    static List<Double> getWeights(Net net)
+    {
+        final List<Double> weights = new ArrayList<>();
+        net.accept(new NetElementVisitor()
+        {
+            @Override
+            public boolean visit(Connection conn)
+            {
+                weights.add(conn.getWeight());
+                return false;
+            }
+        });
+        return weights;
+    }
+
+    static Layer getLayer(Net net, final String name)
+    {
+        final Layer[] found = new Layer[1];
+        net.accept(new NetElementVisitor()
+        {
+            @Override
+            public boolean visit(Layer layer)
+            {
+                if(layer.getName().equals(name)){
+                    found[0] = layer;
+                }
+                return false;
+            }
+        });
+        return found[0];
+    }
+
+    static Layer getOutputLayer(Net net)
+    {
+        final Layer[] found = new Layer[1];
+        net.accept(new NetElementVisitor()
+        {
+            @Override
+            public boolean visit(Layer layer)
+            {
+                if(layer.getLayerType() == LayerType.OUTPUT){
+                    found[0] = layer;
+                }
+                return false;
+            }
+        });
+        return found[0];
+    }
+
+    // The outputs of the output layer, after a feedForward().
+    static Matrix getOutputs(Net net)
+    {
+        Layer output = getOutputLayer(net);
+        Matrix m = new Matrix(output.getNumRows(), output.getNumColumns());
+        for(Neuron n: output.getNeurons()){
+            m.set(n.getRow(), n.getColumn(), n.getOutput());
+        }
+        return m;
+    }
+}
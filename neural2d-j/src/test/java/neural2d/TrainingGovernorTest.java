@@ -0,0 +1,105 @@
+package neural2d;
+
+import java.io.File;
+import java.util.List;
+import neural2d.config.ConfigurationException;
+import neural2d.config.NetConfig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author Michael C. Whidden
+ */
+public class TrainingGovernorTest
+{
+    private static Net createNet(String trainingParams, int numSamples) throws Exception
+    {
+        Net net = TestNets.createNet(TestNets.createNOM("<errorThreshold>0</errorThreshold>" + trainingParams));
+        net.sampleSet.getSamples().addAll(TestNets.createSamples(numSamples, true));
+        return net;
+    }
+
+    // A sample whose error is NaN, and whose backprop makes weights NaN.
+    private static Sample createNaNSample()
+    {
+        Sample sample = TestNets.createSamples(1, true).get(0);
+        Matrix inputs = sample.getData();
+        inputs.set(0, 0, Double.NaN);
+        return Sample.createSample(inputs, sample.getTargetVals());
+    }
+
+    @Test
+    public void testEpochCap() throws Exception
+    {
+        Net net = createNet("<maxEpochs>3</maxEpochs>", 4);
+        net.train();
+        assertEquals("the limit of 3 epochs was reached", net.getStopReason());
+        assertEquals(3, net.getEpochs());
+    }
+
+    // With a minimum improvement of 100%, the second check of the window
+    // stops training, in the middle of the first epoch.
+    @Test
+    public void testPlateau() throws Exception
+    {
+        Net net = createNet("<maxEpochs>100</maxEpochs><plateauWindow>5</plateauWindow>"
+                + "<plateauMinImprovement>1.0</plateauMinImprovement>", 20);
+        net.train();
+        assertTrue(net.getStopReason(), net.getStopReason().contains("improved by less than"));
+        assertEquals(0, net.getEpochs());
+        assertTrue(net.hasFiniteWeights());
+    }
+
+    // The error diverges at the first sample, before any epoch has ended,
+    // and the initial weights are restored rather than the NaN ones kept.
+    @Test
+    public void testDivergenceInFirstEpoch() throws Exception
+    {
+        Net net = createNet("<maxEpochs>100</maxEpochs>", 0);
+        List<Double> initial = TestNets.getWeights(net);
+        net.sampleSet.getSamples().add(createNaNSample());
+        net.train();
+        assertTrue(net.getStopReason(), net.getStopReason().contains("diverged"));
+        assertEquals(0, net.getEpochs());
+        assertTrue(net.hasFiniteWeights());
+        assertEquals(initial, TestNets.getWeights(net));
+    }
+
+    // The same, with validation samples but no validation done yet.
+    @Test
+    public void testDivergenceBeforeValidation() throws Exception
+    {
+        Net net = createNet("<maxEpochs>100</maxEpochs><validateEveryNth>1000</validateEveryNth>", 0);
+        List<Double> initial = TestNets.getWeights(net);
+        net.sampleSet.getSamples().add(createNaNSample());
+        net.validationSet.getSamples().addAll(TestNets.createSamples(2, true));
+        net.train();
+        assertTrue(net.getStopReason(), net.getStopReason().contains("diverged"));
+        assertEquals(initial, TestNets.getWeights(net));
+    }
+
+    // Weights that are NaN are never written out.
+    @Test
+    public void testNaNWeightsNotWritten() throws Exception
+    {
+        NetConfig config = TestNets.parse(TestNets.NOM);
+        Net net = new Net(config);
+        Sample sample = createNaNSample();
+        net.feedForward(sample);
+        net.backProp(sample);
+        assertFalse(net.hasFiniteWeights());
+        File file = File.createTempFile("trained", ".xml");
+        file.delete();
+        try {
+            config.writeTrainedNOM(net, file);
+            fail("Wrote NaN weights.");
+        } catch (ConfigurationException e) {
+            // Expected
+        }
+        assertFalse(file.exists());
+    }
+}